@@ -2,9 +2,12 @@ package it.unipi.lsmsdb.bookadvisor;
 
 // edward39 Password8.
 
+import it.unipi.lsmsdb.bookadvisor.cache.CacheRegistry;
+import it.unipi.lsmsdb.bookadvisor.dao.IndexManager;
 import it.unipi.lsmsdb.bookadvisor.dao.documentDB.*;
 import it.unipi.lsmsdb.bookadvisor.dao.graphDB.*;
 import it.unipi.lsmsdb.bookadvisor.model.book.Book;
+import it.unipi.lsmsdb.bookadvisor.model.book.BookSummary;
 import it.unipi.lsmsdb.bookadvisor.model.review.Review;
 import it.unipi.lsmsdb.bookadvisor.model.user.Admin;
 import it.unipi.lsmsdb.bookadvisor.model.user.Author;
@@ -12,8 +15,11 @@ import it.unipi.lsmsdb.bookadvisor.model.user.Reviewer;
 import it.unipi.lsmsdb.bookadvisor.service.AuthenticationService;
 import it.unipi.lsmsdb.bookadvisor.service.BookService;
 import it.unipi.lsmsdb.bookadvisor.service.FollowService;
+import it.unipi.lsmsdb.bookadvisor.service.GraphProjector;
 import it.unipi.lsmsdb.bookadvisor.service.ReviewService;
 import it.unipi.lsmsdb.bookadvisor.service.UserService;
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+import it.unipi.lsmsdb.bookadvisor.utils.Page;
 import javafx.application.Application;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
@@ -32,9 +38,11 @@ import java.util.stream.Collectors;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.IntFunction;
 import java.util.function.UnaryOperator;
 
 import org.bson.Document;
@@ -54,11 +62,11 @@ public class App extends Application {
     private Procedures procedures;
     private int currentPage = 0;
     private int curPageBookByGenre = 0;
-    private int totalBooks = 0;
-    private int totalReviews = 0;
     private int booksPerPage = 10;
     private int reviewsPerPage = 10;
     private HBox searchBox;
+    private GraphProjector graphProjector;
+    private ChangeStreamListener changeStreamListener;
     private Button goToHomeButton;
 
     @Override
@@ -74,12 +82,25 @@ public class App extends Application {
         FollowGraphDAO followGraphDAO = new FollowGraphDAO(neo4jConnector);
         reviewDao = new ReviewDao(connector);
 
+        // Make sure the indexes the DAOs rely on exist before the first query
+        new IndexManager(connector, neo4jConnector).ensureAll();
+
+        // Changes for the graph are written to the outbox and applied to Neo4j in the background
+        OutboxDao outboxDao = new OutboxDao(connector);
+        graphProjector = new GraphProjector(outboxDao, neo4jConnector);
+        graphProjector.start();
+        if (Config.getBoolean("changeStream.enabled", true)) {
+            changeStreamListener = new ChangeStreamListener(connector);
+            changeStreamListener.subscribeCaches();
+            changeStreamListener.start();
+        }
+
         // Initialize services
-        authenticationService = new AuthenticationService(userDao, userGraphDAO);
-        bookService = new BookService(bookDao, userDao, new BookGraphDAO(neo4jConnector));
+        authenticationService = new AuthenticationService(userDao, outboxDao);
+        bookService = new BookService(bookDao, userDao, new BookGraphDAO(neo4jConnector), outboxDao);
         followService = new FollowService(followGraphDAO);
         userService = new UserService(userDao, reviewDao, userGraphDAO);
-        reviewService = new ReviewService(reviewDao, new ReviewGraphDAO(neo4jConnector), bookDao, userDao);
+        reviewService = new ReviewService(reviewDao, bookDao, userDao, outboxDao);
         procedures = new Procedures(neo4jConnector, connector);
 
         primaryStage.setTitle("Book Advisor");
@@ -252,9 +273,7 @@ public class App extends Application {
             String selectedGenre = genreComboBox.getValue();
             if (selectedGenre != null) {
                 curPageBookByGenre = 0; // Reset to first page
-                List<Document> results = procedures.findMostFamousBooks(selectedGenre);
-                totalBooks = results.size();
-                displayMostFamousBooksWithPagination(results);
+                displayMostFamousBooksWithPagination(selectedGenre);
                 genreStage.close();
             } else {
                 Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -273,12 +292,12 @@ public class App extends Application {
         genreStage.show();
     }
     
-    private void displayMostFamousBooksWithPagination(List<Document> results) {
+    private void displayMostFamousBooksWithPagination(String genre) {
         Stage resultsStage = new Stage();
         VBox resultsBox = new VBox(10);
         resultsBox.setPadding(new Insets(10));
     
-        updateResultsDisplay(results, resultsBox);
+        updateResultsDisplay(genre, resultsBox);
     
         ScrollPane scrollPane = new ScrollPane(resultsBox);
         Scene resultsScene = new Scene(scrollPane, 400, 600);
@@ -287,14 +306,13 @@ public class App extends Application {
         resultsStage.show();
     }
     
-    private void updateResultsDisplay(List<Document> results, VBox vbox) {
+    private void updateResultsDisplay(String genre, VBox vbox) {
         vbox.getChildren().clear();
     
-        int start = curPageBookByGenre * booksPerPage;
-        int end = Math.min(start + booksPerPage, totalBooks);
-        List<Document> resultsToDisplay = results.subList(start, end);
+        // Only the current page of countries is fetched
+        Page<Document> resultsPage = procedures.findMostFamousBooks(genre, curPageBookByGenre, booksPerPage);
     
-        for (Document result : resultsToDisplay) {
+        for (Document result : resultsPage.getItems()) {
             VBox resultBox = new VBox(5);
             resultBox.getChildren().add(new Label("Country: " + result.getString("country")));
             resultBox.getChildren().add(new Label("Title: " + result.getString("title")));
@@ -326,16 +344,16 @@ public class App extends Application {
         previousPageButton.setOnAction(e -> {
             if (curPageBookByGenre > 0) {
                 curPageBookByGenre--;
-                updateResultsDisplay(results, vbox);
+                updateResultsDisplay(genre, vbox);
             }
         });
     
         Button nextPageButton = new Button("Next");
-        nextPageButton.setDisable((curPageBookByGenre + 1) * booksPerPage >= totalBooks);
+        nextPageButton.setDisable(!resultsPage.hasNext());
         nextPageButton.setOnAction(e -> {
-            if ((curPageBookByGenre + 1) * booksPerPage < totalBooks) {
+            if (resultsPage.hasNext()) {
                 curPageBookByGenre++;
-                updateResultsDisplay(results, vbox);
+                updateResultsDisplay(genre, vbox);
             }
         });
     
@@ -759,10 +777,8 @@ public class App extends Application {
         vbox.getChildren().addAll(new Label("Search"), searchBox);
     
         if (searchBooks) {
-            List<Book> books = bookService.findBooksByTitle(query);
-            totalBooks = books.size();
-            List<Book> booksToDisplay = books.subList(currentPage * booksPerPage, Math.min((currentPage + 1) * booksPerPage, totalBooks));
-            displayBooks(booksToDisplay, vbox);
+            Page<BookSummary> books = bookService.findBookSummariesByTitle(query, currentPage, booksPerPage);
+            displayBooks(books.getItems(), vbox);
     
             // Add pagination controls
             HBox paginationBox = new HBox(10);
@@ -776,9 +792,9 @@ public class App extends Application {
             });
     
             Button nextPageButton = new Button("Next");
-            nextPageButton.setDisable((currentPage + 1) * booksPerPage >= totalBooks);
+            nextPageButton.setDisable(!books.hasNext());
             nextPageButton.setOnAction(e -> {
-                if ((currentPage + 1) * booksPerPage < totalBooks) {
+                if (books.hasNext()) {
                     currentPage++;
                     handleSearch(query, vbox);
                 }
@@ -794,35 +810,44 @@ public class App extends Application {
 
     private void displayInitialHomeContent(VBox vbox) {
         // Display initial popular books
-        List<Book> popularBooks = bookService.getPopularBooks(5);
+        List<BookSummary> popularBooks = bookService.getPopularBooks(5);
         vbox.getChildren().add(new Label("Popular Books"));
         displayBooks(popularBooks, vbox);
     }
 
-    private void displayBooks(List<Book> books, VBox vbox) {
-        for (Book book : books) {
-            VBox bookBox = new VBox(5);
-            Label titleLabel = new Label("Title: " + book.getTitle());
-            ImageView imageView = new ImageView(new Image(book.getImageUrl()));
-            imageView.setFitHeight(100);
-            imageView.setFitWidth(80);
-            Label ratingLabel = new Label(String.format("Rating: %.2f", (double) book.getSumStars() / book.getNumRatings()));
-    
-            bookBox.getChildren().addAll(titleLabel, imageView, ratingLabel);
-            bookBox.setOnMouseClicked(e -> displayBookDetails(book, (Stage) vbox.getScene().getWindow()));
-    
-            vbox.getChildren().add(bookBox);
+    private void displayBooks(List<BookSummary> books, VBox vbox) {
+        for (BookSummary book : books) {
+            vbox.getChildren().add(createBookSummaryBox(book, vbox));
         }
     }
 
+    private VBox createBookSummaryBox(BookSummary book, VBox vbox) {
+        VBox bookBox = new VBox(5);
+        Label titleLabel = new Label("Title: " + book.getTitle());
+        ImageView imageView = new ImageView(new Image(book.getImageUrl()));
+        imageView.setFitHeight(100);
+        imageView.setFitWidth(80);
+        Label ratingLabel = new Label(String.format("Rating: %.2f", book.getAverageRating()));
+
+        bookBox.getChildren().addAll(titleLabel, imageView, ratingLabel);
+        bookBox.setOnMouseClicked(e -> {
+            // List entries only hold a summary: fetch the whole book for the details
+            Book fullBook = bookService.getBookById(book.getId());
+            if (fullBook != null) {
+                displayBookDetails(fullBook, (Stage) vbox.getScene().getWindow());
+            }
+        });
+        return bookBox;
+    }
+
     private void browseAuthorBooks() {
         Stage booksStage = new Stage();
         VBox booksBox = new VBox(10);
         booksBox.setPadding(new Insets(10));
     
-        List<Book> authorBooks = bookService.getBooksByAuthor(currentUser.getId());
-        totalBooks = authorBooks.size();
-        displayBooksWithPagination(authorBooks, booksBox);
+        currentPage = 0;
+        ObjectId authorId = currentUser.getId();
+        displayBooksWithPagination(page -> bookService.getBookSummariesByAuthor(authorId, page, booksPerPage), booksBox);
     
         ScrollPane scrollPane = new ScrollPane(booksBox);
         Scene scene = new Scene(scrollPane, 400, 600);
@@ -830,26 +855,12 @@ public class App extends Application {
         booksStage.show();
     }
     
-    private void displayBooksWithPagination(List<Book> books, VBox vbox) {
+    // Only the current page is fetched: pageLoader is called again whenever the page changes
+    private void displayBooksWithPagination(IntFunction<Page<BookSummary>> pageLoader, VBox vbox) {
         vbox.getChildren().clear();
     
-        int start = currentPage * booksPerPage;
-        int end = Math.min(start + booksPerPage, totalBooks);
-        List<Book> booksToDisplay = books.subList(start, end);
-    
-        for (Book book : booksToDisplay) {
-            VBox bookBox = new VBox(5);
-            Label titleLabel = new Label("Title: " + book.getTitle());
-            ImageView imageView = new ImageView(new Image(book.getImageUrl()));
-            imageView.setFitHeight(100);
-            imageView.setFitWidth(80);
-            Label ratingLabel = new Label(String.format("Rating: %.2f", (double) book.getSumStars() / book.getNumRatings()));
-    
-            bookBox.getChildren().addAll(titleLabel, imageView, ratingLabel);
-            bookBox.setOnMouseClicked(e -> displayBookDetails(book, (Stage) vbox.getScene().getWindow()));
-    
-            vbox.getChildren().add(bookBox);
-        }
+        Page<BookSummary> books = pageLoader.apply(currentPage);
+        displayBooks(books.getItems(), vbox);
     
         // Add pagination controls
         HBox paginationBox = new HBox(10);
@@ -858,16 +869,16 @@ public class App extends Application {
         previousPageButton.setOnAction(e -> {
             if (currentPage > 0) {
                 currentPage--;
-                displayBooksWithPagination(books, vbox);
+                displayBooksWithPagination(pageLoader, vbox);
             }
         });
     
         Button nextPageButton = new Button("Next");
-        nextPageButton.setDisable((currentPage + 1) * booksPerPage >= totalBooks);
+        nextPageButton.setDisable(!books.hasNext());
         nextPageButton.setOnAction(e -> {
-            if ((currentPage + 1) * booksPerPage < totalBooks) {
+            if (books.hasNext()) {
                 currentPage++;
-                displayBooksWithPagination(books, vbox);
+                displayBooksWithPagination(pageLoader, vbox);
             }
         });
     
@@ -953,36 +964,43 @@ public class App extends Application {
     }    
     
     private void displayTop3UsefulReviews(Reviewer reviewer) {
-        List<Document> reviews = procedures.findMostUsefulReviews(reviewer.getNickname());
+        List<Review> reviews = reviewService.findTopUsefulReviewsByUser(reviewer.getId(), 0, 3).getItems();
         Stage reviewsStage = new Stage();
         VBox reviewsBox = new VBox(10);
         reviewsBox.setPadding(new Insets(10));
     
-        for (Document book : reviews) {
-            Label bookTitleLabel = new Label("Book Title: " + book.getString("title"));
+        // Titles of the reviewed books, with a single query
+        Map<ObjectId, String> titles = new HashMap<>();
+        List<ObjectId> bookIds = new ArrayList<>();
+        for (Review review : reviews) {
+            bookIds.add(review.getBookId());
+        }
+        for (BookSummary book : bookService.getBookSummariesByIds(bookIds)) {
+            titles.put(book.getId(), book.getTitle());
+        }
+    
+        for (Review review : reviews) {
+            Label bookTitleLabel = new Label("Book Title: " + titles.getOrDefault(review.getBookId(), ""));
             reviewsBox.getChildren().add(bookTitleLabel);
     
-            List<Document> usefulReviews = (List<Document>) book.get("most_useful_reviews");
-            for (Document review : usefulReviews) {
-                VBox reviewBox = new VBox(5);
-                Label reviewTextLabel = new Label("Review: " + review.getString("review_text"));
-                Label reviewStarsLabel = new Label("Stars: " + review.getInteger("rating"));
-                Label reviewUpVotesLabel = new Label("Upvotes: " + review.getInteger("count_up_votes"));
-                Label reviewDownVotesLabel = new Label("Downvotes: " + review.getInteger("count_down_votes"));
-    
-                reviewBox.getChildren().addAll(reviewTextLabel, reviewStarsLabel, reviewUpVotesLabel, reviewDownVotesLabel);
-    
-                if (currentUser != null) {
-                    Button upvoteButton = new Button("Upvote");
-                    upvoteButton.setOnAction(e -> handleVote(new Review(review), true));
-                    Button downvoteButton = new Button("Downvote");
-                    downvoteButton.setOnAction(e -> handleVote(new Review(review), false));
-                    reviewBox.getChildren().addAll(upvoteButton, downvoteButton);
-                }
+            VBox reviewBox = new VBox(5);
+            Label reviewTextLabel = new Label("Review: " + review.getText());
+            Label reviewStarsLabel = new Label("Stars: " + review.getStars());
+            Label reviewUpVotesLabel = new Label("Upvotes: " + review.getCountUpVote());
+            Label reviewDownVotesLabel = new Label("Downvotes: " + review.getCountDownVote());
     
-                reviewsBox.getChildren().add(reviewBox);
-                reviewsBox.getChildren().add(new Separator());
+            reviewBox.getChildren().addAll(reviewTextLabel, reviewStarsLabel, reviewUpVotesLabel, reviewDownVotesLabel);
+    
+            if (currentUser != null) {
+                Button upvoteButton = new Button("Upvote");
+                upvoteButton.setOnAction(e -> handleVote(review, true));
+                Button downvoteButton = new Button("Downvote");
+                downvoteButton.setOnAction(e -> handleVote(review, false));
+                reviewBox.getChildren().addAll(upvoteButton, downvoteButton);
             }
+    
+            reviewsBox.getChildren().add(reviewBox);
+            reviewsBox.getChildren().add(new Separator());
         }
     
         Scene scene = new Scene(new ScrollPane(reviewsBox), 400, 600);
@@ -1160,7 +1178,6 @@ public class App extends Application {
                         Book updatedBook = bookService.getBookById(book.getId());
     
                         // Update the local book object
-                        book.setReviewIds(updatedBook.getReviewIds());
                         book.setMost10UsefulReviews(updatedBook.getMost10UsefulReviews());
     
                         // Reload the user from the database
@@ -1401,16 +1418,9 @@ public class App extends Application {
         VBox allReviewsBox = new VBox(10);
         allReviewsBox.setPadding(new Insets(10));
     
-        List<Review> reviews = new ArrayList<>();
-        for (ObjectId reviewId : book.getReviewIds()) {
-            Review review = reviewService.findReviewById(reviewId);
-            if (review != null) {
-                reviews.add(review);
-            }
-        }
-    
-        totalReviews = reviews.size();
-        displayReviewsWithPagination(reviews, allReviewsBox);
+        currentPage = 0;
+        ObjectId bookId = book.getId();
+        displayReviewsWithPagination(page -> reviewService.findReviewsByBookId(bookId, page, reviewsPerPage), allReviewsBox);
     
         ScrollPane scrollPane = new ScrollPane(allReviewsBox);
         Scene scene = new Scene(scrollPane, 400, 600);
@@ -1418,14 +1428,13 @@ public class App extends Application {
         reviewsStage.show();
     }
     
-    private void displayReviewsWithPagination(List<Review> reviews, VBox vbox) {
+    // Only the current page is fetched: pageLoader is called again whenever the page changes
+    private void displayReviewsWithPagination(IntFunction<Page<Review>> pageLoader, VBox vbox) {
         vbox.getChildren().clear();
     
-        int start = currentPage * reviewsPerPage;
-        int end = Math.min(start + reviewsPerPage, totalReviews);
-        List<Review> reviewsToDisplay = reviews.subList(start, end);
+        Page<Review> reviews = pageLoader.apply(currentPage);
     
-        for (Review review : reviewsToDisplay) {
+        for (Review review : reviews.getItems()) {
             VBox reviewBox = new VBox(5);
             Label reviewerLabel = new Label("Reviewer: " + review.getNickname());
             Label reviewTextLabel = new Label("Review: " + review.getText());
@@ -1453,16 +1462,16 @@ public class App extends Application {
         previousPageButton.setOnAction(e -> {
             if (currentPage > 0) {
                 currentPage--;
-                displayReviewsWithPagination(reviews, vbox);
+                displayReviewsWithPagination(pageLoader, vbox);
             }
         });
     
         Button nextPageButton = new Button("Next");
-        nextPageButton.setDisable((currentPage + 1) * reviewsPerPage >= totalReviews);
+        nextPageButton.setDisable(!reviews.hasNext());
         nextPageButton.setOnAction(e -> {
-            if ((currentPage + 1) * reviewsPerPage < totalReviews) {
+            if (reviews.hasNext()) {
                 currentPage++;
-                displayReviewsWithPagination(reviews, vbox);
+                displayReviewsWithPagination(pageLoader, vbox);
             }
         });
     
@@ -1540,7 +1549,7 @@ public class App extends Application {
                 new Book.Author[]{new Book.Author(currentUser.getId(), currentUser.getName())}, 
                 genres.toArray(new String[0]), yearInt, 
                 "https://s.gr-assets.com/assets/nophoto/book/111x148-bcc042a9c91a29c1d680899eff700a03.png", 
-                numPagesInt, new ArrayList<>(), null, null
+                numPagesInt, null, null
             );
     
             if (bookService.addBook(newBook, currentUser)) {
@@ -1565,6 +1574,26 @@ public class App extends Application {
         }
     }
 
+    @Override
+    public void stop() {
+        // Apply the pending graph changes, similar users refreshes and famous books repairs, then release the connection pools of both stores
+        if (graphProjector != null) {
+            graphProjector.stop();
+        }
+        if (changeStreamListener != null) {
+            changeStreamListener.stop();
+        }
+        if (reviewDao != null) {
+            reviewDao.close();
+        }
+        FamousBooksDao.closeRepairs();
+        Neo4jConnector.closeInstance();
+        MongoDBConnector.getInstance().close();
+        if (Config.getBoolean("cache.logStatsOnShutdown", false)) {
+            System.out.println("Entity caches: " + CacheRegistry.getInstance().getStats());
+        }
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
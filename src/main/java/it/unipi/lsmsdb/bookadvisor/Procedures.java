@@ -15,22 +15,56 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.AuthorStatsDao;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.FamousBooksDao;
 import it.unipi.lsmsdb.bookadvisor.dao.documentDB.MongoDBConnector;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.SimilarUsersDao;
 import it.unipi.lsmsdb.bookadvisor.dao.graphDB.Neo4jConnector;
+import it.unipi.lsmsdb.bookadvisor.recommendation.BookRecommender;
+import it.unipi.lsmsdb.bookadvisor.utils.Page;
 
 public class Procedures {
+    private static final int RECOMMENDATIONS = 10;
+
     private final Neo4jConnector graphConnector;
     private final MongoDBConnector connector;
+    private final AuthorStatsDao authorStatsDao;
+    private final FamousBooksDao famousBooksDao;
+    private final BookRecommender bookRecommender;
+    private final SimilarUsersDao similarUsersDao;
 
     public Procedures(Neo4jConnector graphConnector, MongoDBConnector connector) {
         this.graphConnector = graphConnector;
         this.connector = connector;
+        this.authorStatsDao = new AuthorStatsDao(connector);
+        this.famousBooksDao = new FamousBooksDao(connector);
+        this.bookRecommender = new BookRecommender(connector);
+        this.similarUsersDao = new SimilarUsersDao(connector);
     }
 
     // Given an author, find the average rating of their books, the number of ratings, and the average rating per country and number of ratings per country
+    // The statistics are read from the author_stats view; an author without a view document yet gets it
+    // built on the first request. Should that fail, they are computed with the aggregation below
     public List<Document> calculateAuthorStats(ObjectId authorId) {
-        // Get the database and collection
-        MongoDatabase database = connector.getDatabase();
+        try {
+            List<Document> stats = authorStatsDao.findBookStats(authorId);
+            if (stats == null) {
+                authorStatsDao.rebuildAuthors(Arrays.asList(authorId));
+                stats = authorStatsDao.findBookStats(authorId);
+            }
+            if (stats != null) {
+                return stats;
+            }
+        } catch (Exception e) {
+            System.err.println("Error reading the author statistics view: " + e.getMessage());
+        }
+        return aggregateAuthorStats(authorId);
+    }
+
+    // Compute the statistics of an author from the books
+    public List<Document> aggregateAuthorStats(ObjectId authorId) {
+        // Get the database and collection, aggregations run on the analytics read profile away from the primary
+        MongoDatabase database = connector.getDatabase(MongoDBConnector.ReadProfile.ANALYTICS);
         MongoCollection<Document> collection = database.getCollection("books");
 
         // Define the aggregation pipeline stages
@@ -57,7 +91,7 @@ public class Procedures {
                                                 new Document("$cond", Arrays.asList(
                                                         new Document("$eq", Arrays.asList("$$rating.v.cardinality", 0)),
                                                         0,
-                                                        new Document("$divide", Arrays.asList("$$rating.v.sum_stars", "$$rating.v.cardinality"))
+                                                        new Document("$divide", Arrays.asList("$$rating.v.sumRating", "$$rating.v.cardinality"))
                                                 )))
                                                 .append("numRatings", "$$rating.v.cardinality")))))),
                 // AddFields stage for detailedCountryRatings
@@ -92,112 +126,67 @@ public class Procedures {
     }
 
     // Find the most famous books for a given genre in each country
-    public List<Document> findMostFamousBooks(String genre) {
-        MongoDatabase database = connector.getDatabase();
-        MongoCollection<Document> collection = database.getCollection("books");
-
-        AggregateIterable<Document> iterable = collection.aggregate(Arrays.asList(
-            new Document("$match", new Document("genre", genre)),
-            new Document("$project", new Document("title", 1)
-                    .append("ratings_agg_by_nat", 1)
-                    .append("image_url", 1)
-                    .append("countryReviews", new Document("$map", new Document("input",
-                            new Document("$objectToArray", "$ratings_agg_by_nat"))
-                            .append("as", "country")
-                            .append("in", new Document("country", "$$country.k")
-                                    .append("numReviews", "$$country.v.cardinality")
-                                    .append("bookTitle", "$title")
-                                    .append("bookId", "$_id")
-                                    .append("imageUrl", "$image_url"))))),
-            new Document("$unwind", "$countryReviews"),
-            new Document("$group", new Document("_id", "$countryReviews.country")
-                    .append("mostFamousBook", new Document("$first", new Document("title", "$countryReviews.bookTitle")
-                            .append("bookId", "$countryReviews.bookId")
-                            .append("numReviews", "$countryReviews.numReviews")
-                            .append("imageUrl", "$countryReviews.imageUrl")))
-                    .append("maxNumReviews", new Document("$max", "$countryReviews.numReviews"))),
-            new Document("$project", new Document("_id", 0)
-                    .append("country", "$_id")
-                    .append("title", "$mostFamousBook.title")
-                    .append("bookId", "$mostFamousBook.bookId")
-                    .append("numReviews", "$mostFamousBook.numReviews")
-                    .append("imageUrl", "$mostFamousBook.imageUrl"))
-        ));
-
-        List<Document> results = new ArrayList<>();
-        for (Document doc : iterable) {
-            results.add(doc);
+    // Served from the famous_books index, one page of countries at a time. A genre missing from the index
+    // is built on the first request
+    public Page<Document> findMostFamousBooks(String genre, int page, int pageSize) {
+        if (!famousBooksDao.hasGenre(genre)) {
+            famousBooksDao.rebuildGenre(genre);
         }
-
-        return results;
+        return famousBooksDao.findMostFamousBooks(genre, page, pageSize);
     }
 
-    // Find the top useful reviews for a given user
-    public List<Document> findMostUsefulReviews(String username) {
-        MongoDatabase database = connector.getDatabase();
-        MongoCollection<Document> collection = database.getCollection("books");
-
-        AggregateIterable<Document> iterable = collection.aggregate(Arrays.asList(
-            new Document("$match", new Document("most_10_useful_reviews.nickname", username)),
-            new Document("$addFields", new Document("most_10_useful_reviews",
-                    new Document("$map", new Document("input", "$most_10_useful_reviews")
-                            .append("as", "review")
-                            .append("in", new Document("$mergeObjects", Arrays.asList(
-                                    "$$review",
-                                    new Document("usefulness",
-                                            new Document("$subtract", Arrays.asList("$$review.count_up_votes", "$$review.count_down_votes")))
-                            )))))),
-            new Document("$addFields", new Document("most_10_useful_reviews",
-                    new Document("$filter", new Document("input", "$most_10_useful_reviews")
-                            .append("as", "review")
-                            .append("cond", new Document("$eq", Arrays.asList("$$review.nickname", username)))))),
-            new Document("$addFields", new Document("most_10_useful_reviews",
-                    new Document("$slice", Arrays.asList(
-                            new Document("$sortArray",
-                                    new Document("input", "$most_10_useful_reviews")
-                                            .append("sortBy", new Document("usefulness", -1))),
-                            3)))),
-            new Document("$project", new Document("_id", 0)
-                    .append("title", "$title")
-                    .append("author", "$authors")
-                    .append("language", "$language")
-                    .append("year", "$year")
-                    .append("genre", "$genre")
-                    .append("image_url", "$image_url")
-                    .append("num_pages", "$num_pages")
-                    .append("most_useful_reviews", "$most_10_useful_reviews"))
-        ));
-
-        List<Document> results = new ArrayList<>();
-        for (Document doc : iterable) {
-            results.add(doc);
+    /**
+     * Recommends books similar to those the user rated well, in the languages spoken by the user.
+     * The item-item neighbours precomputed by RecommendationEngine are merged by BookRecommender.
+     * When the user has no neighbours to start from (no ratings yet, or the engine never ran),
+     * falls back to the books rated by the users they follow.
+     *
+     * @param userId The ObjectId of the user for whom the recommendations are generated.
+     * @param languages A list of languages spoken by the user, used to filter the books.
+     * @return A list of maps where each map holds the recommended book (id and title) and its score.
+     *         The list contains up to 10 entries, best first.
+     */
+    public List<Map<String, Object>> getBookRecommendation(ObjectId userId, List<String> languages) {
+        List<Document> recommended = bookRecommender.recommend(userId, languages, RECOMMENDATIONS);
+        if (recommended.isEmpty()) {
+            return getFollowedUsersRatings(userId, languages);
+        }
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (Document doc : recommended) {
+            Map<String, Object> book = new HashMap<>();
+            book.put("id", doc.getObjectId("bookId").toHexString());
+            book.put("title", doc.getString("title"));
+            book.put("language", doc.getString("language"));
+            Map<String, Object> recommendation = new HashMap<>();
+            recommendation.put("book", book);
+            recommendation.put("score", doc.getDouble("score"));
+            results.add(recommendation);
         }
-
         return results;
     }
 
     /**
      * Retrieves a list of books rated by users followed by a given user,
      * filtered by the languages spoken by the user, and orders the results 
-     * in descending order of rating, returning up to 5 results.
+     * in descending order of rating, returning up to 10 results.
      *
      * @param userId The ObjectId of the user for whom the recommendations are generated.
      * @param languages A list of languages spoken by the user, used to filter the books.
      * @return A list of maps where each map represents a followed user, a book they rated,
-     *         and the rating score. The list contains up to 5 entries.
+     *         and the rating score. The list contains up to 10 entries.
      */
-    public List<Map<String, Object>> getBookRecommendation(ObjectId userId, List<String> languages) {
-        try (Session session = graphConnector.getSession()) {
-            String cypherQuery =
-                    "MATCH (user:User {id: $userId})-[:FOLLOWS]->(other:User)-[r:RATES]->(book:Book) " +
-                    "WHERE book.language IN $languages " +
-                    "RETURN other, book, r.rating AS rating " +
-                    "ORDER BY rating DESC " +
-                    "LIMIT 10";
-    
-            Result result = session.run(cypherQuery, 
-                                        parameters("userId", userId.toHexString(), 
-                                                   "languages", languages));
+    public List<Map<String, Object>> getFollowedUsersRatings(ObjectId userId, List<String> languages) {
+        String cypherQuery =
+                "MATCH (user:User {id: $userId})-[:FOLLOWS]->(other:User)-[r:RATES]->(book:Book) " +
+                "WHERE book.language IN $languages " +
+                "RETURN other, book, r.rating AS rating " +
+                "ORDER BY rating DESC " +
+                "LIMIT 10";
+
+        return graphConnector.read(tx -> {
+            Result result = tx.run(cypherQuery, 
+                                   parameters("userId", userId.toHexString(), 
+                                              "languages", languages));
             List<Map<String, Object>> results = new ArrayList<>();
     
             while (result.hasNext()) {
@@ -210,32 +199,60 @@ public class Procedures {
             }
     
             return results;
-        }
+        });
     }
 
     
+    /**
+     * Retrieves the 10 most similar users to a given user, precomputed by SimilarUsersEngine with
+     * MinHash/LSH and kept up to date by SimilarUsersDao as ratings arrive. A user the engine has
+     * not computed yet is computed with the graph query below.
+     *
+     * @param userId The ObjectId of the user for whom the similar users are being identified.
+     * @return A list of maps where each map represents a similar user, their nickname,
+     *         the titles of common books both users rated similarly, and the count of such common books.
+     *         The list contains up to 10 entries, ordered by the number of common books in descending order.
+     */
+    public List<Map<String, Object>> getUsersWithSimilarTastes(ObjectId userId) {
+        List<Document> similarUsers = similarUsersDao.findSimilarUsers(userId);
+        if (similarUsers == null) {
+            return findUsersWithSimilarTastesInGraph(userId);
+        }
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (Document doc : similarUsers) {
+            Map<String, Object> userWithSimilarTastes = new HashMap<>();
+            userWithSimilarTastes.put("user2", doc.getObjectId("userId").toHexString());
+            userWithSimilarTastes.put("Nickname", doc.getString("nickname"));
+            userWithSimilarTastes.put("commonBooks", doc.getList("commonBooks", String.class));
+            userWithSimilarTastes.put("commonBookCount", doc.getInteger("commonBookCount"));
+            results.add(userWithSimilarTastes);
+        }
+        return results;
+    }
+
     /**
      * Retrieves a list of the 10 most similar users to a given user based on the number of commonly 
      * rated books with a rating difference of less than 2. The users must share at least one favorite genre.
+     * Expands every co-rater of every book the user rated: prefer getUsersWithSimilarTastes.
      *
      * @param userId The ObjectId of the user for whom the similar users are being identified.
      * @return A list of maps where each map represents a similar user, their nickname, 
      *         the titles of common books both users rated similarly, and the count of such common books. 
      *         The list contains up to 10 entries, ordered by the number of common books in descending order.
      */
-    public List<Map<String, Object>> getUsersWithSimilarTastes(ObjectId userId) {
-        try (Session session = graphConnector.getSession()) {
-            String cypherQuery =
-                    "MATCH (u1:User {id: $userId})-[r1:RATES]->(book:Book)<-[r2:RATES]-(u2:User) " +
-                    "WHERE id(u1) <> id(u2) " +
-                    "AND abs(r1.rating - r2.rating) < 2 " +
-                    "WITH u1, u2, COLLECT(DISTINCT book.title) AS commonBooks, COUNT(book) AS commonBookCount " +
-                    "WHERE SIZE([genre IN u1.favouriteGenres WHERE genre IN u2.favouriteGenres]) > 0 " +
-                    "RETURN u2.id AS user2, u2.nickname AS Nickname, commonBooks, commonBookCount " +
-                    "ORDER BY commonBookCount DESC " +
-                    "LIMIT 10";
-    
-            Result result = session.run(cypherQuery, parameters("userId", userId.toHexString()));
+    public List<Map<String, Object>> findUsersWithSimilarTastesInGraph(ObjectId userId) {
+        String cypherQuery =
+                "MATCH (u1:User {id: $userId})-[r1:RATES]->(book:Book)<-[r2:RATES]-(u2:User) " +
+                "WHERE id(u1) <> id(u2) " +
+                "AND abs(r1.rating - r2.rating) < 2 " +
+                "WITH u1, u2, COLLECT(DISTINCT book.title) AS commonBooks, COUNT(book) AS commonBookCount " +
+                "WHERE SIZE([genre IN u1.favouriteGenres WHERE genre IN u2.favouriteGenres]) > 0 " +
+                "RETURN u2.id AS user2, u2.nickname AS Nickname, commonBooks, commonBookCount " +
+                "ORDER BY commonBookCount DESC " +
+                "LIMIT 10";
+
+        return graphConnector.read(tx -> {
+            Result result = tx.run(cypherQuery, parameters("userId", userId.toHexString()));
             List<Map<String, Object>> results = new ArrayList<>();
     
             while (result.hasNext()) {
@@ -249,7 +266,7 @@ public class Procedures {
             }
     
             return results;
-        }
+        });
     }
     
     /**
@@ -262,17 +279,16 @@ public class Procedures {
      *         and the follow relationship ID. The list contains up to 5 entries, ordered by the follow relationship ID in descending order.
      */
 
-    //CREATE INDEX user_id_index FOR (u:User) ON (u.id);
     public List<Map<String, Object>> getRecentFollowsByFollowedUsers(ObjectId userId) {
-        try (Session session = graphConnector.getSession()) {
-            String cypherQuery =
-                    "MATCH (user:User {id: $userId})-[:FOLLOWS]->(followed:User)-[f:FOLLOWS]->(other:User) " +
-                    "RETURN followed.id AS followedUserId, followed.nickname AS followedUserNickname, " +
-                    "other.id AS followedUserFollowId, other.nickname AS followedUserFollowNickname, id(f) AS followId " +
-                    "ORDER BY id(f) DESC " +
-                    "LIMIT 6";
-    
-            Result result = session.run(cypherQuery, parameters("userId", userId.toHexString()));
+        String cypherQuery =
+                "MATCH (user:User {id: $userId})-[:FOLLOWS]->(followed:User)-[f:FOLLOWS]->(other:User) " +
+                "RETURN followed.id AS followedUserId, followed.nickname AS followedUserNickname, " +
+                "other.id AS followedUserFollowId, other.nickname AS followedUserFollowNickname, id(f) AS followId " +
+                "ORDER BY id(f) DESC " +
+                "LIMIT 6";
+
+        return graphConnector.read(tx -> {
+            Result result = tx.run(cypherQuery, parameters("userId", userId.toHexString()));
             List<Map<String, Object>> results = new ArrayList<>();
     
             while (result.hasNext()) {
@@ -287,7 +303,7 @@ public class Procedures {
             }
     
             return results;
-        }
+        });
     }
 
     /**
@@ -300,15 +316,15 @@ public class Procedures {
      *         The list contains up to 5 entries, ordered by the rating ID in descending order.
      */
     public List<Map<String, Object>> getRecentRatingsByFollowedUsers(ObjectId userId) {
-        try (Session session = graphConnector.getSession()) {
-            String cypherQuery =
-                    "MATCH (user:User {id: $userId})-[:FOLLOWS]->(followed:User)-[r:RATES]->(book:Book) " +
-                    "RETURN followed.id AS followedUserId, followed.nickname AS followedUserNickname, " +
-                    "book.id AS bookId, book.title AS bookTitle, r.rating AS rating, id(r) AS ratingId " +
-                    "ORDER BY id(r) DESC " +
-                    "LIMIT 6";
-    
-            Result result = session.run(cypherQuery, parameters("userId", userId.toHexString()));
+        String cypherQuery =
+                "MATCH (user:User {id: $userId})-[:FOLLOWS]->(followed:User)-[r:RATES]->(book:Book) " +
+                "RETURN followed.id AS followedUserId, followed.nickname AS followedUserNickname, " +
+                "book.id AS bookId, book.title AS bookTitle, r.rating AS rating, id(r) AS ratingId " +
+                "ORDER BY id(r) DESC " +
+                "LIMIT 6";
+
+        return graphConnector.read(tx -> {
+            Result result = tx.run(cypherQuery, parameters("userId", userId.toHexString()));
             List<Map<String, Object>> results = new ArrayList<>();
     
             while (result.hasNext()) {
@@ -324,7 +340,7 @@ public class Procedures {
             }
     
             return results;
-        }
+        });
     }
     
 }
@@ -0,0 +1,81 @@
+package it.unipi.lsmsdb.bookadvisor.cache;
+
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The entity caches shared by every DAO instance, one per collection, sized from the cache.* settings.
+// The caches hold the raw BSON of the documents: every read decodes a fresh Document, so callers
+// that modify the returned entities can never alter the cached copy.
+public class CacheRegistry {
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+    private static CacheRegistry instance;
+
+    private final EntityCache<ObjectId, RawBsonDocument> books;
+    private final EntityCache<ObjectId, RawBsonDocument> users;
+    private final EntityCache<ObjectId, RawBsonDocument> reviews;
+
+    private CacheRegistry() {
+        books = create("books", 2000);
+        users = create("users", 1000);
+        reviews = create("reviews", 5000);
+    }
+
+    public static synchronized CacheRegistry getInstance() {
+        if (instance == null) {
+            instance = new CacheRegistry();
+        }
+        return instance;
+    }
+
+    public EntityCache<ObjectId, RawBsonDocument> books() {
+        return books;
+    }
+
+    public EntityCache<ObjectId, RawBsonDocument> users() {
+        return users;
+    }
+
+    public EntityCache<ObjectId, RawBsonDocument> reviews() {
+        return reviews;
+    }
+
+    public List<EntityCache<ObjectId, RawBsonDocument>> all() {
+        List<EntityCache<ObjectId, RawBsonDocument>> caches = new ArrayList<>();
+        caches.add(books);
+        caches.add(users);
+        caches.add(reviews);
+        return caches;
+    }
+
+    public void invalidateAll() {
+        for (EntityCache<ObjectId, RawBsonDocument> cache : all()) {
+            cache.invalidateAll();
+        }
+    }
+
+    public List<EntityCache.Stats> getStats() {
+        List<EntityCache.Stats> stats = new ArrayList<>();
+        for (EntityCache<ObjectId, RawBsonDocument> cache : all()) {
+            stats.add(cache.getStats());
+        }
+        return stats;
+    }
+
+    // Decode a cached document into a new, independent Document
+    public static Document decode(RawBsonDocument raw) {
+        return raw != null ? raw.decode(DOCUMENT_CODEC) : null;
+    }
+
+    private static EntityCache<ObjectId, RawBsonDocument> create(String name, int defaultSize) {
+        return new EntityCache<>(name,
+                Config.getInt("cache." + name + ".maxSize", defaultSize),
+                Config.getLong("cache." + name + ".ttlSeconds", 300) * 1000);
+    }
+}
@@ -0,0 +1,159 @@
+package it.unipi.lsmsdb.bookadvisor.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+// Bounded read-through cache with LRU eviction and a time to live per entry.
+// Null values (missing entities) are not cached. Loads run outside of the lock, so a slow
+// query does not block the hits of other threads.
+public class EntityCache<K, V> {
+    private final String name;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    // Bumped by every invalidation: a value loaded while it changed may be stale and is not stored
+    private long invalidations = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public EntityCache(String name, int maxSize, long ttlMillis) {
+        if (maxSize <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Cache size and time to live must be positive");
+        }
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        // Access order: the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > EntityCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Get the cached value of the key, loading and caching it on a miss
+    public V get(K key, Function<K, V> loader) {
+        long version;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > System.currentTimeMillis()) {
+                    hits++;
+                    return entry.value;
+                }
+                entries.remove(key);
+            }
+            misses++;
+            version = invalidations;
+        }
+
+        V value = loader.apply(key);
+        if (value != null) {
+            synchronized (this) {
+                if (version == invalidations) {
+                    entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+                }
+            }
+        }
+        return value;
+    }
+
+    // Get the cached value of the key without loading it
+    public synchronized V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || entry.expiresAt <= System.currentTimeMillis()) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (value != null) {
+            entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        invalidations++;
+        entries.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations++;
+        entries.clear();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(name, entries.size(), hits, misses, evictions);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Counters of a cache at a point in time
+    public static class Stats {
+        private final String name;
+        private final int size;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        Stats(String name, int size, long hits, long misses, long evictions) {
+            this.name = name;
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{size=%d, hits=%d, misses=%d, evictions=%d, hitRate=%.2f}",
+                    name, size, hits, misses, evictions, getHitRate());
+        }
+    }
+}
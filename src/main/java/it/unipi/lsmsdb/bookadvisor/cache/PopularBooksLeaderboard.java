@@ -0,0 +1,129 @@
+package it.unipi.lsmsdb.bookadvisor.cache;
+
+import it.unipi.lsmsdb.bookadvisor.model.book.BookSummary;
+
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+// In-process leaderboard of the most rated books, shared by every BookDao instance.
+// It is loaded once with a top-N query and then kept up to date from the rating updates,
+// so the home page does not query the books collection on every render.
+// Invariant: when the board is full it holds the top "capacity" books, i.e. no book outside
+// of it has more ratings than its last entry.
+public class PopularBooksLeaderboard {
+    private static final int DEFAULT_CAPACITY = 50;
+    private static PopularBooksLeaderboard instance;
+
+    private static final Comparator<BookSummary> BY_NUM_RATINGS_DESC =
+            (b1, b2) -> Integer.compare(b2.getNumRatings(), b1.getNumRatings());
+
+    private final int capacity;
+    private final List<BookSummary> entries = new ArrayList<>();
+    private boolean loaded = false;
+    // True when the whole catalogue fits in the board, so no book outside of it exists
+    private boolean complete = false;
+
+    private PopularBooksLeaderboard(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public static synchronized PopularBooksLeaderboard getInstance() {
+        if (instance == null) {
+            instance = new PopularBooksLeaderboard(DEFAULT_CAPACITY);
+        }
+        return instance;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Get the top books, loading the board with the given top-N query if it is not loaded
+    public synchronized List<BookSummary> getTop(int limit, Supplier<List<BookSummary>> loader) {
+        if (!loaded) {
+            entries.clear();
+            entries.addAll(loader.get());
+            entries.sort(BY_NUM_RATINGS_DESC);
+            complete = entries.size() < capacity;
+            loaded = true;
+        }
+        return new ArrayList<>(entries.subList(0, Math.min(limit, entries.size())));
+    }
+
+    // Apply the new rating counters of a book to the board
+    public synchronized void onRatingChanged(BookSummary book) {
+        if (!loaded) {
+            return;
+        }
+
+        int index = indexOf(book.getId());
+        int floor = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).getNumRatings();
+
+        if (index >= 0) {
+            // A book that drops below the last entry may be overtaken by books we do not hold
+            if (!complete && book.getNumRatings() < floor) {
+                invalidate();
+                return;
+            }
+            entries.set(index, book);
+        } else if (complete || book.getNumRatings() > floor) {
+            entries.add(book);
+        } else {
+            return;
+        }
+
+        entries.sort(BY_NUM_RATINGS_DESC);
+        if (entries.size() > capacity) {
+            entries.subList(capacity, entries.size()).clear();
+            complete = false;
+        }
+    }
+
+    // Apply a counter change known only as a delta (bulk rating updates do not return the documents)
+    public synchronized void onRatingDelta(ObjectId bookId, int starsDelta, int countDelta) {
+        if (!loaded || (starsDelta == 0 && countDelta == 0)) {
+            return;
+        }
+
+        int index = indexOf(bookId);
+        if (index < 0) {
+            // A book we do not hold may now deserve a place, but its counters are unknown
+            if (countDelta > 0) {
+                invalidate();
+            }
+            return;
+        }
+
+        // getTop hands out the stored summaries, which are read without the lock: replace, never mutate them
+        BookSummary old = entries.get(index);
+        BookSummary book = new BookSummary(old.getId(), old.getTitle(), old.getAuthors(), old.getImageUrl(),
+                old.getSumStars() + starsDelta, old.getNumRatings() + countDelta);
+        int floor = entries.get(entries.size() - 1).getNumRatings();
+        if (!complete && book.getNumRatings() < floor) {
+            invalidate();
+            return;
+        }
+        entries.set(index, book);
+        entries.sort(BY_NUM_RATINGS_DESC);
+    }
+
+    // Drop the board: it is reloaded with a top-N query on the next read
+    public synchronized void invalidate() {
+        entries.clear();
+        loaded = false;
+        complete = false;
+    }
+
+    private int indexOf(ObjectId bookId) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).getId().equals(bookId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,294 @@
+package it.unipi.lsmsdb.bookadvisor.dao;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.MongoDBConnector;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.UserDao;
+import it.unipi.lsmsdb.bookadvisor.dao.graphDB.Neo4jConnector;
+import it.unipi.lsmsdb.bookadvisor.utils.SchemaMigrations;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Declares the indexes and constraints the queries of the DAOs rely on and makes sure they exist
+// on both stores. Every statement is idempotent, so it is safe to run at every startup.
+public class IndexManager {
+    // MongoDB indexes, one entry per lookup field used by the DAOs
+    private static final List<MongoIndex> MONGO_INDEXES = Arrays.asList(
+        // Also serves the equality lookups on user_id alone. Reviews written before the usefulness field
+        // existed would sort last: the field is filled in before the index is first built
+        new MongoIndex("reviews", "reviews_user_usefulness_id",
+                Indexes.compoundIndex(Indexes.ascending("user_id"), Indexes.descending("usefulness"), Indexes.ascending("_id")))
+                .withBackfill(SchemaMigrations::migrateReviewUsefulness),
+        new MongoIndex("reviews", "reviews_book_id", Indexes.ascending("book_id")),
+        new MongoIndex("books", "books_authors_id", Indexes.ascending("authors.id")),
+        new MongoIndex("books", "books_genre", Indexes.ascending("genre")),
+        new MongoIndex("books", "books_num_ratings", Indexes.descending("numRatings")),
+        new MongoIndex("books", "books_title_text", Indexes.text("title")),
+        // Backlog of the projector in commit order, with the retry time of each event
+        new MongoIndex("outbox", "outbox_status_next_attempt", Indexes.ascending("status", "_id", "next_attempt_at")),
+        new MongoIndex("famous_books", "famous_books_genre_country", Indexes.ascending("genre", "country"),
+                new IndexOptions().unique(true)),
+        // LSH candidates of the incremental refresh, and the lists a user appears in
+        new MongoIndex("similar_users", "similar_users_bands", Indexes.ascending("bands")),
+        new MongoIndex("similar_users", "similar_users_users_id", Indexes.ascending("users.userId")),
+        new MongoIndex("users", "users_nickname_lower", Indexes.ascending("nickname_lower"),
+                new IndexOptions().unique(true).partialFilterExpression(Filters.exists("nickname_lower"))),
+        new MongoIndex("users", "users_nickname_ci", Indexes.ascending("nickname"),
+                new IndexOptions().collation(UserDao.NICKNAME_COLLATION))
+    );
+
+    // Neo4j uniqueness constraints: they also back every MATCH/MERGE on the id property with an index
+    private static final List<GraphConstraint> GRAPH_CONSTRAINTS = Arrays.asList(
+        new GraphConstraint("user_id_unique", "User", "id"),
+        new GraphConstraint("book_id_unique", "Book", "id")
+    );
+
+    private final MongoDatabase database;
+    private final Neo4jConnector graphConnector;
+    // "collection.name" of the indexes created by this instance: they have not served anything yet
+    private final Set<String> createdIndexes = new HashSet<>();
+    // Same for the constraints created by this instance, whose backing indexes have the constraint's name
+    private final Set<String> createdGraphIndexes = new HashSet<>();
+
+    public IndexManager(MongoDBConnector connector, Neo4jConnector graphConnector) {
+        this.database = connector.getDatabase();
+        this.graphConnector = graphConnector;
+    }
+
+    // Create whatever is missing on both stores and report indexes that are never used
+    public void ensureAll() {
+        ensureMongoIndexes();
+        ensureGraphConstraints();
+        reportUnusedMongoIndexes();
+        reportUnusedGraphIndexes();
+    }
+
+    public void ensureMongoIndexes() {
+        for (MongoIndex index : MONGO_INDEXES) {
+            try {
+                MongoCollection<Document> collection = database.getCollection(index.collection);
+                // An index with the same keys under another name would make createIndex fail with "already exists"
+                String existing = findEquivalentIndex(collection, index);
+                if (existing == null) {
+                    System.out.println("Missing index " + index.collection + "." + index.name + ", creating it");
+                    if (index.backfill != null) {
+                        index.backfill.accept(database);
+                    }
+                    collection.createIndex(index.keys, index.options);
+                    createdIndexes.add(index.collection + "." + index.name);
+                } else if (!existing.equals(index.name)) {
+                    System.out.println("Index " + index.collection + "." + index.name + " already exists as " + existing);
+                }
+            } catch (Exception e) {
+                System.err.println("Error ensuring index " + index.collection + "." + index.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void ensureGraphConstraints() {
+        createdGraphIndexes.addAll(ensureGraphConstraints(graphConnector));
+    }
+
+    // Also used by the dataset loader, which only talks to Neo4j. Returns the names of the constraints it created
+    public static Set<String> ensureGraphConstraints(Neo4jConnector graphConnector) {
+        Set<String> created = new HashSet<>();
+        try (Session session = graphConnector.getSession()) {
+            Set<String> existing = new HashSet<>();
+            Result result = session.run("SHOW CONSTRAINTS YIELD name");
+            while (result.hasNext()) {
+                existing.add(result.next().get("name").asString());
+            }
+            for (GraphConstraint constraint : GRAPH_CONSTRAINTS) {
+                if (!existing.contains(constraint.name)) {
+                    System.out.println("Missing constraint " + constraint.name + ", creating it");
+                    created.add(constraint.name);
+                }
+                session.run(constraint.toCypher()).consume();
+            }
+        } catch (Exception e) {
+            System.err.println("Error ensuring Neo4j constraints: " + e.getMessage());
+        }
+        return created;
+    }
+
+    // Indexes that have not served a single operation since the last server restart are candidates for removal.
+    // The ones just created are left out: they cannot have been used yet
+    public List<String> reportUnusedMongoIndexes() {
+        List<String> unused = new ArrayList<>();
+        for (String collectionName : collectionNames()) {
+            try {
+                MongoCollection<Document> collection = database.getCollection(collectionName);
+                for (Document stats : collection.aggregate(Arrays.asList(new Document("$indexStats", new Document())))) {
+                    String name = stats.getString("name");
+                    Document accesses = stats.get("accesses", Document.class);
+                    Number ops = accesses != null ? accesses.get("ops", Number.class) : null;
+                    if (!"_id_".equals(name) && !createdIndexes.contains(collectionName + "." + name)
+                            && (ops == null || ops.longValue() == 0)) {
+                        unused.add(collectionName + "." + name);
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Error reading index statistics of " + collectionName + ": " + e.getMessage());
+            }
+        }
+        if (!unused.isEmpty()) {
+            System.out.println("Unused MongoDB indexes: " + unused);
+        }
+        return unused;
+    }
+
+    // The indexes backing the constraints just created are left out, as on MongoDB
+    public List<String> reportUnusedGraphIndexes() {
+        List<String> unused = new ArrayList<>();
+        try (Session session = graphConnector.getSession()) {
+            Result result = session.run("SHOW INDEXES YIELD name, type, readCount WHERE type <> 'LOOKUP' RETURN name, readCount");
+            while (result.hasNext()) {
+                org.neo4j.driver.Record record = result.next();
+                String name = record.get("name").asString();
+                if (!createdGraphIndexes.contains(name)
+                        && (record.get("readCount").isNull() || record.get("readCount").asLong() == 0)) {
+                    unused.add(name);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Error reading Neo4j index statistics: " + e.getMessage());
+        }
+        if (!unused.isEmpty()) {
+            System.out.println("Unused Neo4j indexes: " + unused);
+        }
+        return unused;
+    }
+
+    // Name of the existing index with the same name, or with the same keys and collation, null if there is none
+    private static String findEquivalentIndex(MongoCollection<Document> collection, MongoIndex index) {
+        BsonDocument keys = index.keys.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+        for (Document existing : collection.listIndexes()) {
+            String name = existing.getString("name");
+            if (index.name.equals(name) || (sameKeys(keys, existing)
+                    && sameCollation(index.options.getCollation(), existing.get("collation", Document.class)))) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private static boolean sameKeys(BsonDocument keys, Document existing) {
+        Document existingKeys = existing.get("key", Document.class);
+        if (existingKeys == null) {
+            return false;
+        }
+        if (existingKeys.containsKey("_fts")) {
+            // Text indexes are listed as {_fts: "text", _ftsx: 1}: the indexed fields are the keys of the weights
+            Set<String> textFields = new HashSet<>();
+            for (Map.Entry<String, BsonValue> key : keys.entrySet()) {
+                if (key.getValue().isString() && "text".equals(key.getValue().asString().getValue())) {
+                    textFields.add(key.getKey());
+                }
+            }
+            Document weights = existing.get("weights", Document.class);
+            return !textFields.isEmpty() && weights != null && weights.keySet().equals(textFields);
+        }
+        if (keys.size() != existingKeys.size()) {
+            return false;
+        }
+        // The order of the fields matters, and the server may report 1 as 1.0
+        Iterator<Map.Entry<String, Object>> existingIterator = existingKeys.entrySet().iterator();
+        for (Map.Entry<String, BsonValue> key : keys.entrySet()) {
+            Map.Entry<String, Object> existingKey = existingIterator.next();
+            if (!key.getKey().equals(existingKey.getKey())) {
+                return false;
+            }
+            BsonValue value = key.getValue();
+            Object existingValue = existingKey.getValue();
+            boolean sameValue = value.isNumber()
+                    ? existingValue instanceof Number && value.asNumber().doubleValue() == ((Number) existingValue).doubleValue()
+                    : value.isString() && value.asString().getValue().equals(existingValue);
+            if (!sameValue) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Indexes on the same keys with a different collation are distinct indexes
+    private static boolean sameCollation(Collation collation, Document existing) {
+        if (collation == null || existing == null) {
+            return collation == null && existing == null;
+        }
+        return collation.getLocale().equals(existing.getString("locale"))
+                && (collation.getStrength() == null
+                    || collation.getStrength().getIntRepresentation() == existing.getInteger("strength", 3));
+    }
+
+    private static Set<String> collectionNames() {
+        Set<String> names = new HashSet<>();
+        for (MongoIndex index : MONGO_INDEXES) {
+            names.add(index.collection);
+        }
+        return names;
+    }
+
+    // A MongoDB index declaration
+    static class MongoIndex {
+        final String collection;
+        final String name;
+        final Bson keys;
+        final IndexOptions options;
+        // Migration that fills the indexed fields of existing documents, run when the index is created
+        Consumer<MongoDatabase> backfill;
+
+        MongoIndex(String collection, String name, Bson keys) {
+            this(collection, name, keys, new IndexOptions());
+        }
+
+        MongoIndex(String collection, String name, Bson keys, IndexOptions options) {
+            this.collection = collection;
+            this.name = name;
+            this.keys = keys;
+            // Named once here: the declarations are shared, so ensureMongoIndexes never changes them
+            this.options = options.name(name);
+        }
+
+        MongoIndex withBackfill(Consumer<MongoDatabase> backfill) {
+            this.backfill = backfill;
+            return this;
+        }
+    }
+
+    // A Neo4j uniqueness constraint declaration
+    static class GraphConstraint {
+        final String name;
+        final String label;
+        final String property;
+
+        GraphConstraint(String name, String label, String property) {
+            this.name = name;
+            this.label = label;
+            this.property = property;
+        }
+
+        String toCypher() {
+            return "CREATE CONSTRAINT " + name + " IF NOT EXISTS FOR (n:" + label + ") REQUIRE n." + property + " IS UNIQUE";
+        }
+    }
+}
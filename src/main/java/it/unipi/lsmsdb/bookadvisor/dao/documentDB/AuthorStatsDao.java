@@ -0,0 +1,291 @@
+package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import it.unipi.lsmsdb.bookadvisor.model.book.Book;
+import it.unipi.lsmsdb.bookadvisor.model.book.BookSummary;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Materialised view of the rating statistics of every author, one document per author in author_stats:
+// { _id: authorId, numRatings, sumStars, countries: { <country>: { sumRating, cardinality } },
+//   books: { <bookId>: { title, numRatings, sumStars, countries: { <country>: { sumRating, cardinality } } } },
+//   version, rebuildId }
+// It is incremented by BookDao together with the book counters, inside the same transaction when there is one,
+// so the author dashboard is a single read by _id. rebuildAll recomputes it from the books, to repair it.
+// Every increment also bumps version. A rebuild reads the versions before the books and replaces a document
+// only if its version did not change meanwhile; otherwise an increment may be missing from what it read,
+// and the author is rebuilt again. An author being built for the first time has a pending placeholder,
+// so that the increments that arrive meanwhile bump its version too instead of being skipped.
+public class AuthorStatsDao {
+    private static final String COLLECTION_NAME = "author_stats";
+    // Authors rebuilt by each query of rebuildAll
+    private static final int REBUILD_CHUNK_SIZE = 100;
+    // Rebuilds of an author that keeps changing before giving up, the next rebuild repairs it
+    private static final int MAX_REBUILD_ATTEMPTS = 5;
+
+    private MongoCollection<Document> collection;
+    private MongoCollection<Document> books;
+
+    public AuthorStatsDao(MongoDBConnector connector) {
+        MongoDatabase database = connector.getDatabase();
+        collection = database.getCollection(COLLECTION_NAME);
+        // Rebuilds must not read the books from a lagging secondary
+        books = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY).getCollection("books");
+    }
+
+    // Apply the rating change of a book to the statistics of its authors.
+    // The book carries the authors and the title, as returned by the rating update. session may be null.
+    // Authors without a statistics document are skipped: their document is built whole by rebuildAuthors
+    public void applyRatingDelta(ClientSession session, BookSummary book, BookDao.RatingDelta delta) {
+        if (book.getAuthors() == null || book.getAuthors().length == 0) {
+            return;
+        }
+        String bookPath = "books." + book.getId().toHexString();
+        String country = delta.getNationality();
+        Bson update = Updates.combine(
+            Updates.inc("numRatings", delta.getCountDelta()),
+            Updates.inc("sumStars", delta.getRating()),
+            Updates.inc("countries." + country + ".sumRating", delta.getRating()),
+            Updates.inc("countries." + country + ".cardinality", delta.getCountDelta()),
+            Updates.set(bookPath + ".title", book.getTitle()),
+            Updates.inc(bookPath + ".numRatings", delta.getCountDelta()),
+            Updates.inc(bookPath + ".sumStars", delta.getRating()),
+            Updates.inc(bookPath + ".countries." + country + ".sumRating", delta.getRating()),
+            Updates.inc(bookPath + ".countries." + country + ".cardinality", delta.getCountDelta()),
+            Updates.inc("version", 1)
+        );
+
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        for (Book.Author author : book.getAuthors()) {
+            updates.add(new UpdateOneModel<>(Filters.eq("_id", author.getId()), update));
+        }
+        if (session != null) {
+            collection.bulkWrite(session, updates, new BulkWriteOptions().ordered(false));
+        } else {
+            collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        }
+    }
+
+    // The per-book statistics of an author, in the shape of Procedures.calculateAuthorStats, sorted by title.
+    // Returns null when the author has no statistics document yet, or while it is built for the first time
+    public List<Document> findBookStats(ObjectId authorId) {
+        Document stats = collection.find(Filters.eq("_id", authorId)).projection(Projections.include("books", "pending")).first();
+        if (stats == null || stats.getBoolean("pending", false)) {
+            return null;
+        }
+        List<Document> results = new ArrayList<>();
+        Document bookStats = stats.get("books", Document.class);
+        if (bookStats != null) {
+            for (Map.Entry<String, Object> entry : bookStats.entrySet()) {
+                Document book = (Document) entry.getValue();
+                int numRatings = intValue(book, "numRatings");
+                results.add(new Document("_id", new ObjectId(entry.getKey()))
+                    .append("bookTitle", book.getString("title"))
+                    .append("bookRating", average(intValue(book, "sumStars"), numRatings))
+                    .append("bookTotalRatings", numRatings)
+                    .append("bookCountryDetails", countryDetails(book.get("countries", Document.class))));
+            }
+        }
+        results.sort((b1, b2) -> compareTitles(b1.getString("bookTitle"), b2.getString("bookTitle")));
+        return results;
+    }
+
+    // Recompute the statistics of the given authors from their books, again for the authors that
+    // changed during the rebuild. Throws IllegalStateException if some still changed after MAX_REBUILD_ATTEMPTS
+    public void rebuildAuthors(Collection<ObjectId> authorIds) {
+        List<ObjectId> ids = new ArrayList<>(new HashSet<>(authorIds));
+        for (int attempt = 0; attempt < MAX_REBUILD_ATTEMPTS && !ids.isEmpty(); attempt++) {
+            ids = rebuildOnce(ids);
+        }
+        if (!ids.isEmpty()) {
+            throw new IllegalStateException("Statistiche degli autori modificate durante il ricalcolo: " + ids);
+        }
+    }
+
+    // Rebuild the given authors and return those whose document changed in the meantime
+    private List<ObjectId> rebuildOnce(List<ObjectId> ids) {
+        // Placeholders for the authors built for the first time: increments then bump their version
+        List<WriteModel<Document>> placeholders = new ArrayList<>();
+        for (ObjectId authorId : ids) {
+            placeholders.add(new UpdateOneModel<>(Filters.eq("_id", authorId), Updates.setOnInsert("pending", true),
+                new UpdateOptions().upsert(true)));
+        }
+        collection.bulkWrite(placeholders, new BulkWriteOptions().ordered(false));
+
+        // The versions are read before the books: an increment not seen in the books bumps them later
+        Map<ObjectId, Number> versions = new HashMap<>();
+        for (Document doc : collection.find(Filters.in("_id", ids)).projection(Projections.include("version"))) {
+            versions.put(doc.getObjectId("_id"), doc.get("version", Number.class));
+        }
+
+        ObjectId rebuildId = new ObjectId();
+        Map<ObjectId, Document> stats = new LinkedHashMap<>();
+        for (ObjectId authorId : ids) {
+            stats.put(authorId, emptyStats(authorId));
+        }
+        for (Document book : books.find(Filters.in("authors.id", ids))
+                .projection(Projections.include("title", "authors", "sumStars", "numRatings", "ratings_agg_by_nat"))) {
+            for (Document author : book.getList("authors", Document.class)) {
+                Document authorStats = stats.get(author.getObjectId("id"));
+                if (authorStats != null) {
+                    addBook(authorStats, book);
+                }
+            }
+        }
+
+        List<WriteModel<Document>> replacements = new ArrayList<>();
+        for (Map.Entry<ObjectId, Document> entry : stats.entrySet()) {
+            Number version = versions.get(entry.getKey());
+            Document doc = entry.getValue().append("version", version != null ? version : 0).append("rebuildId", rebuildId);
+            // A missing version matches only a document that still has none
+            replacements.add(new ReplaceOneModel<>(
+                Filters.and(Filters.eq("_id", entry.getKey()), Filters.eq("version", version)), doc));
+        }
+        if (collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false)).getMatchedCount() == replacements.size()) {
+            return new ArrayList<>();
+        }
+
+        List<ObjectId> changed = new ArrayList<>();
+        for (Document doc : collection.find(Filters.and(Filters.in("_id", ids), Filters.ne("rebuildId", rebuildId)))
+                .projection(Projections.include("_id"))) {
+            changed.add(doc.getObjectId("_id"));
+        }
+        return changed;
+    }
+
+    // Recompute the statistics of every author, a chunk of authors per query, on the given number of threads
+    public long rebuildAll(int threads) throws InterruptedException {
+        List<ObjectId> authorIds = new ArrayList<>();
+        for (ObjectId authorId : books.distinct("authors.id", ObjectId.class)) {
+            authorIds.add(authorId);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        AtomicLong rebuilt = new AtomicLong();
+        try {
+            for (int from = 0; from < authorIds.size(); from += REBUILD_CHUNK_SIZE) {
+                List<ObjectId> chunk = authorIds.subList(from, Math.min(from + REBUILD_CHUNK_SIZE, authorIds.size()));
+                results.add(pool.submit(() -> {
+                    rebuildAuthors(chunk);
+                    System.out.println("author-stats: " + rebuilt.addAndGet(chunk.size()) + " authors rebuilt");
+                }));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        long failed = 0;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (Exception e) {
+                failed++;
+                System.err.println("author-stats: chunk failed: " + e.getMessage());
+            }
+        }
+        if (failed > 0) {
+            System.err.println("author-stats: " + failed + " chunks failed, run the step again");
+        }
+        return rebuilt.get();
+    }
+
+    private static Document emptyStats(ObjectId authorId) {
+        return new Document("_id", authorId)
+            .append("numRatings", 0)
+            .append("sumStars", 0)
+            .append("countries", new Document())
+            .append("books", new Document());
+    }
+
+    private static void addBook(Document authorStats, Document book) {
+        int numRatings = book.getInteger("numRatings", 0);
+        int sumStars = book.getInteger("sumStars", 0);
+        Document bookCountries = new Document();
+        Document ratingsByCountry = book.get("ratings_agg_by_nat", Document.class);
+        if (ratingsByCountry != null) {
+            for (Map.Entry<String, Object> entry : ratingsByCountry.entrySet()) {
+                Document rating = (Document) entry.getValue();
+                int sumRating = intValue(rating, "sumRating");
+                int cardinality = intValue(rating, "cardinality");
+                bookCountries.append(entry.getKey(), new Document("sumRating", sumRating).append("cardinality", cardinality));
+
+                Document countries = authorStats.get("countries", Document.class);
+                Document total = countries.get(entry.getKey(), Document.class);
+                if (total == null) {
+                    total = new Document("sumRating", 0).append("cardinality", 0);
+                    countries.append(entry.getKey(), total);
+                }
+                total.put("sumRating", total.getInteger("sumRating") + sumRating);
+                total.put("cardinality", total.getInteger("cardinality") + cardinality);
+            }
+        }
+
+        authorStats.get("books", Document.class).append(book.getObjectId("_id").toHexString(), new Document("title", book.getString("title"))
+            .append("numRatings", numRatings)
+            .append("sumStars", sumStars)
+            .append("countries", bookCountries));
+        authorStats.put("numRatings", authorStats.getInteger("numRatings") + numRatings);
+        authorStats.put("sumStars", authorStats.getInteger("sumStars") + sumStars);
+    }
+
+    private static List<Document> countryDetails(Document countries) {
+        List<Document> details = new ArrayList<>();
+        if (countries == null) {
+            return details;
+        }
+        for (Map.Entry<String, Object> entry : countries.entrySet()) {
+            Document country = (Document) entry.getValue();
+            int cardinality = intValue(country, "cardinality");
+            if (cardinality == 0) {
+                continue;
+            }
+            double averageRating = average(intValue(country, "sumRating"), cardinality);
+            details.add(new Document("country", entry.getKey())
+                .append("averageRating", Math.round(averageRating * 100) / 100.0)
+                .append("numRatings", cardinality));
+        }
+        return details;
+    }
+
+    private static double average(int sum, int count) {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    private static int intValue(Document doc, String key) {
+        Number value = doc.get(key, Number.class);
+        return value != null ? value.intValue() : 0;
+    }
+
+    private static int compareTitles(String t1, String t2) {
+        if (t1 == null || t2 == null) {
+            return t1 == null ? (t2 == null ? 0 : -1) : 1;
+        }
+        return t1.compareTo(t2);
+    }
+}
@@ -1,35 +1,79 @@
 package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
 
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.Updates;
 
+import it.unipi.lsmsdb.bookadvisor.cache.CacheRegistry;
+import it.unipi.lsmsdb.bookadvisor.cache.EntityCache;
+import it.unipi.lsmsdb.bookadvisor.cache.PopularBooksLeaderboard;
 import it.unipi.lsmsdb.bookadvisor.model.book.Book;
+import it.unipi.lsmsdb.bookadvisor.model.book.BookSummary;
+import it.unipi.lsmsdb.bookadvisor.utils.Page;
 
 import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
-import java.util.regex.Pattern;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.ArrayList;
 
 public class BookDao {
     private static final String COLLECTION_NAME = "books";
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    // Maximum number of ranked results a title search can return
+    private static final int SEARCH_LIMIT = 50;
+    // Fields decoded by BookSummary
+    private static final Bson SUMMARY_PROJECTION = Projections.include("title", "authors", "image_url", "sumStars", "numRatings");
     private MongoCollection<Document> collection;
+    private MongoCollection<RawBsonDocument> rawCollection;
+    // Same collection read from the primary, for the reads that follow a write
+    private MongoCollection<Document> primaryCollection;
+    private EntityCache<ObjectId, RawBsonDocument> cache;
+    private AuthorStatsDao authorStats;
+    private FamousBooksDao famousBooks;
     private UserDao userDao;
 
     // Constructor
     public BookDao(MongoDBConnector connector) {
         MongoDatabase database = connector.getDatabase();
         collection = database.getCollection(COLLECTION_NAME);
+        rawCollection = collection.withDocumentClass(RawBsonDocument.class);
+        primaryCollection = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY).getCollection(COLLECTION_NAME);
+        cache = CacheRegistry.getInstance().books();
+        authorStats = new AuthorStatsDao(connector);
+        famousBooks = new FamousBooksDao(connector);
         this.userDao = new UserDao(connector);
     }
 
-    // Find a book by its ID
+    // Find a book by its ID, served from the entity cache when possible
     public Book findBookById(ObjectId id) {
-        Document doc = collection.find(Filters.eq("_id", id)).first();
+        Document doc = findDocumentById(id);
         if (doc != null) {
             return new Book(doc);
         } else {
@@ -37,22 +81,39 @@ public class BookDao {
         }
     }
 
-    // Find books by title
+    // Find the books whose title best matches the given words, using the text index on title.
+    // Only whole (stemmed) words match: a partial word such as "Harr" finds nothing
     public List<Book> findBooksByTitle(String title) {
         List<Book> books = new ArrayList<>();
-        Pattern regex = Pattern.compile(title, Pattern.CASE_INSENSITIVE);
-        for (Document doc : collection.find(Filters.regex("title", regex))) {
+        if (isBlank(title)) {
+            return books;
+        }
+        for (Document doc : collection.find(Filters.text(title))
+                .sort(Sorts.metaTextScore("score"))
+                .limit(SEARCH_LIMIT)) {
             books.add(new Book(doc));
         }
         return books;
     }
 
+    // Find one page of books by title, best matches first
+    public Page<Book> findBooksByTitle(String title, int page, int pageSize) {
+        return findSearchPage(title, null, Book::new, page, pageSize);
+    }
+
+    // Find one page of book summaries by title, best matches first
+    public Page<BookSummary> findBookSummariesByTitle(String title, int page, int pageSize) {
+        return findSearchPage(title, SUMMARY_PROJECTION, BookSummary::new, page, pageSize);
+    }
+
     // Insert a new book into the database
     public boolean addBook(Book book) {
         try {
             BsonValue insertedId = collection.insertOne(book.toDocument()).getInsertedId();
             ObjectId bookid = insertedId.asObjectId().getValue();
             book.setId(bookid);
+            PopularBooksLeaderboard.getInstance().invalidate();
+            refreshAuthorStats(book.getAuthors());
         } catch (Exception e) {
             System.err.println("Errore durante l'inserimento del libro: " + e.getMessage());
             return false;
@@ -64,6 +125,8 @@ public class BookDao {
         try {
             // Insert the book with the given ID
             collection.insertOne(book.toDocument().append("_id", bookId));
+            PopularBooksLeaderboard.getInstance().invalidate();
+            refreshAuthorStats(book.getAuthors());
         } catch (Exception e) {
             System.err.println("Errore durante l'inserimento del libro: " + e.getMessage());
             return false;
@@ -71,33 +134,33 @@ public class BookDao {
         return true;
     }
 
-    public boolean addReviewToBook(ObjectId bookId, ObjectId reviewId) {
-        try {
-            collection.updateOne(Filters.eq("_id", bookId), Updates.addToSet("review_ids", reviewId));
-        } catch (Exception e) {
-            System.err.println("Errore durante l'aggiunta della recensione al libro: " + e.getMessage());
-            return false;
+    // Insert a new book inside the given transaction. Errors are propagated so that the transaction aborts
+    public void addBook(ClientSession session, Book book) {
+        if (book.getId() == null) {
+            book.setId(new ObjectId());
         }
-        // Update the list of reviews
-        
-        
-        return true;
+        collection.insertOne(session, book.toDocument().append("_id", book.getId()));
     }
 
-    public boolean removeReviewFromBook(ObjectId bookId, ObjectId reviewId) {
-        try {
-            collection.updateOne(Filters.eq("_id", bookId), Updates.pull("review_ids", reviewId));
-        } catch (Exception e) {
-            System.err.println("Errore durante la rimozione della recensione dal libro: " + e.getMessage());
-            return false;
-        }
-        return true;
+    // To be called once a transaction that inserted a book has committed
+    public void bookAdded(Book book) {
+        PopularBooksLeaderboard.getInstance().invalidate();
+        refreshAuthorStats(book.getAuthors());
     }
 
     // Update a book's information
     public boolean updateBook(ObjectId bookId, Document book){
         try {
-            collection.updateOne(Filters.eq("_id", bookId), new Document("$set", book));
+            Document before = collection.findOneAndUpdate(Filters.eq("_id", bookId), new Document("$set", book),
+                    new FindOneAndUpdateOptions().projection(Projections.include("authors")));
+            cache.invalidate(bookId);
+            PopularBooksLeaderboard.getInstance().invalidate();
+            // The title or the authors may have changed: rebuild the statistics of the old and new authors
+            if (before != null) {
+                List<ObjectId> authorIds = authorIds(before);
+                authorIds.addAll(authorIds(book));
+                refreshAuthorStats(authorIds);
+            }
         } catch (Exception e) {
             System.err.println("Errore durante l'aggiornamento del libro: " + e.getMessage());
             return false;
@@ -108,7 +171,14 @@ public class BookDao {
     // Delete a book from the database
     public boolean deleteBook(ObjectId id) {
         try {
-            collection.deleteOne(Filters.eq("_id", id));
+            Document deleted = collection.findOneAndDelete(Filters.eq("_id", id),
+                    new FindOneAndDeleteOptions().projection(Projections.include("authors")));
+            cache.invalidate(id);
+            PopularBooksLeaderboard.getInstance().invalidate();
+            if (deleted != null) {
+                refreshAuthorStats(authorIds(deleted));
+                famousBooks.bookRemoved(id);
+            }
         } catch (Exception e) {
             System.err.println("Errore durante la cancellazione del libro: " + e.getMessage());
             return false;
@@ -116,12 +186,47 @@ public class BookDao {
         return true;
     }
 
+    private void refreshAuthorStats(Book.Author[] authors) {
+        List<ObjectId> authorIds = new ArrayList<>();
+        if (authors != null) {
+            for (Book.Author author : authors) {
+                authorIds.add(author.getId());
+            }
+        }
+        refreshAuthorStats(authorIds);
+    }
+
+    private void refreshAuthorStats(List<ObjectId> authorIds) {
+        try {
+            authorStats.rebuildAuthors(authorIds);
+        } catch (Exception e) {
+            System.err.println("Errore durante l'aggiornamento delle statistiche degli autori: " + e.getMessage());
+        }
+    }
+
+    private static List<ObjectId> authorIds(Document book) {
+        List<ObjectId> authorIds = new ArrayList<>();
+        Object authors = book.get("authors");
+        if (authors instanceof List) {
+            for (Object author : (List<?>) authors) {
+                if (author instanceof Document && ((Document) author).getObjectId("id") != null) {
+                    authorIds.add(((Document) author).getObjectId("id"));
+                }
+            }
+        }
+        return authorIds;
+    }
+
     // Get book by its ID
     public Book getBookById(ObjectId id) {
-        Document doc = collection.find(Filters.eq("_id", id)).first();
+        Document doc = findDocumentById(id);
         return new Book(doc);
     }
 
+    private Document findDocumentById(ObjectId id) {
+        return CacheRegistry.decode(cache.get(id, key -> rawCollection.find(Filters.eq("_id", key)).first()));
+    }
+
     // Get all books by the title
     public List<Book> getBooksByTitle(String title) {
         List<Book> books = new ArrayList<>();
@@ -140,6 +245,21 @@ public class BookDao {
         return books;
     }
 
+    // Get one page of books of a given genre
+    public Page<Book> getBooksByGenre(String genre, int page, int pageSize) {
+        return findPage(Filters.in("genre", genre), page, pageSize);
+    }
+
+    // Get one page of book summaries of a given genre
+    public Page<BookSummary> getBookSummariesByGenre(String genre, int page, int pageSize) {
+        return findPage(Filters.in("genre", genre), SUMMARY_PROJECTION, BookSummary::new, page, pageSize);
+    }
+
+    // Lazily stream the books of a given genre, fetching batchSize documents per round trip
+    public Stream<Book> streamBooksByGenre(String genre, int batchSize) {
+        return stream(Filters.in("genre", genre), batchSize);
+    }
+
     // Get all books of a given year
     public List<Book> getBooksByYear(int year) {
         List<Book> books = new ArrayList<>();
@@ -158,22 +278,36 @@ public class BookDao {
         return books;
     }
 
+    // Get one page of books of a given language
+    public Page<Book> getBooksByLanguage(String language, int page, int pageSize) {
+        return findPage(Filters.eq("language", language), page, pageSize);
+    }
+
     // Get all books with a certain rating
     public List<Book> getBooksByRating(double targetRating, boolean greaterOrEqual) {
         List<Book> books = new ArrayList<>();
-        for (Document doc : collection.find()) {
-            int sumStars = doc.getInteger("sumStars", 0); // 0 is a default value if sumStars is not present
-            int numRatings = doc.getInteger("numRatings", 0); // 0 is a default value if numRatings is not present
-    
-            double currentRating = (numRatings > 0) ? (double) sumStars / numRatings : 0.0;
-    
-            if ((greaterOrEqual && currentRating >= targetRating) || (!greaterOrEqual && currentRating < targetRating)) {
-                books.add(new Book(doc));
-            }
+        for (Document doc : collection.find(ratingFilter(targetRating, greaterOrEqual)).batchSize(DEFAULT_BATCH_SIZE)) {
+            books.add(new Book(doc));
         }
         return books;
     }
 
+    // Get one page of books with a certain rating
+    public Page<Book> getBooksByRating(double targetRating, boolean greaterOrEqual, int page, int pageSize) {
+        return findPage(ratingFilter(targetRating, greaterOrEqual), page, pageSize);
+    }
+
+    // Server-side rating filter: the average sumStars / numRatings (0 for unrated books) is compared
+    // to the target by the database, so only the matching documents are sent back
+    private static Bson ratingFilter(double targetRating, boolean greaterOrEqual) {
+        Document averageRating = new Document("$cond", Arrays.asList(
+                new Document("$gt", Arrays.asList(new Document("$ifNull", Arrays.asList("$numRatings", 0)), 0)),
+                new Document("$divide", Arrays.asList(new Document("$ifNull", Arrays.asList("$sumStars", 0)), "$numRatings")),
+                0
+        ));
+        return Filters.expr(new Document(greaterOrEqual ? "$gte" : "$lt", Arrays.asList(averageRating, targetRating)));
+    }
+
     // Get all books with a certain number of pages
     public List<Book> getBooksByNumPages(int numPages, boolean greaterOrEqual) {
         List<Book> books = new ArrayList<>();
@@ -199,6 +333,33 @@ public class BookDao {
         return books;
     }
     
+    // Get one page of books by author ID
+    public Page<Book> getBooksByAuthor(ObjectId authorId, int page, int pageSize) {
+        return findPage(Filters.eq("authors.id", authorId), page, pageSize);
+    }
+
+    // Get one page of book summaries by author ID
+    public Page<BookSummary> getBookSummariesByAuthor(ObjectId authorId, int page, int pageSize) {
+        return findPage(Filters.eq("authors.id", authorId), SUMMARY_PROJECTION, BookSummary::new, page, pageSize);
+    }
+
+    // Get the summaries of the given books with a single query
+    public List<BookSummary> getBookSummariesByIds(Collection<ObjectId> ids) {
+        List<BookSummary> books = new ArrayList<>();
+        if (ids.isEmpty()) {
+            return books;
+        }
+        for (Document doc : collection.find(Filters.in("_id", ids)).projection(SUMMARY_PROJECTION)) {
+            books.add(new BookSummary(doc));
+        }
+        return books;
+    }
+
+    // Lazily stream the books of an author, fetching batchSize documents per round trip
+    public Stream<Book> streamBooksByAuthor(ObjectId authorId, int batchSize) {
+        return stream(Filters.eq("authors.id", authorId), batchSize);
+    }
+
     // Get books by multiple genres with AND/OR logic
     public List<Book> getBooksByGenres(List<String> genres, boolean isAnd) {
         List<Book> books = new ArrayList<>();
@@ -214,40 +375,59 @@ public class BookDao {
         return books;
     }
 
-    // Update the rating of a book
+    // Get one page of books by multiple genres with AND/OR logic
+    public Page<Book> getBooksByGenres(List<String> genres, boolean isAnd, int page, int pageSize) {
+        Bson filter = isAnd ? Filters.all("genre", genres) : Filters.in("genre", genres);
+        return findPage(filter, page, pageSize);
+    }
+
+    // A change to the rating counters of a book: +stars when a review is added, -stars when it is removed
+    public static class RatingDelta {
+        private final ObjectId bookId;
+        private final int rating;
+        private final String nationality;
+
+        public RatingDelta(ObjectId bookId, int rating, String nationality) {
+            this.bookId = bookId;
+            this.rating = rating;
+            this.nationality = nationality;
+        }
+
+        public ObjectId getBookId() {
+            return bookId;
+        }
+
+        public int getRating() {
+            return rating;
+        }
+
+        public String getNationality() {
+            return nationality;
+        }
+
+        // A positive rating adds a review to the counters, a negative one removes it
+        public int getCountDelta() {
+            return rating > 0 ? 1 : -1;
+        }
+    }
+
+    // Update the rating of a book.
+    // The counters are incremented by the server in a single atomic round trip, so concurrent
+    // reviews on the same book cannot overwrite each other
     public boolean updateBookRating(ObjectId bookId, int rating, String nationality) {
         try {
-            Document book = collection.find(Filters.eq("_id", bookId)).first();
+            RatingDelta delta = new RatingDelta(bookId, rating, nationality);
+            Document book = collection.findOneAndUpdate(
+                Filters.eq("_id", bookId),
+                ratingUpdate(delta),
+                new FindOneAndUpdateOptions().projection(famousBooksProjection(nationality)).returnDocument(ReturnDocument.AFTER)
+            );
             if (book != null) {
-                int sumStars = book.getInteger("sumStars", 0) + rating;
-                int numRatings = book.getInteger("numRatings", 0);
-                numRatings = rating > 0 ? numRatings + 1 : numRatings - 1;
-
-                // Aggiornamento del sumRating e della cardinality in base alla nazionalità
-                Document ratingsAggByNat = book.get("ratings_agg_by_nat", Document.class);
-                if (ratingsAggByNat == null) {
-                    ratingsAggByNat = new Document();
-                }
-                Document nationalityStats = ratingsAggByNat.get(nationality, Document.class);
-
-                // Se non esiste la statistica per la nazionalità, la inizializzo
-                if (nationalityStats == null) {
-                    nationalityStats = new Document("sumRating", 0).append("cardinality", 0);
-                }
-
-                int sumRatingByNat = nationalityStats.getInteger("sumRating", 0) + rating;
-                int cardinality = nationalityStats.getInteger("cardinality", 0);
-                cardinality = rating > 0 ? cardinality + 1 : cardinality - 1;
-
-                collection.updateOne(
-                    Filters.eq("_id", bookId),
-                    Updates.combine(
-                        Updates.set("sumStars", sumStars),
-                        Updates.set("numRatings", numRatings),
-                        Updates.set("ratings_agg_by_nat." + nationality + ".sumRating", sumRatingByNat),
-                        Updates.set("ratings_agg_by_nat." + nationality + ".cardinality", cardinality)
-                    )
-                );
+                cache.invalidate(bookId);
+                applyToAuthorStats(new BookSummary(book), delta);
+                applyToFamousBooks(book, netReviewsByCountry(Arrays.asList(delta)));
+                // Keep the popular books leaderboard in sync with the new counters
+                PopularBooksLeaderboard.getInstance().onRatingChanged(new BookSummary(book));
                 return true;
             }
         } catch (Exception e) {
@@ -256,6 +436,144 @@ public class BookDao {
         return false;
     }
 
+    // Update the rating of a book inside the given transaction and return its new counters.
+    // The leaderboard is not touched: call ratingCommitted with the result once the transaction has committed
+    public BookSummary updateBookRating(ClientSession session, RatingDelta delta) {
+        Document book = collection.findOneAndUpdate(
+            session,
+            Filters.eq("_id", delta.getBookId()),
+            ratingUpdate(delta),
+            new FindOneAndUpdateOptions().projection(SUMMARY_PROJECTION).returnDocument(ReturnDocument.AFTER)
+        );
+        if (book == null) {
+            throw new IllegalStateException("Libro non trovato: " + delta.getBookId());
+        }
+        BookSummary summary = new BookSummary(book);
+        // The author statistics commit or abort together with the book counters
+        authorStats.applyRatingDelta(session, summary, delta);
+        return summary;
+    }
+
+    // Outside of a transaction the book counters are already written: a failure here is only reported,
+    // the author-stats migration step repairs the view
+    private void applyToAuthorStats(BookSummary book, RatingDelta delta) {
+        try {
+            authorStats.applyRatingDelta(null, book, delta);
+        } catch (Exception e) {
+            System.err.println("Errore durante l'aggiornamento delle statistiche degli autori: " + e.getMessage());
+        }
+    }
+
+    // Publish the counters of a committed rating change to the entity cache and the popular books leaderboard,
+    // and the committed deltas to the most famous books index
+    public void ratingCommitted(BookSummary book, RatingDelta... deltas) {
+        cache.invalidate(book.getId());
+        PopularBooksLeaderboard.getInstance().onRatingChanged(book);
+        if (deltas.length > 0) {
+            Map<String, Integer> netReviews = netReviewsByCountry(Arrays.asList(deltas));
+            Document doc = primaryCollection.find(Filters.eq("_id", book.getId()))
+                    .projection(famousBooksProjection(netReviews.keySet())).first();
+            if (doc != null) {
+                applyToFamousBooks(doc, netReviews);
+            }
+        }
+    }
+
+    // Fields read by the most famous books index, with the reviews of the given countries only
+    private static Bson famousBooksProjection(String... countries) {
+        return famousBooksProjection(Arrays.asList(countries));
+    }
+
+    private static Bson famousBooksProjection(Collection<String> countries) {
+        List<String> fields = new ArrayList<>(Arrays.asList("title", "authors", "image_url", "sumStars", "numRatings", "genre"));
+        for (String country : countries) {
+            fields.add("ratings_agg_by_nat." + country);
+        }
+        return Projections.include(fields);
+    }
+
+    // Change in the number of reviews per country: an edit within the same country cancels out
+    private static Map<String, Integer> netReviewsByCountry(List<RatingDelta> deltas) {
+        Map<String, Integer> net = new HashMap<>();
+        for (RatingDelta delta : deltas) {
+            net.merge(delta.getNationality(), delta.getCountDelta(), Integer::sum);
+        }
+        return net;
+    }
+
+    // The index is derived data: a failure is only reported, the famous-books migration step repairs it
+    private void applyToFamousBooks(Document book, Map<String, Integer> netReviews) {
+        for (Map.Entry<String, Integer> country : netReviews.entrySet()) {
+            if (country.getValue() == 0) {
+                continue;
+            }
+            try {
+                famousBooks.ratingChanged(book, country.getKey(), country.getValue() < 0);
+            } catch (Exception e) {
+                System.err.println("Errore durante l'aggiornamento dei libri più famosi: " + e.getMessage());
+            }
+        }
+    }
+
+    // Apply many rating changes with a single unordered bulk write
+    public boolean updateBookRatings(List<RatingDelta> deltas) {
+        if (deltas.isEmpty()) {
+            return true;
+        }
+        try {
+            List<UpdateOneModel<Document>> updates = new ArrayList<>();
+            Map<ObjectId, int[]> totals = new HashMap<>();
+            for (RatingDelta delta : deltas) {
+                updates.add(new UpdateOneModel<>(Filters.eq("_id", delta.getBookId()), ratingUpdate(delta)));
+                int[] total = totals.computeIfAbsent(delta.getBookId(), id -> new int[2]);
+                total[0] += delta.getRating();
+                total[1] += delta.getCountDelta();
+            }
+            BulkWriteResult result = collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            for (ObjectId bookId : totals.keySet()) {
+                cache.invalidate(bookId);
+            }
+            // The bulk write returns no documents: load the books for the author statistics and the famous books index
+            Map<ObjectId, List<RatingDelta>> deltasByBook = new HashMap<>();
+            Set<String> countries = new HashSet<>();
+            for (RatingDelta delta : deltas) {
+                deltasByBook.computeIfAbsent(delta.getBookId(), id -> new ArrayList<>()).add(delta);
+                countries.add(delta.getNationality());
+            }
+            for (Document doc : primaryCollection.find(Filters.in("_id", deltasByBook.keySet())).projection(famousBooksProjection(countries))) {
+                BookSummary summary = new BookSummary(doc);
+                List<RatingDelta> bookDeltas = deltasByBook.get(summary.getId());
+                for (RatingDelta delta : bookDeltas) {
+                    applyToAuthorStats(summary, delta);
+                }
+                applyToFamousBooks(doc, netReviewsByCountry(bookDeltas));
+            }
+
+            PopularBooksLeaderboard leaderboard = PopularBooksLeaderboard.getInstance();
+            for (Map.Entry<ObjectId, int[]> total : totals.entrySet()) {
+                leaderboard.onRatingDelta(total.getKey(), total.getValue()[0], total.getValue()[1]);
+            }
+            return result.getMatchedCount() == updates.size();
+        } catch (Exception e) {
+            System.err.println("Errore durante l'aggiornamento dei rating dei libri: " + e.getMessage());
+            for (RatingDelta delta : deltas) {
+                cache.invalidate(delta.getBookId());
+            }
+            PopularBooksLeaderboard.getInstance().invalidate();
+            return false;
+        }
+    }
+
+    private static Bson ratingUpdate(RatingDelta delta) {
+        String natPath = "ratings_agg_by_nat." + delta.getNationality();
+        return Updates.combine(
+            Updates.inc("sumStars", delta.getRating()),
+            Updates.inc("numRatings", delta.getCountDelta()),
+            Updates.inc(natPath + ".sumRating", delta.getRating()),
+            Updates.inc(natPath + ".cardinality", delta.getCountDelta())
+        );
+    }
+
     // Methods to update the most useful reviews of a book according to the book document structure
     public void addMostUsefulReview(ObjectId bookId, Document review) {
         try {
@@ -263,6 +581,7 @@ public class BookDao {
                 Filters.eq("_id", bookId), 
                 Updates.push("most_10_useful_reviews", review)
             );
+            cache.invalidate(bookId);
         } catch (Exception e) {
             System.err.println("Errore durante l'aggiornamento delle recensioni più utili del libro: " + e.getMessage());
         }
@@ -275,6 +594,120 @@ public class BookDao {
         }
         return books;
     }
-}
 
+    // Get the top N books by number of ratings, served from the in-process leaderboard
+    public List<BookSummary> getPopularBookSummaries(int limit) {
+        PopularBooksLeaderboard leaderboard = PopularBooksLeaderboard.getInstance();
+        if (limit > leaderboard.getCapacity()) {
+            return findTopBooksByNumRatings(limit);
+        }
+        return leaderboard.getTop(limit, () -> findTopBooksByNumRatings(leaderboard.getCapacity()));
+    }
+
+    // Sorted, limited and projected top-N query backed by the numRatings index
+    public List<BookSummary> findTopBooksByNumRatings(int limit) {
+        List<BookSummary> books = new ArrayList<>();
+        for (Document doc : collection.find()
+                .projection(SUMMARY_PROJECTION)
+                .sort(Sorts.descending("numRatings"))
+                .limit(limit)
+                .batchSize(limit)) {
+            books.add(new BookSummary(doc));
+        }
+        return books;
+    }
+
+    // Get one page of the whole catalogue
+    public Page<Book> getAllBooks(int page, int pageSize) {
+        return findPage(new Document(), page, pageSize);
+    }
+
+    // Keyset paging over the whole catalogue: the books whose _id follows lastId (null for the first page).
+    // Unlike skip/limit, the cost of a page does not grow with its position in the collection
+    public List<Book> getAllBooksAfter(ObjectId lastId, int pageSize) {
+        validatePaging(0, pageSize);
+        Bson filter = lastId == null ? new Document() : Filters.gt("_id", lastId);
+        List<Book> books = new ArrayList<>();
+        for (Document doc : collection.find(filter).sort(Sorts.ascending("_id")).limit(pageSize).batchSize(pageSize)) {
+            books.add(new Book(doc));
+        }
+        return books;
+    }
+
+    // Lazily stream the whole catalogue, fetching batchSize documents per round trip.
+    // The stream holds a server cursor: close it (try-with-resources) when done
+    public Stream<Book> streamAllBooks(int batchSize) {
+        return stream(new Document(), batchSize);
+    }
+
+    public Stream<Book> streamAllBooks() {
+        return streamAllBooks(DEFAULT_BATCH_SIZE);
+    }
+
+    // Fetch a single page with one round trip, ordered by _id so that pages are stable.
+    // One extra document is requested to know whether a next page exists
+    private Page<Book> findPage(Bson filter, int page, int pageSize) {
+        return findPage(filter, null, Book::new, page, pageSize);
+    }
+
+    private <T> Page<T> findPage(Bson filter, Bson projection, Function<Document, T> decoder, int page, int pageSize) {
+        return findPage(filter, projection, Sorts.ascending("_id"), decoder, page, pageSize);
+    }
+
+    private <T> Page<T> findPage(Bson filter, Bson projection, Bson sort, Function<Document, T> decoder, int page, int pageSize) {
+        validatePaging(page, pageSize);
+        List<T> books = new ArrayList<>();
+        for (Document doc : collection.find(filter)
+                .projection(projection)
+                .sort(sort)
+                .skip(page * pageSize)
+                .limit(pageSize + 1)
+                .batchSize(pageSize + 1)) {
+            books.add(decoder.apply(doc));
+        }
+        return Page.fromLookAhead(books, page, pageSize);
+    }
+
+    // Title search ranked by text score, ties broken by _id so that pages are stable.
+    // Only the first SEARCH_LIMIT matches are reachable: past them the ranking is not useful anymore
+    private <T> Page<T> findSearchPage(String title, Bson projection, Function<Document, T> decoder, int page, int pageSize) {
+        validatePaging(page, pageSize);
+        if (isBlank(title) || page * pageSize >= SEARCH_LIMIT) {
+            return new Page<>(new ArrayList<T>(), page, pageSize, false);
+        }
+        Page<T> result = findPage(Filters.text(title), projection,
+                Sorts.orderBy(Sorts.metaTextScore("score"), Sorts.ascending("_id")), decoder, page, pageSize);
+        boolean hasNext = result.hasNext() && (page + 1) * pageSize < SEARCH_LIMIT;
+        return new Page<>(result.getItems(), page, pageSize, hasNext);
+    }
+
+    private static boolean isBlank(String text) {
+        return text == null || text.trim().isEmpty();
+    }
+
+    private Stream<Book> stream(Bson filter, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("La dimensione del batch deve essere positiva");
+        }
+        MongoCursor<Document> cursor = collection.find(filter).batchSize(batchSize).iterator();
+        Iterator<Book> books = new Iterator<Book>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public Book next() {
+                return new Book(cursor.next());
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(books, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(cursor::close);
+    }
 
+    private static void validatePaging(int page, int pageSize) {
+        if (page < 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("Pagina o dimensione della pagina non valida");
+        }
+    }
+}
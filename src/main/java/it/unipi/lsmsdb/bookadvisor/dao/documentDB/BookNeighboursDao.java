@@ -0,0 +1,69 @@
+package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Precomputed item-item neighbours of the books, written by the offline RecommendationEngine,
+// one document per book in book_neighbours, most similar first:
+// { _id: bookId, neighbours: [ { bookId, score } ], computedAt }
+public class BookNeighboursDao {
+    private static final String COLLECTION_NAME = "book_neighbours";
+    private static final int WRITE_BATCH_SIZE = 1000;
+
+    private MongoCollection<Document> collection;
+
+    public BookNeighboursDao(MongoDBConnector connector) {
+        collection = connector.getDatabase().getCollection(COLLECTION_NAME);
+    }
+
+    // Neighbours of the given books, by book. Books without neighbours are missing from the map
+    public Map<ObjectId, List<Document>> findNeighbours(Collection<ObjectId> bookIds) {
+        Map<ObjectId, List<Document>> neighbours = new HashMap<>();
+        if (bookIds.isEmpty()) {
+            return neighbours;
+        }
+        try {
+            for (Document doc : collection.find(Filters.in("_id", bookIds))) {
+                neighbours.put(doc.getObjectId("_id"), doc.getList("neighbours", Document.class));
+            }
+        } catch (Exception e) {
+            System.err.println("Errore durante la ricerca dei libri simili: " + e.getMessage());
+        }
+        return neighbours;
+    }
+
+    // Replace the neighbours of the given books, in unordered bulk writes
+    public void saveAll(List<Document> books, Date computedAt) {
+        List<WriteModel<Document>> replacements = new ArrayList<>(WRITE_BATCH_SIZE);
+        for (Document book : books) {
+            book.put("computedAt", computedAt);
+            replacements.add(new ReplaceOneModel<>(Filters.eq("_id", book.getObjectId("_id")), book, new ReplaceOptions().upsert(true)));
+            if (replacements.size() == WRITE_BATCH_SIZE) {
+                collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false));
+                replacements.clear();
+            }
+        }
+        if (!replacements.isEmpty()) {
+            collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false));
+        }
+    }
+
+    // Drop the books left over from an older run, no longer rated by anyone
+    public long deleteComputedBefore(Date computedAt) {
+        return collection.deleteMany(Filters.lt("computedAt", computedAt)).getDeletedCount();
+    }
+}
@@ -0,0 +1,292 @@
+package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import it.unipi.lsmsdb.bookadvisor.cache.CacheRegistry;
+import it.unipi.lsmsdb.bookadvisor.cache.EntityCache;
+import it.unipi.lsmsdb.bookadvisor.cache.PopularBooksLeaderboard;
+import it.unipi.lsmsdb.bookadvisor.model.book.BookSummary;
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Watches the books, reviews and users collections of the replica set and pushes every change
+// to the registered subscribers (entity caches, leaderboard, materialised views), so that writes
+// made by other application instances do not leave this one serving stale data.
+// The resume token of the last handled event is stored per node in change_stream_tokens: after a
+// restart the stream continues where it stopped. When the token is too old to resume from, the
+// subscribers are asked to resynchronise and the stream restarts from the current time.
+public class ChangeStreamListener {
+    private static final String TOKENS_COLLECTION = "change_stream_tokens";
+    private static final List<String> WATCHED = Arrays.asList("books", "reviews", "users");
+    // Server error codes of a resume token that is no longer in the oplog
+    private static final List<Integer> HISTORY_LOST = Arrays.asList(280, 286);
+
+    // Receives the changes of one collection. Called from the listener thread
+    public interface Subscriber {
+        void onChange(ChangeStreamDocument<Document> change);
+
+        // Changes may have been missed: drop everything derived from the collection
+        default void onResync() {
+        }
+    }
+
+    private final MongoDatabase database;
+    private final MongoCollection<BsonDocument> tokens;
+    private final String nodeId;
+    private final long tokenFlushMillis;
+    private final long retryDelayMillis;
+    private final Map<String, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    private volatile boolean running = false;
+    private Thread thread;
+    private BsonDocument resumeToken;
+    private long lastFlush = 0;
+
+    public ChangeStreamListener(MongoDBConnector connector) {
+        this.database = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY);
+        this.tokens = database.getCollection(TOKENS_COLLECTION, BsonDocument.class);
+        this.nodeId = Config.get("changeStream.nodeId", defaultNodeId());
+        this.tokenFlushMillis = Config.getLong("changeStream.tokenFlushMillis", 1000);
+        this.retryDelayMillis = Config.getLong("changeStream.retryDelayMillis", 5000);
+    }
+
+    public void subscribe(String collection, Subscriber subscriber) {
+        if (!WATCHED.contains(collection)) {
+            throw new IllegalArgumentException("Collection not watched: " + collection);
+        }
+        subscribers.computeIfAbsent(collection, name -> new CopyOnWriteArrayList<>()).add(subscriber);
+    }
+
+    // Keep the entity caches and the popular books leaderboard in sync with the other nodes
+    public void subscribeCaches() {
+        CacheRegistry caches = CacheRegistry.getInstance();
+        subscribe("books", invalidating(caches.books()));
+        subscribe("users", invalidating(caches.users()));
+        subscribe("reviews", invalidating(caches.reviews()));
+        subscribe("books", new Subscriber() {
+            @Override
+            public void onChange(ChangeStreamDocument<Document> change) {
+                PopularBooksLeaderboard leaderboard = PopularBooksLeaderboard.getInstance();
+                Document book = change.getFullDocument();
+                if (book != null && change.getOperationType() != OperationType.DELETE) {
+                    leaderboard.onRatingChanged(new BookSummary(book));
+                } else {
+                    leaderboard.invalidate();
+                }
+            }
+
+            @Override
+            public void onResync() {
+                PopularBooksLeaderboard.getInstance().invalidate();
+            }
+        });
+    }
+
+    // Subscriber that drops the changed document from an entity cache
+    public static Subscriber invalidating(EntityCache<ObjectId, RawBsonDocument> cache) {
+        return new Subscriber() {
+            @Override
+            public void onChange(ChangeStreamDocument<Document> change) {
+                ObjectId id = documentId(change);
+                if (id != null) {
+                    cache.invalidate(id);
+                } else {
+                    cache.invalidateAll();
+                }
+            }
+
+            @Override
+            public void onResync() {
+                cache.invalidateAll();
+            }
+        };
+    }
+
+    // The _id of the changed document, or null for events that concern the whole collection
+    public static ObjectId documentId(ChangeStreamDocument<Document> change) {
+        BsonDocument key = change.getDocumentKey();
+        BsonValue id = key != null ? key.get("_id") : null;
+        return id instanceof BsonObjectId ? ((BsonObjectId) id).getValue() : null;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        resumeToken = loadToken();
+        thread = new Thread(this::run, "change-stream-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private void run() {
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = open().cursor()) {
+                while (running) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change != null) {
+                        dispatch(change);
+                    }
+                    // The cursor token also advances on idle batches, so a quiet node does not fall behind the oplog
+                    BsonDocument token = cursor.getResumeToken();
+                    if (token != null) {
+                        resumeToken = token;
+                    }
+                    if (change != null && isInvalidate(change.getOperationType())) {
+                        resync();
+                        break;
+                    }
+                    flushToken(false);
+                }
+                flushToken(true);
+            } catch (MongoCommandException e) {
+                if (HISTORY_LOST.contains(e.getErrorCode())) {
+                    System.err.println("Change stream history lost, resynchronising: " + e.getErrorMessage());
+                    resync();
+                } else {
+                    retryLater(e);
+                }
+            } catch (Exception e) {
+                retryLater(e);
+            }
+        }
+    }
+
+    private ChangeStreamIterable<Document> open() {
+        ChangeStreamIterable<Document> stream = database.watch(Arrays.asList(
+                Aggregates.match(Filters.in("ns.coll", WATCHED))))
+            .fullDocument(FullDocument.UPDATE_LOOKUP)
+            .maxAwaitTime(1, TimeUnit.SECONDS);
+        // startAfter also accepts the token of an invalidate event, unlike resumeAfter
+        return resumeToken != null ? stream.startAfter(resumeToken) : stream;
+    }
+
+    private void dispatch(ChangeStreamDocument<Document> change) {
+        String collection = change.getNamespace() != null ? change.getNamespace().getCollectionName() : null;
+        if (collection == null) {
+            // Database level events (dropDatabase) concern every collection
+            resync();
+            return;
+        }
+        for (Subscriber subscriber : subscribers.getOrDefault(collection, new ArrayList<>())) {
+            try {
+                if (change.getOperationType() == OperationType.DROP || change.getOperationType() == OperationType.RENAME) {
+                    subscriber.onResync();
+                } else {
+                    subscriber.onChange(change);
+                }
+            } catch (Exception e) {
+                System.err.println("Change stream subscriber of " + collection + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isInvalidate(OperationType type) {
+        return type == OperationType.INVALIDATE || type == OperationType.DROP_DATABASE;
+    }
+
+    // Forget the token and let every subscriber drop what it derived from the collections.
+    // Called from the error handlers of run(), so it never throws: if the stored token cannot be deleted
+    // (e.g. MongoDB is down), a restart resumes from it, finds the history lost and resynchronises again
+    private void resync() {
+        resumeToken = null;
+        try {
+            tokens.deleteOne(Filters.eq("_id", nodeId));
+        } catch (Exception e) {
+            System.err.println("Could not delete the change stream resume token: " + e.getMessage());
+        }
+        for (List<Subscriber> list : subscribers.values()) {
+            for (Subscriber subscriber : list) {
+                try {
+                    subscriber.onResync();
+                } catch (Exception e) {
+                    System.err.println("Change stream subscriber resync failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void retryLater(Exception e) {
+        System.err.println("Change stream interrupted, retrying in " + retryDelayMillis + " ms: " + e.getMessage());
+        // Nothing is known about the changes made meanwhile until the stream is open again
+        try {
+            Thread.sleep(retryDelayMillis);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private BsonDocument loadToken() {
+        try {
+            BsonDocument stored = tokens.find(Filters.eq("_id", nodeId)).first();
+            return stored != null ? stored.getDocument("token") : null;
+        } catch (Exception e) {
+            System.err.println("Could not read the change stream resume token: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Store the token at most once per tokenFlushMillis: after a crash a few events are handled twice,
+    // which is harmless since every subscriber only invalidates or overwrites
+    private void flushToken(boolean force) {
+        long now = System.currentTimeMillis();
+        if (resumeToken == null || (!force && now - lastFlush < tokenFlushMillis)) {
+            return;
+        }
+        BsonDocument document = new BsonDocument("_id", new BsonString(nodeId))
+            .append("token", resumeToken)
+            .append("updatedAt", new BsonDateTime(now));
+        tokens.replaceOne(Filters.eq("_id", nodeId), document, new ReplaceOptions().upsert(true));
+        lastFlush = now;
+    }
+
+    private static String defaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "default";
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+import it.unipi.lsmsdb.bookadvisor.utils.Page;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Precomputed "most famous books" index: one document per (genre, country) in famous_books holding
+// the top K books of the genre by number of reviews from the country, most reviewed first:
+// { genre, country, books: [ { bookId, title, imageUrl, numReviews } ] }
+// BookDao applies every rating change to the cells of the book with one pipeline update per genre.
+// A listed book that loses reviews while its cell is full may let another book overtake it: the new count is
+// applied at once and the cell is queued for a recomputation from the books, which runs on a background thread.
+// A cell queued several times is recomputed once. rebuildAll recomputes every cell, to repair the index.
+public class FamousBooksDao {
+    private static final String COLLECTION_NAME = "famous_books";
+    // Shared by every instance: they all write the same collection
+    private static final Set<List<String>> queuedCells = ConcurrentHashMap.newKeySet();
+    private static ExecutorService repairExecutor;
+
+    private final int topSize;
+    private MongoCollection<Document> collection;
+    private MongoCollection<Document> books;
+
+    public FamousBooksDao(MongoDBConnector connector) {
+        this.topSize = Config.getInt("famousBooks.topSize", 10);
+        collection = connector.getDatabase().getCollection(COLLECTION_NAME);
+        books = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY).getCollection("books");
+    }
+
+    // Apply the new review count of a book for a country. The book document must carry _id, title,
+    // image_url, genre and ratings_agg_by_nat.<country>, as returned by the rating update
+    public void ratingChanged(Document book, String country, boolean decreased) {
+        List<String> genres = book.getList("genre", String.class);
+        if (genres == null || country == null) {
+            return;
+        }
+        ObjectId bookId = book.getObjectId("_id");
+        int numReviews = reviewsFrom(book, country);
+
+        for (String genre : genres) {
+            Bson cell = Filters.and(Filters.eq("genre", genre), Filters.eq("country", country));
+            boolean repair = decreased && isListedInFullCell(cell, bookId);
+            if (numReviews <= 0) {
+                collection.updateOne(cell, Updates.pull("books", new Document("bookId", bookId)));
+            } else {
+                Document entry = new Document("bookId", bookId)
+                    .append("title", book.getString("title"))
+                    .append("imageUrl", book.getString("image_url"))
+                    .append("numReviews", numReviews);
+                collection.updateOne(cell, replaceInCell(entry), new UpdateOptions().upsert(true));
+            }
+            if (repair) {
+                queueRebuild(genre, country);
+            }
+        }
+    }
+
+    // Complete the queued cell recomputations and stop the background thread
+    public static synchronized void closeRepairs() {
+        if (repairExecutor == null) {
+            return;
+        }
+        repairExecutor.shutdown();
+        try {
+            if (!repairExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                repairExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            repairExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        repairExecutor = null;
+    }
+
+    // Drop a deleted book from every cell
+    public void bookRemoved(ObjectId bookId) {
+        collection.updateMany(Filters.eq("books.bookId", bookId), Updates.pull("books", new Document("bookId", bookId)));
+    }
+
+    // The most famous book of the genre in every country, ordered by country, one page at a time.
+    // Each result has country, title, bookId, numReviews and imageUrl
+    public Page<Document> findMostFamousBooks(String genre, int page, int pageSize) {
+        if (page < 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("Pagina o dimensione della pagina non valida");
+        }
+        List<Document> results = new ArrayList<>();
+        for (Document cell : collection.find(Filters.and(Filters.eq("genre", genre), Filters.exists("books.0")))
+                .projection(Projections.fields(Projections.include("country"), Projections.slice("books", 1)))
+                .sort(Sorts.ascending("country"))
+                .skip(page * pageSize)
+                .limit(pageSize + 1)) {
+            Document top = cell.getList("books", Document.class).get(0);
+            results.add(new Document("country", cell.getString("country"))
+                .append("title", top.getString("title"))
+                .append("bookId", top.getObjectId("bookId"))
+                .append("numReviews", top.getInteger("numReviews"))
+                .append("imageUrl", top.getString("imageUrl")));
+        }
+        return Page.fromLookAhead(results, page, pageSize);
+    }
+
+    public boolean hasGenre(String genre) {
+        return collection.find(Filters.eq("genre", genre)).projection(Projections.include("_id")).first() != null;
+    }
+
+    // Recompute every cell of a genre from the books
+    public void rebuildGenre(String genre) {
+        List<WriteModel<Document>> replacements = new ArrayList<>();
+        List<String> countries = new ArrayList<>();
+        for (Document cell : books.aggregate(cellPipeline(Filters.eq("genre", genre))).allowDiskUse(true)) {
+            String country = cell.getString("_id");
+            countries.add(country);
+            replacements.add(new ReplaceOneModel<>(
+                Filters.and(Filters.eq("genre", genre), Filters.eq("country", country)),
+                new Document("genre", genre).append("country", country).append("books", cell.get("books")),
+                new ReplaceOptions().upsert(true)));
+        }
+        if (!replacements.isEmpty()) {
+            collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false));
+        }
+        // Countries that no longer have reviews in the genre
+        collection.deleteMany(Filters.and(Filters.eq("genre", genre), Filters.nin("country", countries)));
+    }
+
+    // Recompute every genre, on the given number of threads
+    public long rebuildAll(int threads) throws InterruptedException {
+        List<String> genres = new ArrayList<>();
+        for (String genre : books.distinct("genre", String.class)) {
+            genres.add(genre);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        AtomicLong rebuilt = new AtomicLong();
+        try {
+            for (String genre : genres) {
+                results.add(pool.submit(() -> {
+                    rebuildGenre(genre);
+                    System.out.println("famous-books: " + genre + " rebuilt (" + rebuilt.incrementAndGet() + "/" + genres.size() + ")");
+                }));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        long failed = 0;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (Exception e) {
+                failed++;
+                System.err.println("famous-books: genre failed: " + e.getMessage());
+            }
+        }
+        if (failed > 0) {
+            System.err.println("famous-books: " + failed + " genres failed, run the step again");
+        }
+        return rebuilt.get();
+    }
+
+    private void queueRebuild(String genre, String country) {
+        List<String> key = Arrays.asList(genre, country);
+        if (!queuedCells.add(key)) {
+            // A recomputation that has not started yet will see this change too
+            return;
+        }
+        try {
+            repairExecutor().execute(() -> {
+                queuedCells.remove(key);
+                try {
+                    rebuildCell(genre, country);
+                } catch (Exception e) {
+                    System.err.println("Errore durante il ricalcolo dei libri più famosi: " + e.getMessage());
+                }
+            });
+        } catch (Exception e) {
+            queuedCells.remove(key);
+            System.err.println("Errore durante l'accodamento del ricalcolo dei libri più famosi: " + e.getMessage());
+        }
+    }
+
+    private static synchronized ExecutorService repairExecutor() {
+        if (repairExecutor == null) {
+            repairExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "famous-books-repair");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return repairExecutor;
+    }
+
+    // Uses the genre index; the books of the genre are sorted in memory, keeping only the first topSize
+    private void rebuildCell(String genre, String country) {
+        String path = "ratings_agg_by_nat." + country + ".cardinality";
+        List<Document> top = new ArrayList<>();
+        for (Document book : books.find(Filters.and(Filters.eq("genre", genre), Filters.gt(path, 0)))
+                .projection(Projections.include("title", "image_url", path))
+                .sort(Sorts.orderBy(Sorts.descending(path), Sorts.ascending("_id")))
+                .limit(topSize)) {
+            top.add(new Document("bookId", book.getObjectId("_id"))
+                .append("title", book.getString("title"))
+                .append("imageUrl", book.getString("image_url"))
+                .append("numReviews", reviewsFrom(book, country)));
+        }
+        collection.updateOne(Filters.and(Filters.eq("genre", genre), Filters.eq("country", country)),
+            Updates.set("books", top), new UpdateOptions().upsert(true));
+    }
+
+    // Group the reviews of the matched books by country and keep the top K books of each country
+    private List<Bson> cellPipeline(Bson match) {
+        return Arrays.asList(
+            new Document("$match", match),
+            new Document("$project", new Document("title", 1).append("image_url", 1)
+                .append("countries", new Document("$objectToArray", "$ratings_agg_by_nat"))),
+            new Document("$unwind", "$countries"),
+            new Document("$match", new Document("countries.v.cardinality", new Document("$gt", 0))),
+            new Document("$sort", new Document("countries.k", 1).append("countries.v.cardinality", -1).append("_id", 1)),
+            new Document("$group", new Document("_id", "$countries.k")
+                .append("books", new Document("$push", new Document("bookId", "$_id")
+                    .append("title", "$title")
+                    .append("imageUrl", "$image_url")
+                    .append("numReviews", "$countries.v.cardinality")))),
+            new Document("$project", new Document("books", new Document("$slice", Arrays.asList("$books", topSize))))
+        );
+    }
+
+    private boolean isListedInFullCell(Bson cell, ObjectId bookId) {
+        return collection.countDocuments(Filters.and(cell,
+            Filters.eq("books.bookId", bookId),
+            Filters.exists("books." + (topSize - 1)))) > 0;
+    }
+
+    // Drop the old entry of the book, add the new one, sort by reviews and keep the first topSize
+    private List<Bson> replaceInCell(Document entry) {
+        Document others = new Document("$filter", new Document("input", new Document("$ifNull", Arrays.asList("$books", new ArrayList<>())))
+            .append("as", "b")
+            .append("cond", new Document("$ne", Arrays.asList("$$b.bookId", entry.getObjectId("bookId")))));
+        Document sorted = new Document("$sortArray", new Document("input",
+                new Document("$concatArrays", Arrays.asList(others, Arrays.asList(new Document("$literal", entry)))))
+            .append("sortBy", new Document("numReviews", -1).append("bookId", 1)));
+        return Arrays.asList(
+            new Document("$set", new Document("books", new Document("$slice", Arrays.asList(sorted, topSize))))
+        );
+    }
+
+    private static int reviewsFrom(Document book, String country) {
+        Document ratings = book.get("ratings_agg_by_nat", Document.class);
+        Document countryRatings = ratings != null ? ratings.get(country, Document.class) : null;
+        Number cardinality = countryRatings != null ? countryRatings.get("cardinality", Number.class) : null;
+        return cardinality != null ? cardinality.intValue() : 0;
+    }
+}
@@ -3,31 +3,67 @@ package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
 import com.mongodb.*;
 import com.mongodb.client.*;
 
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
 public class MongoDBConnector {
-    private static final String DATABASE_NAME = "BookAdvisor";
     private static MongoDBConnector instance;
     private MongoDatabase database;
     private MongoClient mongoClient;
+    private MongoMetrics metrics;
+    private final Map<ReadProfile, MongoDatabase> profileDatabases = new EnumMap<>(ReadProfile.class);
+
+    // Where a group of reads is routed
+    public enum ReadProfile {
+        // Default read preference of the client (mongo.readPreference)
+        DEFAULT,
+        // Read-your-writes flows such as login and reloads after an update
+        PRIMARY,
+        // Heavy aggregations that can tolerate slightly stale data, kept away from the primary
+        ANALYTICS
+    }
 
     // Private constructor to ensure singleton pattern
     private MongoDBConnector() {
         try {
-            // Replica Set URI with all nodes and the replica set name
-            String uri = "mongodb://10.1.1.20:27020,10.1.1.21:27020,10.1.1.23:27020/";
-            // String uri = "mongodb://localhost:27017";
+            // Replica Set URI with all nodes and the replica set name, see bookadvisor.properties
+            String uri = Config.get("mongo.uri", "mongodb://10.1.1.20:27020,10.1.1.21:27020,10.1.1.23:27020/");
+            metrics = new MongoMetrics(Config.getLong("mongo.metrics.slowCommandMillis", 500));
 
-            // Configure MongoClientSettings, if necessary
             MongoClientSettings.Builder settingsBuilder = MongoClientSettings.builder()
                     .applyConnectionString(new ConnectionString(uri))
                     .retryWrites(true) // Enable retryable writes
-                    .readPreference(ReadPreference.nearest()) // Read preference
-                    .writeConcern(WriteConcern.W1); // Write concern
+                    .readPreference(ReadPreference.valueOf(Config.get("mongo.readPreference", "nearest")))
+                    .writeConcern(parseWriteConcern(Config.get("mongo.writeConcern", "w1")))
+                    .compressorList(compressors(Config.getList("mongo.compressors")))
+                    .applyToConnectionPoolSettings(pool -> {
+                        pool.maxSize(Config.getInt("mongo.pool.maxSize", 50))
+                            .minSize(Config.getInt("mongo.pool.minSize", 0))
+                            .maxConnectionIdleTime(Config.getLong("mongo.pool.maxIdleMillis", 60000), TimeUnit.MILLISECONDS)
+                            .maxConnecting(Config.getInt("mongo.pool.maxConnecting", 2))
+                            .addConnectionPoolListener(metrics);
+                        // Unless configured, keep the driver's own wait for a free connection (2 minutes)
+                        if (Config.get("mongo.pool.maxWaitMillis", null) != null) {
+                            pool.maxWaitTime(Config.getLong("mongo.pool.maxWaitMillis", 0), TimeUnit.MILLISECONDS);
+                        }
+                    })
+                    .addCommandListener(metrics);
 
             // Create a MongoClient with the given settings
             mongoClient = MongoClients.create(settingsBuilder.build());
 
             // Access the database that you want to work with
-            database = mongoClient.getDatabase(DATABASE_NAME);
+            database = mongoClient.getDatabase(Config.get("mongo.database", "BookAdvisor"));
+
+            profileDatabases.put(ReadProfile.DEFAULT, database);
+            profileDatabases.put(ReadProfile.PRIMARY, database.withReadPreference(ReadPreference.primary()));
+            profileDatabases.put(ReadProfile.ANALYTICS, database.withReadPreference(analyticsReadPreference()));
 
         } catch (Exception e) {
             // Wrap and rethrow the exception as a runtime exception
@@ -51,6 +87,32 @@ public class MongoDBConnector {
         return database;
     }
 
+    // Method to get the database with the read preference of the given profile
+    public MongoDatabase getDatabase(ReadProfile profile) {
+        MongoDatabase profileDatabase = profileDatabases.get(profile);
+        if (profileDatabase == null) {
+            throw new RuntimeException("MongoDB database not initialized");
+        }
+        return profileDatabase;
+    }
+
+    // Run the work in a multi-document transaction, committed with majority write concern.
+    // The driver retries the whole work on transient errors, so it must not have side effects outside the session
+    public <T> T inTransaction(Function<ClientSession, T> work) {
+        TransactionOptions options = TransactionOptions.builder()
+                .readPreference(ReadPreference.primary())
+                .readConcern(ReadConcern.MAJORITY)
+                .writeConcern(WriteConcern.MAJORITY)
+                .build();
+        try (ClientSession session = mongoClient.startSession()) {
+            return session.withTransaction(() -> work.apply(session), options);
+        }
+    }
+
+    public MongoMetrics getMetrics() {
+        return metrics;
+    }
+
     // Method to close the MongoClient connection when the application is shutting down
     public void close() {
         try {
@@ -62,4 +124,41 @@ public class MongoDBConnector {
             throw new RuntimeException("Error closing MongoDB connection: " + e.getMessage(), e);
         }
     }
+
+    private static ReadPreference analyticsReadPreference() {
+        String name = Config.get("mongo.analytics.readPreference", "secondaryPreferred");
+        long maxStaleness = Config.getLong("mongo.analytics.maxStalenessSeconds", 0);
+        if (maxStaleness > 0 && !"primary".equals(name)) {
+            return ReadPreference.valueOf(name, new ArrayList<TagSet>(), maxStaleness, TimeUnit.SECONDS);
+        }
+        return ReadPreference.valueOf(name);
+    }
+
+    private static WriteConcern parseWriteConcern(String name) {
+        WriteConcern writeConcern = WriteConcern.valueOf(name);
+        if (writeConcern == null) {
+            throw new IllegalArgumentException("Unknown write concern: " + name);
+        }
+        return writeConcern;
+    }
+
+    private static List<MongoCompressor> compressors(List<String> names) {
+        List<MongoCompressor> compressors = new ArrayList<>();
+        for (String name : names) {
+            switch (name.toLowerCase()) {
+                case "zstd":
+                    compressors.add(MongoCompressor.createZstdCompressor());
+                    break;
+                case "snappy":
+                    compressors.add(MongoCompressor.createSnappyCompressor());
+                    break;
+                case "zlib":
+                    compressors.add(MongoCompressor.createZlibCompressor());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown compressor: " + name);
+            }
+        }
+        return compressors;
+    }
 }
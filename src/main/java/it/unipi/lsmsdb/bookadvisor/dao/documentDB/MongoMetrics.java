@@ -0,0 +1,150 @@
+package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Connection pool and command counters of the MongoDB client, used to size the pool and find slow commands
+public class MongoMetrics implements ConnectionPoolListener, CommandListener {
+    private final long slowCommandMillis;
+
+    private final AtomicLong openConnections = new AtomicLong();
+    private final AtomicLong checkedOutConnections = new AtomicLong();
+    private final AtomicLong waitingForConnection = new AtomicLong();
+    private final LongAdder checkOuts = new LongAdder();
+    private final LongAdder checkOutFailures = new LongAdder();
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+
+    public MongoMetrics(long slowCommandMillis) {
+        this.slowCommandMillis = slowCommandMillis;
+    }
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+        openConnections.incrementAndGet();
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+        openConnections.decrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        waitingForConnection.incrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        waitingForConnection.decrementAndGet();
+        checkedOutConnections.incrementAndGet();
+        checkOuts.increment();
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        waitingForConnection.decrementAndGet();
+        checkOutFailures.increment();
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        checkedOutConnections.decrementAndGet();
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        long millis = event.getElapsedTime(TimeUnit.MILLISECONDS);
+        commandStats(event.getCommandName()).record(millis, false);
+        if (millis >= slowCommandMillis) {
+            System.out.println("Slow MongoDB command " + event.getCommandName() + " on " + event.getDatabaseName() + ": " + millis + " ms");
+        }
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        commandStats(event.getCommandName()).record(event.getElapsedTime(TimeUnit.MILLISECONDS), true);
+    }
+
+    private CommandStats commandStats(String commandName) {
+        return commands.computeIfAbsent(commandName, name -> new CommandStats());
+    }
+
+    public long getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public long getCheckedOutConnections() {
+        return checkedOutConnections.get();
+    }
+
+    public long getWaitingForConnection() {
+        return waitingForConnection.get();
+    }
+
+    public long getCheckOuts() {
+        return checkOuts.sum();
+    }
+
+    public long getCheckOutFailures() {
+        return checkOutFailures.sum();
+    }
+
+    // Point-in-time copy of all the counters, command statistics keyed by "command.<name>"
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("pool.open", getOpenConnections());
+        snapshot.put("pool.checkedOut", getCheckedOutConnections());
+        snapshot.put("pool.waiting", getWaitingForConnection());
+        snapshot.put("pool.checkOuts", getCheckOuts());
+        snapshot.put("pool.checkOutFailures", getCheckOutFailures());
+        for (Map.Entry<String, CommandStats> entry : new TreeMap<>(commands).entrySet()) {
+            snapshot.put("command." + entry.getKey(), entry.getValue().toString());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return "MongoMetrics" + snapshot();
+    }
+
+    // Count, failures, total and maximum latency of one command type
+    static class CommandStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final AtomicLong maxMillis = new AtomicLong();
+
+        void record(long millis, boolean failed) {
+            count.increment();
+            if (failed) {
+                failures.increment();
+            }
+            totalMillis.add(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+        }
+
+        @Override
+        public String toString() {
+            long n = count.sum();
+            return "count=" + n + ", failures=" + failures.sum()
+                    + ", avgMillis=" + (n == 0 ? 0 : totalMillis.sum() / n) + ", maxMillis=" + maxMillis.get();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import it.unipi.lsmsdb.bookadvisor.cache.CacheRegistry;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Maintains the most_10_useful_reviews array of the books, the copies of the reviews with the highest
+// usefulness (up votes minus down votes). Every vote or edit of a review updates the array of its book
+// with one atomic pipeline update that replaces the copy of the review, re-sorts and trims the array.
+// Concurrent changes of a review may reach the array out of order: every change bumps the review's version,
+// and a copy already in the array is never replaced by one with a lower version.
+// Only a review that loses usefulness while sitting in a full array may leave a better review out of it:
+// that book is rebuilt from its reviews. rebuildAll recomputes every book, to repair the arrays.
+// The pipeline uses $sortArray, available from MongoDB 5.2.
+public class MostUsefulReviewsDao {
+    public static final int TOP_SIZE = 10;
+    private static final String FIELD = "most_10_useful_reviews";
+    // Books rebuilt by each query of rebuildAll
+    private static final int REBUILD_CHUNK_SIZE = 200;
+
+    private static final Bson USEFULNESS = new Document("$subtract", Arrays.asList(
+        new Document("$ifNull", Arrays.asList("$count_up_votes", 0)),
+        new Document("$ifNull", Arrays.asList("$count_down_votes", 0))
+    ));
+
+    private MongoCollection<Document> books;
+    private MongoCollection<Document> reviews;
+
+    public MostUsefulReviewsDao(MongoDBConnector connector) {
+        MongoDatabase database = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY);
+        books = database.getCollection("books");
+        reviews = database.getCollection("reviews");
+    }
+
+    // Apply the current state of a review (a reviews document) to the array of its book.
+    // usefulnessDecreased tells whether the change may have lowered the review's usefulness
+    public void reviewChanged(Document review, boolean usefulnessDecreased) {
+        ObjectId bookId = review.getObjectId("book_id");
+        ObjectId reviewId = review.getObjectId("_id");
+        if (bookId == null) {
+            return;
+        }
+        try {
+            if (usefulnessDecreased && isListedInFullArray(bookId, reviewId)) {
+                // A review outside of the array may now be more useful than this one
+                rebuild(bookId);
+                return;
+            }
+            books.updateOne(Filters.eq("_id", bookId), replaceInArray(reviewId, review));
+            CacheRegistry.getInstance().books().invalidate(bookId);
+        } catch (Exception e) {
+            System.err.println("Errore durante l'aggiornamento delle recensioni più utili del libro: " + e.getMessage());
+        }
+    }
+
+    // Remove a deleted review from the array of its book, refilling the array if it was full
+    public void reviewRemoved(ObjectId bookId, ObjectId reviewId) {
+        try {
+            if (isListedInFullArray(bookId, reviewId)) {
+                rebuild(bookId);
+                return;
+            }
+            books.updateOne(Filters.eq("_id", bookId), Updates.pull(FIELD, new Document("_id", reviewId)));
+            CacheRegistry.getInstance().books().invalidate(bookId);
+        } catch (Exception e) {
+            System.err.println("Errore durante l'aggiornamento delle recensioni più utili del libro: " + e.getMessage());
+        }
+    }
+
+    // Recompute the array of a book from its reviews
+    public void rebuild(ObjectId bookId) {
+        List<Document> top = new ArrayList<>();
+        for (Document review : reviews.aggregate(Arrays.asList(
+                new Document("$match", new Document("book_id", bookId)),
+                new Document("$addFields", new Document("usefulness", USEFULNESS)),
+                new Document("$sort", new Document("usefulness", -1).append("_id", 1)),
+                new Document("$limit", TOP_SIZE)))) {
+            top.add(review);
+        }
+        books.updateOne(Filters.eq("_id", bookId), Updates.set(FIELD, top));
+        CacheRegistry.getInstance().books().invalidate(bookId);
+    }
+
+    // Recompute the arrays of every book, a chunk of books per query, on the given number of threads
+    public long rebuildAll(int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<>();
+        AtomicLong rebuilt = new AtomicLong();
+        try (MongoCursor<Document> cursor = books.find()
+                .projection(Projections.include("_id"))
+                .batchSize(REBUILD_CHUNK_SIZE)
+                .iterator()) {
+            List<ObjectId> chunk = new ArrayList<>(REBUILD_CHUNK_SIZE);
+            while (cursor.hasNext()) {
+                chunk.add(cursor.next().getObjectId("_id"));
+                if (chunk.size() == REBUILD_CHUNK_SIZE) {
+                    results.add(submitChunk(pool, chunk, rebuilt));
+                    chunk = new ArrayList<>(REBUILD_CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                results.add(submitChunk(pool, chunk, rebuilt));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        long failed = 0;
+        for (Future<Integer> result : results) {
+            try {
+                result.get();
+            } catch (Exception e) {
+                failed++;
+                System.err.println("most-useful-reviews: chunk failed: " + e.getMessage());
+            }
+        }
+        if (failed > 0) {
+            System.err.println("most-useful-reviews: " + failed + " chunks failed, run the step again");
+        }
+        CacheRegistry.getInstance().books().invalidateAll();
+        return rebuilt.get();
+    }
+
+    private Future<Integer> submitChunk(ExecutorService pool, List<ObjectId> bookIds, AtomicLong rebuilt) {
+        return pool.submit(() -> {
+            int count = rebuildChunk(bookIds);
+            long total = rebuilt.addAndGet(count);
+            System.out.println("most-useful-reviews: " + total + " books rebuilt");
+            return count;
+        });
+    }
+
+    // One aggregation for the reviews of all the books of the chunk, one unordered bulk write for the arrays
+    private int rebuildChunk(List<ObjectId> bookIds) {
+        Map<ObjectId, List<Document>> tops = new HashMap<>();
+        for (ObjectId bookId : bookIds) {
+            tops.put(bookId, new ArrayList<>());
+        }
+        for (Document group : reviews.aggregate(Arrays.asList(
+                new Document("$match", new Document("book_id", new Document("$in", bookIds))),
+                new Document("$addFields", new Document("usefulness", USEFULNESS)),
+                // Keeps only TOP_SIZE reviews per book while grouping, instead of buffering all of them
+                new Document("$group", new Document("_id", "$book_id").append("reviews", new Document("$topN",
+                    new Document("n", TOP_SIZE)
+                        .append("sortBy", new Document("usefulness", -1).append("_id", 1))
+                        .append("output", "$$ROOT"))))
+            )).allowDiskUse(true)) {
+            tops.put(group.getObjectId("_id"), group.getList("reviews", Document.class));
+        }
+
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        for (Map.Entry<ObjectId, List<Document>> top : tops.entrySet()) {
+            updates.add(new UpdateOneModel<>(Filters.eq("_id", top.getKey()), Updates.set(FIELD, top.getValue())));
+        }
+        books.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        return updates.size();
+    }
+
+    private boolean isListedInFullArray(ObjectId bookId, ObjectId reviewId) {
+        return books.countDocuments(Filters.and(
+            Filters.eq("_id", bookId),
+            Filters.eq(FIELD + "._id", reviewId),
+            Filters.exists(FIELD + "." + (TOP_SIZE - 1))
+        )) > 0;
+    }
+
+    // Drop the old copy of the review, add the new one, sort by usefulness and keep the first TOP_SIZE.
+    // The old copy is kept instead if its version is higher: the new one was read before a later change.
+    // The usefulness of every copy is recomputed, so copies written by older code sort correctly too
+    private static List<Bson> replaceInArray(ObjectId reviewId, Document review) {
+        Document array = new Document("$ifNull", Arrays.asList("$" + FIELD, new ArrayList<>()));
+        Document others = new Document("$filter", new Document("input", array)
+            .append("as", "r")
+            .append("cond", new Document("$ne", Arrays.asList("$$r._id", reviewId))));
+        Document current = new Document("$arrayElemAt", Arrays.asList(new Document("$filter", new Document("input", array)
+            .append("as", "r")
+            .append("cond", new Document("$eq", Arrays.asList("$$r._id", reviewId)))), 0));
+        Number version = review.get("version", Number.class);
+        Document newest = new Document("$let", new Document("vars", new Document("current", current))
+            .append("in", new Document("$cond", Arrays.asList(
+                new Document("$gt", Arrays.asList(new Document("$ifNull", Arrays.asList("$$current.version", -1)), version != null ? version : 0)),
+                "$$current",
+                new Document("$literal", review)))));
+        Document withUsefulness = new Document("$map", new Document("input", new Document("$concatArrays", Arrays.asList(others,
+                Arrays.asList(newest))))
+            .append("as", "r")
+            .append("in", new Document("$mergeObjects", Arrays.asList("$$r", new Document("usefulness",
+                new Document("$subtract", Arrays.asList(
+                    new Document("$ifNull", Arrays.asList("$$r.count_up_votes", 0)),
+                    new Document("$ifNull", Arrays.asList("$$r.count_down_votes", 0)))))))));
+        Document sorted = new Document("$sortArray", new Document("input", withUsefulness)
+            .append("sortBy", new Document("usefulness", -1).append("_id", 1)));
+        return Arrays.asList(
+            new Document("$set", new Document(FIELD, new Document("$slice", Arrays.asList(sorted, TOP_SIZE))))
+        );
+    }
+}
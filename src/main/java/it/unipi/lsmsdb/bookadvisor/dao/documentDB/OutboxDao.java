@@ -0,0 +1,150 @@
+package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+
+// Transactional outbox: changes that must reach the graph database are stored as events in the
+// same Mongo transaction as the document write, and applied to Neo4j later by the GraphProjector
+public class OutboxDao {
+    private static final String COLLECTION_NAME = "outbox";
+    private static final String STATUS_PENDING = "pending";
+    private static final String STATUS_FAILED = "failed";
+
+    public static final String USER_ADDED = "USER_ADDED";
+    public static final String BOOK_ADDED = "BOOK_ADDED";
+    public static final String REVIEW_ADDED = "REVIEW_ADDED";
+    public static final String REVIEW_UPDATED = "REVIEW_UPDATED";
+    public static final String REVIEW_DELETED = "REVIEW_DELETED";
+
+    private final MongoDBConnector connector;
+    private final MongoCollection<Document> collection;
+
+    public OutboxDao(MongoDBConnector connector) {
+        this.connector = connector;
+        MongoDatabase database = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY);
+        collection = database.getCollection(COLLECTION_NAME);
+    }
+
+    // Run a document write together with the events it appends: both commit or neither does
+    public <T> T inTransaction(Function<ClientSession, T> work) {
+        return connector.inTransaction(work);
+    }
+
+    // Append an event inside the given transaction. Errors are propagated so that the transaction aborts
+    public void append(ClientSession session, String type, Document payload) {
+        Date now = new Date();
+        collection.insertOne(session, new Document("type", type)
+                .append("payload", payload)
+                .append("status", STATUS_PENDING)
+                .append("attempts", 0)
+                .append("created_at", now)
+                .append("next_attempt_at", now));
+    }
+
+    // Oldest events of the backlog in commit order, due or not and parked ones included:
+    // the projector must not apply an event while an older one is still waiting
+    public List<Event> findBacklog(int limit) {
+        List<Event> events = new ArrayList<>();
+        try {
+            for (Document doc : collection.find(Filters.in("status", STATUS_PENDING, STATUS_FAILED))
+                    .sort(Sorts.ascending("_id"))
+                    .limit(limit)) {
+                events.add(new Event(doc));
+            }
+        } catch (Exception e) {
+            System.err.println("Errore durante la lettura degli eventi dell'outbox: " + e.getMessage());
+        }
+        return events;
+    }
+
+    // Applied events are removed, the outbox only holds the backlog
+    public void markApplied(Collection<ObjectId> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            collection.deleteMany(Filters.in("_id", ids));
+        } catch (Exception e) {
+            System.err.println("Errore durante la rimozione degli eventi dell'outbox: " + e.getMessage());
+        }
+    }
+
+    // Schedule another attempt after the given delay, or park the event once it ran out of attempts
+    public void markFailed(Event event, String error, long retryDelayMillis, int maxAttempts) {
+        int attempts = event.getAttempts() + 1;
+        try {
+            collection.updateOne(Filters.eq("_id", event.getId()), Updates.combine(
+                    Updates.set("attempts", attempts),
+                    Updates.set("last_error", error),
+                    Updates.set("next_attempt_at", new Date(System.currentTimeMillis() + retryDelayMillis)),
+                    Updates.set("status", attempts >= maxAttempts ? STATUS_FAILED : STATUS_PENDING)));
+        } catch (Exception e) {
+            System.err.println("Errore durante l'aggiornamento dell'evento dell'outbox: " + e.getMessage());
+        }
+    }
+
+    public long countPending() {
+        return collection.countDocuments(Filters.eq("status", STATUS_PENDING));
+    }
+
+    public static class Event {
+        private final ObjectId id;
+        private final String type;
+        private final Document payload;
+        private final int attempts;
+        private final String status;
+        private final Date nextAttemptAt;
+
+        public Event(Document doc) {
+            this.id = doc.getObjectId("_id");
+            this.type = doc.getString("type");
+            this.payload = doc.get("payload", Document.class);
+            this.attempts = doc.getInteger("attempts", 0);
+            this.status = doc.getString("status");
+            this.nextAttemptAt = doc.getDate("next_attempt_at");
+        }
+
+        // Ran out of attempts: it stays in the outbox, blocking the events behind it, until fixed by hand
+        public boolean isParked() {
+            return STATUS_FAILED.equals(status);
+        }
+
+        public boolean isDue(Date now) {
+            return !isParked() && (nextAttemptAt == null || !nextAttemptAt.after(now));
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public Document getPayload() {
+            return payload;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{" + "id=" + id + ", type='" + type + '\'' + ", attempts=" + attempts + ", status=" + status + '}';
+        }
+    }
+}
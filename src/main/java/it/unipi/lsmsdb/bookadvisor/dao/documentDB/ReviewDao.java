@@ -1,31 +1,59 @@
 package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
 
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 
+import it.unipi.lsmsdb.bookadvisor.cache.CacheRegistry;
+import it.unipi.lsmsdb.bookadvisor.cache.EntityCache;
 import it.unipi.lsmsdb.bookadvisor.model.review.Review;
+import it.unipi.lsmsdb.bookadvisor.utils.Page;
 
 import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ReviewDao {
     private static final String COLLECTION_NAME = "reviews";
+    // Upper bound on the IDs sent in a single $in query
+    private static final int IN_QUERY_CHUNK_SIZE = 1000;
     private MongoCollection<Document> collection;
+    // Same collection read from the primary, for the lookups that precede an update
+    private MongoCollection<Document> primaryCollection;
+    private MongoCollection<RawBsonDocument> rawPrimaryCollection;
+    private EntityCache<ObjectId, RawBsonDocument> cache;
     private BookDao bookDao;
     private UserDao userDao;
+    private MostUsefulReviewsDao mostUsefulReviews;
+    private SimilarUsersDao similarUsers;
 
     public ReviewDao(MongoDBConnector connector) {
         MongoDatabase database = connector.getDatabase();
         collection = database.getCollection(COLLECTION_NAME);
+        primaryCollection = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY).getCollection(COLLECTION_NAME);
+        rawPrimaryCollection = primaryCollection.withDocumentClass(RawBsonDocument.class);
+        cache = CacheRegistry.getInstance().reviews();
         this.bookDao = new BookDao(connector);
         this.userDao = new UserDao(connector);
+        this.mostUsefulReviews = new MostUsefulReviewsDao(connector);
+        this.similarUsers = new SimilarUsersDao(connector);
     }
 
     // Insert a new review into the database
@@ -35,9 +63,10 @@ public class ReviewDao {
             BsonValue insertedId = collection.insertOne(review.toDocument()).getInsertedId();
             ObjectId id = insertedId.asObjectId().getValue();
             bookDao.updateBookRating(review.getBookId(), review.getStars(), review.getCountry());
-            bookDao.addReviewToBook(review.getBookId(), id);
             // Add the review to the object
             review.setId(id);
+            mostUsefulReviews.reviewChanged(review.toDocument().append("_id", id), false);
+            similarUsers.ratingsChanged(review.getUserId());
         } catch (Exception e) {
             System.err.println("Errore durante l'aggiunta della recensione: " + e.getMessage());
             return false;
@@ -55,21 +84,78 @@ public class ReviewDao {
         }
         return true;
     }
+    // Insert a review inside the given transaction. Errors are propagated so that the transaction aborts
+    public void addReview(ClientSession session, Review review) {
+        if (review.getId() == null) {
+            review.setId(new ObjectId());
+        }
+        collection.insertOne(session, review.toDocument().append("_id", review.getId()));
+    }
+
+    // Overwrite a review inside the given transaction.
+    // Call reviewCommitted once the transaction has committed, so that the cached copy is dropped
+    public void updateReview(ClientSession session, Review review) {
+        UpdateResult result = collection.updateOne(session, Filters.eq("_id", review.getId()), editUpdate(review));
+        if (result.getMatchedCount() == 0) {
+            throw new IllegalStateException("Recensione non trovata: " + review.getId());
+        }
+    }
+
+    // Delete a review inside the given transaction
+    public void deleteReview(ClientSession session, ObjectId id) {
+        DeleteResult result = collection.deleteOne(session, Filters.eq("_id", id));
+        if (result.getDeletedCount() == 0) {
+            throw new IllegalStateException("Recensione non trovata: " + id);
+        }
+    }
+
+    // To be called once a transaction that added or changed a review has committed:
+    // drops the cached copy and refreshes the most useful reviews of its book and the similar users of its author
+    public void reviewCommitted(ObjectId id) {
+        cache.invalidate(id);
+        Document doc;
+        try {
+            doc = primaryCollection.find(Filters.eq("_id", id)).first();
+        } catch (Exception e) {
+            System.err.println("Errore durante la ricerca della recensione per ID: " + e.getMessage());
+            return;
+        }
+        if (doc != null) {
+            // The stored document carries the version that orders the copies of the review
+            mostUsefulReviews.reviewChanged(doc, false);
+            similarUsers.ratingsChanged(doc.getObjectId("user_id"));
+        }
+    }
+
+    // To be called once a transaction that deleted a review has committed
+    public void reviewDeleted(ObjectId id, ObjectId bookId, ObjectId userId) {
+        cache.invalidate(id);
+        mostUsefulReviews.reviewRemoved(bookId, id);
+        similarUsers.ratingsChanged(userId);
+    }
+
+    // Complete the queued refreshes of the similar users
+    public void close() {
+        similarUsers.close();
+    }
+
     // Update a review's information
     public boolean updateReview(Review review) {
         try {
             // Trova la recensione vecchia prima dell'aggiornamento
-            Review oldReview = findReviewById(review.getId());
+            Review oldReview = findCurrentReviewById(review.getId());
 
             // Aggiorna la recensione nel database
-            UpdateResult result = collection.updateOne(Filters.eq("_id", review.getId()), new Document("$set", review.toDocument()));
+            UpdateResult result = collection.updateOne(Filters.eq("_id", review.getId()), editUpdate(review));
+            reviewCommitted(review.getId());
 
             // Se la recensione è stata effettivamente aggiornata
             if (result.getModifiedCount() > 0) {
-                // Sottrai il valore vecchio prima di aggiungere il nuovo valore
-                bookDao.updateBookRating(review.getBookId(), -oldReview.getStars(), oldReview.getCountry());
-                bookDao.updateBookRating(review.getBookId(), review.getStars(), review.getCountry());
-                return true;
+                // Sottrai il valore vecchio e aggiungi il nuovo con un'unica scrittura
+                return bookDao.updateBookRatings(Arrays.asList(
+                    new BookDao.RatingDelta(review.getBookId(), -oldReview.getStars(), oldReview.getCountry()),
+                    new BookDao.RatingDelta(review.getBookId(), review.getStars(), review.getCountry())
+                ));
             }
             return false;
         } catch (Exception e) {
@@ -82,7 +168,7 @@ public class ReviewDao {
     public boolean deleteReview(ObjectId id) {
         try {
             // Find the review before deleting it
-            Review review = findReviewById(id);
+            Review review = findCurrentReviewById(id);
             if (review == null) {
                 System.err.println("Recensione non trovata.");
                 return false;
@@ -90,27 +176,16 @@ public class ReviewDao {
 
             // Delete the review from the database
             DeleteResult result = collection.deleteOne(Filters.eq("_id", id));
+            reviewDeleted(id, review.getBookId(), review.getUserId());
 
             // If the review was successfully deleted
             if (result.getDeletedCount() > 0) {
-                // Remove the review from the book
-                if(bookDao.removeReviewFromBook(review.getBookId(), id)){
-                    // Successfully deleted the review from the database
-                    if(bookDao.updateBookRating(review.getBookId(), -review.getStars(), review.getCountry())){
-                        // Successfully updated the book rating
-                        return true;
-                    } else {
-                        // Failed to update the book rating
-                        System.out.println("Failed to update book rating");
-                        // Add the review back to the database
-                        collection.insertOne(review.toDocument().append("_id", id));
-                        // Add the review back to the book
-                        bookDao.addReviewToBook(review.getBookId(), id);
-                        return false;
-                    }
+                if(bookDao.updateBookRating(review.getBookId(), -review.getStars(), review.getCountry())){
+                    // Successfully updated the book rating
+                    return true;
                 } else {
-                    // Failed to remove the review from the book
-                    System.out.println("Failed to remove review from book");
+                    // Failed to update the book rating
+                    System.out.println("Failed to update book rating");
                     // Add the review back to the database
                     collection.insertOne(review.toDocument().append("_id", id));
                     return false;
@@ -127,7 +202,7 @@ public class ReviewDao {
     public boolean deleteReviewById(ObjectId id) {
         try {
             // Find the review before deleting it
-            Review review = findReviewById(id);
+            Review review = findCurrentReviewById(id);
             if (review == null) {
                 System.err.println("Recensione non trovata.");
                 return false;
@@ -135,6 +210,7 @@ public class ReviewDao {
 
             // Delete the review from the database
             DeleteResult result = collection.deleteOne(Filters.eq("_id", id));
+            reviewDeleted(id, review.getBookId(), review.getUserId());
 
             // If the review was successfully deleted
             if (result.getDeletedCount() > 0) {
@@ -159,10 +235,22 @@ public class ReviewDao {
         }
     }
 
-    // Find a review by its ID
+    // Find a review by its ID, served from the entity cache when possible
     public Review findReviewById(ObjectId id) {
         try {
-            Document doc = collection.find(Filters.eq("_id", id)).first();
+            Document doc = CacheRegistry.decode(cache.get(id, key -> rawPrimaryCollection.find(Filters.eq("_id", key)).first()));
+            return doc != null ? new Review(doc) : null;
+        } catch (Exception e) {
+            System.err.println("Errore durante la ricerca della recensione per ID: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Find a review by its ID on the primary, bypassing the cache: used by the lookups that precede an update,
+    // whose rating deltas must be computed from the stored review
+    public Review findCurrentReviewById(ObjectId id) {
+        try {
+            Document doc = primaryCollection.find(Filters.eq("_id", id)).first();
             return doc != null ? new Review(doc) : null;
         } catch (Exception e) {
             System.err.println("Errore durante la ricerca della recensione per ID: " + e.getMessage());
@@ -170,12 +258,53 @@ public class ReviewDao {
         }
     }
 
-    // Find reviews by book ID using the book's review IDs
+    // Find reviews by their IDs with one $in query per chunk, keeping the order of the given IDs
+    public List<Review> findReviewsByIds(Collection<ObjectId> ids) {
+        List<Review> reviews = new ArrayList<>();
+        if (ids == null || ids.isEmpty()) {
+            return reviews;
+        }
+        try {
+            List<ObjectId> idList = new ArrayList<>(ids);
+            Map<ObjectId, Review> found = new HashMap<>();
+            for (int from = 0; from < idList.size(); from += IN_QUERY_CHUNK_SIZE) {
+                List<ObjectId> chunk = idList.subList(from, Math.min(from + IN_QUERY_CHUNK_SIZE, idList.size()));
+                for (Document doc : collection.find(Filters.in("_id", chunk)).batchSize(chunk.size())) {
+                    Review review = new Review(doc);
+                    found.put(review.getId(), review);
+                }
+            }
+            for (ObjectId id : idList) {
+                Review review = found.get(id);
+                if (review != null) {
+                    reviews.add(review);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Errore durante la ricerca delle recensioni per ID: " + e.getMessage());
+        }
+        return reviews;
+    }
+
+    // Find the IDs of the reviews of a book: the reviews' book_id index is the only place where they are stored
+    public List<ObjectId> findReviewIdsByBookId(ObjectId bookId) {
+        List<ObjectId> ids = new ArrayList<>();
+        try {
+            for (Document doc : collection.find(Filters.eq("book_id", bookId)).projection(Projections.include("_id"))) {
+                ids.add(doc.getObjectId("_id"));
+            }
+        } catch (Exception e) {
+            System.err.println("Errore durante la ricerca degli ID delle recensioni per ID libro: " + e.getMessage());
+        }
+        return ids;
+    }
+
+    // Find reviews by book ID using the book id contained in the review
     public List<Review> findReviewsByBookId(ObjectId bookId) {
         List<Review> reviews = new ArrayList<>();
         try {
-            for (ObjectId reviewId : bookDao.findBookById(bookId).getReviewIds()) {
-                reviews.add(findReviewById(reviewId));
+            for (Document doc : collection.find(Filters.eq("book_id", bookId))) {
+                reviews.add(new Review(doc));
             }
         } catch (Exception e) {
             System.err.println("Errore durante la ricerca delle recensioni per ID libro: " + e.getMessage());
@@ -183,6 +312,26 @@ public class ReviewDao {
         return reviews;
     }
 
+    // Find one page of the reviews of a book with a single round trip
+    public Page<Review> findReviewsByBookId(ObjectId bookId, int page, int pageSize) {
+        if (page < 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("Pagina o dimensione della pagina non valida");
+        }
+        List<Review> reviews = new ArrayList<>();
+        try {
+            for (Document doc : collection.find(Filters.eq("book_id", bookId))
+                    .sort(Sorts.ascending("_id"))
+                    .skip(page * pageSize)
+                    .limit(pageSize + 1)
+                    .batchSize(pageSize + 1)) {
+                reviews.add(new Review(doc));
+            }
+        } catch (Exception e) {
+            System.err.println("Errore durante la ricerca delle recensioni per ID libro: " + e.getMessage());
+        }
+        return Page.fromLookAhead(reviews, page, pageSize);
+    }
+
     // Find reviews by user ID using the user id contained in the review
     public List<Review> findReviewsByUserId(ObjectId userId) {
         List<Review> reviews = new ArrayList<>();
@@ -196,6 +345,29 @@ public class ReviewDao {
         return reviews;
     }
 
+    // Find one page of the reviews of a user, most useful first, ties broken by _id so that pages are stable.
+    // The (user_id, usefulness, _id) index returns them already in order, so only the page is read.
+    // A review without usefulness sorts last: the field is filled in by the review-usefulness step of
+    // SchemaMigrations, which IndexManager runs when it creates the index
+    public Page<Review> findTopUsefulReviewsByUser(ObjectId userId, int page, int pageSize) {
+        if (page < 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("Pagina o dimensione della pagina non valida");
+        }
+        List<Review> reviews = new ArrayList<>();
+        try {
+            for (Document doc : collection.find(Filters.eq("user_id", userId))
+                    .sort(Sorts.orderBy(Sorts.descending("usefulness"), Sorts.ascending("_id")))
+                    .skip(page * pageSize)
+                    .limit(pageSize + 1)
+                    .batchSize(pageSize + 1)) {
+                reviews.add(new Review(doc));
+            }
+        } catch (Exception e) {
+            System.err.println("Errore durante la ricerca delle recensioni più utili dell'utente: " + e.getMessage());
+        }
+        return Page.fromLookAhead(reviews, page, pageSize);
+    }
+
     // Find reviews by user ID and book ID
     public Review findReviewByUserIdAndBookId(ObjectId userId, ObjectId bookId) {
         try {
@@ -272,15 +444,74 @@ public class ReviewDao {
         return reviews;
     }
 
-    // Update the vote count of a review
+    // Update the vote count of a review and the most useful reviews of its book
     protected void updateVoteCount(ObjectId reviewId, String voteType, int count) {
+        if (voteType.equals("count_up_votes")) {
+            applyVote(reviewId, count, 0);
+        } else {
+            applyVote(reviewId, 0, count);
+        }
+    }
+
+    // Change both vote counters of a review with a single $inc, then refresh the most useful reviews of its book
+    protected void applyVote(ObjectId reviewId, int upDelta, int downDelta) {
         try {
-            UpdateResult result = collection.updateOne(Filters.eq("_id", reviewId), new Document("$inc", new Document(voteType, count)));
-            if (result.getModifiedCount() == 0) {
+            Document review = collection.findOneAndUpdate(
+                Filters.eq("_id", reviewId),
+                voteUpdate(upDelta, downDelta),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+            );
+            if (review == null) {
+                cache.invalidate(reviewId);
                 System.err.println("Errore: recensione non trovata con ID: " + reviewId);
+                return;
             }
+            voteCommitted(review, upDelta, downDelta);
         } catch (Exception e) {
             System.err.println("Errore durante l'aggiornamento del conteggio dei voti della recensione: " + e.getMessage());
         }
     }
+
+    // Change the vote counters inside the given transaction and return the review with the new counters.
+    // Errors, including a missing review, are propagated so that the transaction aborts.
+    // Call voteCommitted with the returned review once the transaction has committed
+    protected Document applyVote(ClientSession session, ObjectId reviewId, int upDelta, int downDelta) {
+        Document review = collection.findOneAndUpdate(session,
+            Filters.eq("_id", reviewId),
+            voteUpdate(upDelta, downDelta),
+            new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+        );
+        if (review == null) {
+            throw new IllegalStateException("Recensione non trovata: " + reviewId);
+        }
+        return review;
+    }
+
+    // Drop the cached copy of a voted review and refresh the most useful reviews of its book
+    protected void voteCommitted(Document review, int upDelta, int downDelta) {
+        cache.invalidate(review.getObjectId("_id"));
+        mostUsefulReviews.reviewChanged(review, upDelta < 0 || downDelta > 0);
+    }
+
+    // Every change of a review bumps its version, so that MostUsefulReviewsDao never replaces
+    // a copy of the review with an older one
+    private static Bson voteUpdate(int upDelta, int downDelta) {
+        return Updates.combine(
+            Updates.inc("count_up_votes", upDelta),
+            Updates.inc("count_down_votes", downDelta),
+            Updates.inc("usefulness", upDelta - downDelta),
+            Updates.inc("version", 1)
+        );
+    }
+
+    // An edit only sets what the user can change: the vote counters belong to voteUpdate, and the copy
+    // of the review being edited may have been loaded before the latest votes
+    private static Bson editUpdate(Review review) {
+        return Updates.combine(
+            Updates.set("review_text", review.getText()),
+            Updates.set("rating", review.getStars()),
+            Updates.set("country", review.getCountry()),
+            Updates.inc("version", 1)
+        );
+    }
 }
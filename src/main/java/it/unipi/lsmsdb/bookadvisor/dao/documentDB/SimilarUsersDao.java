@@ -0,0 +1,331 @@
+package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import it.unipi.lsmsdb.bookadvisor.recommendation.MinHash;
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Precomputed users with similar tastes, one document per user in similar_users:
+// { _id: userId, bands: [ <LSH band key> ], users: [ { userId, nickname, commonBooks, commonBookCount } ], computedAt }
+// Two users are similar when they share a favourite genre and rated some common books with a difference
+// of less than MAX_RATING_DIFFERENCE stars; the most common books first. The whole collection is written by
+// SimilarUsersEngine. After that, every rating of a user refreshes the user: the band keys find the candidates
+// through the multikey index, the candidates are verified on their reviews, and the user is updated in the
+// lists of the candidates too. Users outside of those lists only catch up at the next run of the engine.
+// The document with _id CONFIG_ID records the MinHash settings of the last run of the engine. When they differ
+// from the current ones the stored band keys are not comparable, and the refresh is skipped until the engine runs.
+// The refresh runs on a background thread, off the request path; several ratings of the same user that arrive
+// while a refresh is queued are served by a single refresh.
+public class SimilarUsersDao {
+    public static final int TOP_SIZE = 10;
+    public static final int MAX_RATING_DIFFERENCE = 2;
+    private static final String COLLECTION_NAME = "similar_users";
+    private static final int WRITE_BATCH_SIZE = 1000;
+    static final String CONFIG_ID = "minhash";
+
+    private final MinHash minHash;
+    private final int maxCandidates;
+    private MongoCollection<Document> collection;
+    private MongoCollection<Document> reviews;
+    private MongoCollection<Document> users;
+    private MongoCollection<Document> books;
+    private final Set<ObjectId> queued = ConcurrentHashMap.newKeySet();
+    private ExecutorService executor;
+
+    public SimilarUsersDao(MongoDBConnector connector) {
+        this.minHash = MinHash.fromConfig();
+        this.maxCandidates = Config.getInt("similarUsers.maxCandidates", 500);
+        collection = connector.getDatabase().getCollection(COLLECTION_NAME);
+        // The refresh follows a write: read what was just committed
+        MongoDatabase primary = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY);
+        reviews = primary.getCollection("reviews");
+        users = primary.getCollection("users");
+        books = primary.getCollection("books");
+    }
+
+    // The similar users of a user, most common books first. Returns null when the user was never computed
+    public List<Document> findSimilarUsers(ObjectId userId) {
+        try {
+            Document doc = collection.find(Filters.eq("_id", userId)).projection(Projections.include("users")).first();
+            return doc != null ? doc.getList("users", Document.class) : null;
+        } catch (Exception e) {
+            System.err.println("Errore durante la ricerca degli utenti simili: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // To be called once a transaction that added, changed or deleted a rating of the user has committed.
+    // Queues the refresh of the user and returns immediately
+    public void ratingsChanged(ObjectId userId) {
+        if (!queued.add(userId)) {
+            // A refresh that has not started yet will read this rating too
+            return;
+        }
+        try {
+            executor().execute(() -> {
+                // Dequeued before reading: a rating committed from now on queues a new refresh
+                queued.remove(userId);
+                try {
+                    refresh(userId);
+                } catch (Exception e) {
+                    System.err.println("Errore durante l'aggiornamento degli utenti simili: " + e.getMessage());
+                }
+            });
+        } catch (Exception e) {
+            queued.remove(userId);
+            System.err.println("Errore durante l'accodamento dell'aggiornamento degli utenti simili: " + e.getMessage());
+        }
+    }
+
+    // Complete the queued refreshes and stop the background thread
+    public synchronized void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "similar-users-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    // Replace the documents of the given users, in unordered bulk writes
+    public void saveAll(List<Document> docs, Date computedAt) {
+        List<WriteModel<Document>> replacements = new ArrayList<>(WRITE_BATCH_SIZE);
+        for (Document doc : docs) {
+            doc.put("computedAt", computedAt);
+            replacements.add(new ReplaceOneModel<>(Filters.eq("_id", doc.getObjectId("_id")), doc, new ReplaceOptions().upsert(true)));
+            if (replacements.size() == WRITE_BATCH_SIZE) {
+                collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false));
+                replacements.clear();
+            }
+        }
+        if (!replacements.isEmpty()) {
+            collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false));
+        }
+    }
+
+    // Record the MinHash settings the stored band keys were computed with
+    public void saveConfig(MinHash minHash) {
+        collection.replaceOne(Filters.eq("_id", CONFIG_ID), new Document("_id", CONFIG_ID).append("key", minHash.getConfigKey()),
+            new ReplaceOptions().upsert(true));
+    }
+
+    // Whether the stored band keys were computed with the current settings. True when none were recorded
+    boolean hasCurrentConfig() {
+        Document config = collection.find(Filters.eq("_id", CONFIG_ID)).first();
+        return config == null || minHash.getConfigKey().equals(config.getString("key"));
+    }
+
+    // Drop the users left over from an older run, who no longer rate any book
+    public long deleteComputedBefore(Date computedAt) {
+        return collection.deleteMany(Filters.lt("computedAt", computedAt)).getDeletedCount();
+    }
+
+    public static boolean sharesGenre(List<String> genres, List<String> otherGenres) {
+        if (genres == null || otherGenres == null) {
+            return false;
+        }
+        for (String genre : genres) {
+            if (otherGenres.contains(genre)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void refresh(ObjectId userId) {
+        if (!hasCurrentConfig()) {
+            System.err.println("Utenti simili calcolati con parametri MinHash diversi (" + minHash.getConfigKey()
+                + "): aggiornamento saltato, eseguire SimilarUsersEngine");
+            return;
+        }
+        Map<ObjectId, Integer> ratings = ratingsOf(userId);
+        if (ratings.isEmpty()) {
+            collection.deleteOne(Filters.eq("_id", userId));
+            collection.updateMany(Filters.eq("users.userId", userId), Updates.pull("users", new Document("userId", userId)));
+            return;
+        }
+
+        List<String> bookIds = new ArrayList<>();
+        for (ObjectId bookId : ratings.keySet()) {
+            bookIds.add(bookId.toHexString());
+        }
+        List<Long> bands = new ArrayList<>();
+        for (long key : minHash.bandKeys(minHash.signature(bookIds))) {
+            bands.add(key);
+        }
+
+        // Candidates: the users sharing the most bands, plus those already linked to the user,
+        // so that a link that no longer holds is removed
+        Set<ObjectId> candidates = new LinkedHashSet<>();
+        for (Document doc : collection.aggregate(Arrays.asList(
+                new Document("$match", new Document("bands", new Document("$in", bands)).append("_id", new Document("$ne", userId))),
+                new Document("$project", new Document("hits", new Document("$size", new Document("$setIntersection", Arrays.asList("$bands", bands))))),
+                new Document("$sort", new Document("hits", -1)),
+                new Document("$limit", maxCandidates)))) {
+            candidates.add(doc.getObjectId("_id"));
+        }
+        for (Document doc : collection.find(Filters.eq("users.userId", userId)).projection(Projections.include("_id"))) {
+            candidates.add(doc.getObjectId("_id"));
+        }
+        List<Document> current = findSimilarUsers(userId);
+        if (current != null) {
+            for (Document similar : current) {
+                candidates.add(similar.getObjectId("userId"));
+            }
+        }
+
+        Map<ObjectId, Document> profiles = new HashMap<>();
+        Set<ObjectId> profileIds = new HashSet<>(candidates);
+        profileIds.add(userId);
+        for (Document user : users.find(Filters.in("_id", profileIds)).projection(Projections.include("nickname", "favourite_genres"))) {
+            profiles.put(user.getObjectId("_id"), user);
+        }
+        Document profile = profiles.get(userId);
+        List<String> genres = profile != null ? profile.getList("favourite_genres", String.class) : null;
+
+        // Books rated similarly by each candidate that shares a favourite genre
+        Map<ObjectId, List<ObjectId>> common = new HashMap<>();
+        List<ObjectId> sharingGenre = new ArrayList<>();
+        for (ObjectId candidate : candidates) {
+            Document other = profiles.get(candidate);
+            if (other != null && sharesGenre(genres, other.getList("favourite_genres", String.class))) {
+                sharingGenre.add(candidate);
+            }
+        }
+        if (!sharingGenre.isEmpty()) {
+            for (Document review : reviews.find(Filters.and(Filters.in("user_id", sharingGenre), Filters.in("book_id", ratings.keySet())))
+                    .projection(Projections.include("user_id", "book_id", "rating"))) {
+                Integer rating = ratings.get(review.getObjectId("book_id"));
+                Number otherRating = review.get("rating", Number.class);
+                if (rating != null && otherRating != null && Math.abs(rating - otherRating.intValue()) < MAX_RATING_DIFFERENCE) {
+                    common.computeIfAbsent(review.getObjectId("user_id"), id -> new ArrayList<>()).add(review.getObjectId("book_id"));
+                }
+            }
+        }
+        Map<ObjectId, String> titles = titles(common.values());
+
+        List<Document> similar = new ArrayList<>();
+        Map<ObjectId, List<String>> commonTitles = new HashMap<>();
+        for (Map.Entry<ObjectId, List<ObjectId>> entry : common.entrySet()) {
+            List<String> entryTitles = new ArrayList<>();
+            for (ObjectId bookId : entry.getValue()) {
+                entryTitles.add(titles.get(bookId));
+            }
+            commonTitles.put(entry.getKey(), entryTitles);
+            similar.add(entry(entry.getKey(), profiles.get(entry.getKey()).getString("nickname"), entryTitles));
+        }
+        similar.sort((u1, u2) -> Integer.compare(u2.getInteger("commonBookCount"), u1.getInteger("commonBookCount")));
+
+        List<WriteModel<Document>> updates = new ArrayList<>(candidates.size() + 1);
+        updates.add(new UpdateOneModel<>(Filters.eq("_id", userId), Updates.combine(
+            Updates.set("bands", bands),
+            Updates.set("users", similar.size() > TOP_SIZE ? new ArrayList<>(similar.subList(0, TOP_SIZE)) : similar),
+            Updates.set("computedAt", new Date())
+        ), new UpdateOptions().upsert(true)));
+
+        // The relation is symmetric: update the user in the lists of the candidates.
+        // Every update touches a different document, so they go in a single unordered bulk write
+        String nickname = profile != null ? profile.getString("nickname") : null;
+        for (ObjectId candidate : candidates) {
+            if (commonTitles.containsKey(candidate)) {
+                updates.add(new UpdateOneModel<>(Filters.eq("_id", candidate), replaceInList(entry(userId, nickname, commonTitles.get(candidate)))));
+            } else {
+                updates.add(new UpdateOneModel<>(Filters.and(Filters.eq("_id", candidate), Filters.eq("users.userId", userId)),
+                    Updates.pull("users", new Document("userId", userId))));
+            }
+        }
+        collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    }
+
+    private Map<ObjectId, Integer> ratingsOf(ObjectId userId) {
+        Map<ObjectId, Integer> ratings = new HashMap<>();
+        for (Document review : reviews.find(Filters.eq("user_id", userId)).projection(Projections.include("book_id", "rating"))) {
+            Number rating = review.get("rating", Number.class);
+            if (review.getObjectId("book_id") != null && rating != null) {
+                ratings.put(review.getObjectId("book_id"), rating.intValue());
+            }
+        }
+        return ratings;
+    }
+
+    private Map<ObjectId, String> titles(Collection<List<ObjectId>> bookLists) {
+        Set<ObjectId> bookIds = new HashSet<>();
+        for (List<ObjectId> list : bookLists) {
+            bookIds.addAll(list);
+        }
+        Map<ObjectId, String> titles = new HashMap<>();
+        if (!bookIds.isEmpty()) {
+            for (Document book : books.find(Filters.in("_id", bookIds)).projection(Projections.include("title"))) {
+                titles.put(book.getObjectId("_id"), book.getString("title"));
+            }
+        }
+        return titles;
+    }
+
+    private static Document entry(ObjectId userId, String nickname, List<String> commonBooks) {
+        return new Document("userId", userId)
+            .append("nickname", nickname)
+            .append("commonBooks", commonBooks)
+            .append("commonBookCount", commonBooks.size());
+    }
+
+    // Drop the old entry of the user, add the new one, sort by common books and keep the first TOP_SIZE
+    private static List<Bson> replaceInList(Document entry) {
+        Document others = new Document("$filter", new Document("input", new Document("$ifNull", Arrays.asList("$users", new ArrayList<>())))
+            .append("as", "u")
+            .append("cond", new Document("$ne", Arrays.asList("$$u.userId", entry.getObjectId("userId")))));
+        Document sorted = new Document("$sortArray", new Document("input",
+                new Document("$concatArrays", Arrays.asList(others, Arrays.asList(new Document("$literal", entry)))))
+            .append("sortBy", new Document("commonBookCount", -1).append("userId", 1)));
+        return Arrays.asList(
+            new Document("$set", new Document("users", new Document("$slice", Arrays.asList(sorted, TOP_SIZE))))
+        );
+    }
+}
@@ -1,30 +1,60 @@
 package it.unipi.lsmsdb.bookadvisor.dao.documentDB;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 
+import it.unipi.lsmsdb.bookadvisor.cache.CacheRegistry;
+import it.unipi.lsmsdb.bookadvisor.cache.EntityCache;
 import it.unipi.lsmsdb.bookadvisor.model.review.Review;
 import it.unipi.lsmsdb.bookadvisor.model.user.*;
 
+import org.bson.BsonType;
 import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.regex.Pattern;
 
 public class UserDao {
     private static final String COLLECTION_NAME = "users";
+    // Maximum number of users returned by a nickname search
+    private static final int SEARCH_LIMIT = 20;
+    // Case-insensitive comparison, the same collation of the nickname index
+    public static final Collation NICKNAME_COLLATION = Collation.builder()
+            .locale("en")
+            .collationStrength(CollationStrength.SECONDARY)
+            .build();
+    private final MongoDBConnector connector;
     private MongoCollection<Document> collection;
+    private MongoCollection<RawBsonDocument> rawCollection;
+    private EntityCache<ObjectId, RawBsonDocument> cache;
 
     public UserDao(MongoDBConnector connector) {
-        MongoDatabase database = connector.getDatabase();
+        this.connector = connector;
+        // Login, signup and the reloads after votes must see the latest writes: read from the primary
+        MongoDatabase database = connector.getDatabase(MongoDBConnector.ReadProfile.PRIMARY);
         collection = database.getCollection(COLLECTION_NAME);
+        rawCollection = collection.withDocumentClass(RawBsonDocument.class);
+        cache = CacheRegistry.getInstance().users();
     }
 
     // Insert user into MongoDB
@@ -34,6 +64,14 @@ public class UserDao {
             ObjectId userid = insertedId.asObjectId().getValue();
             user.setId(userid);
             System.out.println("User inserted with ID: " + userid);
+        } catch (MongoWriteException e) {
+            // The unique index on nickname_lower rejects concurrent signups with the same nickname
+            if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                System.err.println("Nickname già in uso: " + user.getNickname());
+            } else {
+                System.err.println("Errore durante l'inserimento dell'utente: " + e.getMessage());
+            }
+            return false;
         } catch (Exception e) {
             System.err.println("Errore durante l'inserimento del libro: " + e.getMessage());
             return false;
@@ -41,6 +79,14 @@ public class UserDao {
         return true;
     }
 
+    // Insert a user inside the given transaction. Errors, including a duplicate nickname, are propagated
+    public void addUser(ClientSession session, Reviewer user) {
+        if (user.getId() == null) {
+            user.setId(new ObjectId());
+        }
+        collection.insertOne(session, user.toDocument().append("_id", user.getId()));
+    }
+
     public boolean addUser(ObjectId userId, Reviewer user) {
         try {
             // Insert the user with the given ID
@@ -55,7 +101,7 @@ public class UserDao {
     // Find a user by their ID
     public Reviewer findUserById(ObjectId id) {
         try {
-            Document doc = collection.find(Filters.eq("_id", id)).first();
+            Document doc = findDocumentById(id);
             return createUserFromDocument(doc);
         } catch (Exception e) {
             System.err.println("Errore durante la ricerca dell'utente per ID: " + e.getMessage());
@@ -66,7 +112,7 @@ public class UserDao {
     // Find a reviewer by their ID
     public Reviewer findReviewerById(ObjectId id) {
         try {
-            Document doc = collection.find(Filters.eq("_id", id)).first();
+            Document doc = findDocumentById(id);
             return createReviewerFromDocument(doc);
         } catch (Exception e) {
             System.err.println("Errore durante la ricerca del recensore per ID: " + e.getMessage());
@@ -77,7 +123,7 @@ public class UserDao {
     // Find an author by their ID
     public Author findAuthorById(ObjectId id) {
         try {
-            Document doc = collection.find(Filters.eq("_id", id)).first();
+            Document doc = findDocumentById(id);
             return createAuthorFromDocument(doc);
         } catch (Exception e) {
             System.err.println("Errore durante la ricerca dell'autore per ID: " + e.getMessage());
@@ -85,26 +131,58 @@ public class UserDao {
         }
     }
 
-    // Find users by their username
+    // The profile lookups by ID are served from the entity cache, invalidated by updateUser and deleteUser
+    private Document findDocumentById(ObjectId id) {
+        return CacheRegistry.decode(cache.get(id, key -> rawCollection.find(Filters.eq("_id", key)).first()));
+    }
+
+    // Find the users whose nickname starts with the given text, ignoring case.
+    // The prefix is turned into a range on nickname_lower, which the unique index serves directly
     public List<Reviewer> findUsersByUsername(String username) {
         List<Reviewer> users = new ArrayList<>();
+        String prefix = Reviewer.normalizeNickname(username);
+        if (prefix == null || prefix.isEmpty()) {
+            return users;
+        }
         try {
-            Pattern pattern = Pattern.compile(username, Pattern.CASE_INSENSITIVE);
-            FindIterable<Document> documents = collection.find(Filters.regex("nickname", pattern));
+            FindIterable<Document> documents = collection.find(prefixRange("nickname_lower", prefix))
+                    .sort(Sorts.ascending("nickname_lower"))
+                    .limit(SEARCH_LIMIT);
             for (Document doc : documents) {
                 users.add(createUserFromDocument(doc));
             }
+            if (users.size() < SEARCH_LIMIT) {
+                // Users written before nickname_lower existed: the same range on nickname, compared with the collation
+                for (Document doc : collection.find(Filters.and(Filters.exists("nickname_lower", false), prefixRange("nickname", prefix)))
+                        .collation(NICKNAME_COLLATION)
+                        .limit(SEARCH_LIMIT - users.size())) {
+                    users.add(createUserFromDocument(doc));
+                }
+            }
+            // Exact match first, then the shortest nicknames, which are the closest to the typed text
+            users.sort(Comparator
+                    .comparing((Reviewer user) -> !prefix.equals(Reviewer.normalizeNickname(user.getNickname())))
+                    .thenComparingInt(user -> user.getNickname().length()));
         } catch (Exception e) {
             System.err.println("Errore durante la ricerca degli utenti per username: " + e.getMessage());
         }
         return users;
     }
 
-    // Find a user by their username
+    // Find a user by their username, ignoring case, with an exact lookup on nickname_lower
     public Reviewer findUserByUsername(String username) {
+        String nicknameLower = Reviewer.normalizeNickname(username);
+        if (nicknameLower == null || nicknameLower.isEmpty()) {
+            return null;
+        }
         try {
-            Pattern pattern = Pattern.compile(username, Pattern.CASE_INSENSITIVE);
-            Document doc = collection.find(Filters.regex("nickname", pattern)).first();
+            Document doc = collection.find(Filters.eq("nickname_lower", nicknameLower)).first();
+            if (doc == null) {
+                // Users written before nickname_lower existed: the case-insensitive collation index on nickname serves this
+                doc = collection.find(Filters.and(Filters.eq("nickname", username.trim()), Filters.exists("nickname_lower", false)))
+                        .collation(NICKNAME_COLLATION)
+                        .first();
+            }
             return createUserFromDocument(doc);
         } catch (Exception e) {
             System.err.println("Errore durante la ricerca dell'utente per username: " + e.getMessage());
@@ -112,6 +190,38 @@ public class UserDao {
         }
     }
 
+    // Tell whether a nickname is taken, ignoring case. Unlike the unique index on nickname_lower,
+    // the collation index on nickname also covers the users written before nickname_lower existed
+    public boolean nicknameExists(String nickname) {
+        if (nickname == null || nickname.trim().isEmpty()) {
+            throw new IllegalArgumentException("Il nickname non può essere vuoto");
+        }
+        return collection.find(Filters.eq("nickname", nickname.trim()))
+                .collation(NICKNAME_COLLATION)
+                .projection(Projections.include("_id"))
+                .first() != null;
+    }
+
+    private static Bson prefixRange(String field, String prefix) {
+        String upperBound = prefixUpperBound(prefix);
+        return upperBound != null
+                ? Filters.and(Filters.gte(field, prefix), Filters.lt(field, upperBound))
+                : Filters.gte(field, prefix);
+    }
+
+    // Smallest string greater than every string starting with the given prefix,
+    // or null when there is none (the prefix is made of '\uffff' only)
+    static String prefixUpperBound(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
     // Update a user's information
     public boolean updateUser(Reviewer user) {
         try {
@@ -121,6 +231,8 @@ public class UserDao {
         } catch (Exception e) {
             System.err.println("Errore durante l'aggiornamento dell'utente: " + e.getMessage());
             return false;
+        } finally {
+            cache.invalidate(user.getId());
         }
     }
 
@@ -132,6 +244,8 @@ public class UserDao {
         } catch (Exception e) {
             System.err.println("Errore durante la cancellazione dell'utente: " + e.getMessage());
             return false;
+        } finally {
+            cache.invalidate(id);
         }
     }
 
@@ -149,67 +263,110 @@ public class UserDao {
     }
 
     // Vote for a review (upvote or downvote)
-    // If vote is true, the vote is an upvote; otherwise, it is a downvote
+    // If vote is true, the vote is an upvote; otherwise, it is a downvote.
+    // Voting again the same way withdraws the vote, voting the other way moves it.
+    // The vote lists are changed on the server with conditional $pull/$addToSet updates, so a repeated or
+    // concurrent request cannot count a vote twice. The lists and the review counters change in one transaction:
+    // a failure between the two writes cannot leave the counters out of step with the lists
     public boolean voteForReview(Reviewer user, ObjectId reviewId, boolean vote, ReviewDao reviewDao) {
-
-        List<ObjectId> upVotedReviews = user.getUpVotedReviews();
-        List<ObjectId> downVotedReviews = user.getDownVotedReviews();
-
-        boolean hasUpvoted = false;
-        if(upVotedReviews != null && upVotedReviews.contains(reviewId)){
-            hasUpvoted = true;
-        }
-        boolean hasDownvoted = false;
-        if(downVotedReviews != null && downVotedReviews.contains(reviewId)){
-            hasDownvoted = true;
-        }
+        String sameField = vote ? "up_voted_reviews" : "down_voted_reviews";
+        String otherField = vote ? "down_voted_reviews" : "up_voted_reviews";
 
         try {
-            if (vote) {
-                if (hasUpvoted) {
-                    // Remove existing upvote
-                    user.getUpVotedReviews().remove(reviewId);
-                    reviewDao.updateVoteCount(reviewId, "count_up_votes", -1);
-                } else {
-                    // Remove existing downvote if present
-                    if (hasDownvoted) {
-                        user.getDownVotedReviews().remove(reviewId);
-                        reviewDao.updateVoteCount(reviewId, "count_down_votes", -1);
-                    }
-                    // Add new upvote
-                    // check if the list is null
-                    if (user.getUpVotedReviews() == null) {
-                        user.setUpVotedReviews(new ArrayList<>());
-                    }
-                    user.getUpVotedReviews().add(reviewId);
-                    reviewDao.updateVoteCount(reviewId, "count_up_votes", 1);
+            VoteChange change = connector.inTransaction(session -> {
+                // Lists stored as null by older code cannot take $pull/$addToSet: turn them into empty arrays
+                collection.updateOne(session,
+                    Filters.and(Filters.eq("_id", user.getId()),
+                        Filters.or(Filters.type(sameField, BsonType.NULL), Filters.type(otherField, BsonType.NULL))),
+                    Arrays.asList(new Document("$set", new Document()
+                        .append(sameField, new Document("$ifNull", Arrays.asList("$" + sameField, new ArrayList<>())))
+                        .append(otherField, new Document("$ifNull", Arrays.asList("$" + otherField, new ArrayList<>()))))));
+
+                // Withdraw the vote if the user already voted this way
+                UpdateResult withdrawn = collection.updateOne(session,
+                    Filters.and(Filters.eq("_id", user.getId()), Filters.eq(sameField, reviewId)),
+                    Updates.pull(sameField, reviewId)
+                );
+                if (withdrawn.getModifiedCount() > 0) {
+                    int upDelta = vote ? -1 : 0;
+                    int downDelta = vote ? 0 : -1;
+                    return new VoteChange(false, false, upDelta, downDelta, reviewDao.applyVote(session, reviewId, upDelta, downDelta));
                 }
-            } else {
-                if (hasDownvoted) {
-                    // Remove existing downvote
-                    user.getDownVotedReviews().remove(reviewId);
-                    reviewDao.updateVoteCount(reviewId, "count_down_votes", -1);
-                } else {
-                    // Remove existing upvote if present
-                    if (hasUpvoted) {
-                        user.getUpVotedReviews().remove(reviewId);
-                        reviewDao.updateVoteCount(reviewId, "count_up_votes", -1);
-                    }
-                    // Add new downvote
-                    // check if the list is null
-                    if (user.getDownVotedReviews() == null) {
-                        user.setDownVotedReviews(new ArrayList<>());
-                    }
-                    user.getDownVotedReviews().add(reviewId);
-                    reviewDao.updateVoteCount(reviewId, "count_down_votes", 1);
+
+                // Otherwise add it, moving a vote the other way. The projection tells whether that vote existed
+                Document before = collection.findOneAndUpdate(session,
+                    Filters.and(Filters.eq("_id", user.getId()), Filters.ne(sameField, reviewId)),
+                    Updates.combine(Updates.addToSet(sameField, reviewId), Updates.pull(otherField, reviewId)),
+                    new FindOneAndUpdateOptions()
+                        .projection(Projections.elemMatch(otherField, new Document("$eq", reviewId)))
+                        .returnDocument(ReturnDocument.BEFORE)
+                );
+                if (before == null) {
+                    // The vote was recorded by a concurrent request, or the user does not exist
+                    return null;
                 }
-            }
+                List<ObjectId> moved = before.getList(otherField, ObjectId.class);
+                boolean hadOtherVote = moved != null && !moved.isEmpty();
+                int otherDelta = hadOtherVote ? -1 : 0;
+                int upDelta = vote ? 1 : otherDelta;
+                int downDelta = vote ? otherDelta : 1;
+                return new VoteChange(true, hadOtherVote, upDelta, downDelta, reviewDao.applyVote(session, reviewId, upDelta, downDelta));
+            });
 
-            // Update user information in the database
-            return updateUser(user);
+            if (change == null) {
+                return collection.countDocuments(Filters.eq("_id", user.getId())) > 0;
+            }
+            // Only once committed: the transaction may have run more than once
+            reviewDao.voteCommitted(change.review, change.upDelta, change.downDelta);
+            votedLocally(user, reviewId, sameField, change.added);
+            if (change.moved) {
+                votedLocally(user, reviewId, otherField, false);
+            }
+            return true;
         } catch (Exception e) {
             System.err.println("Error while voting for a review: " + e.getMessage());
             return false;
+        } finally {
+            cache.invalidate(user.getId());
+        }
+    }
+
+    // Outcome of a vote transaction: whether the vote was added or withdrawn, whether a vote the other
+    // way was moved, the changes of the counters and the review with its new counters
+    private static class VoteChange {
+        final boolean added;
+        final boolean moved;
+        final int upDelta;
+        final int downDelta;
+        final Document review;
+
+        VoteChange(boolean added, boolean moved, int upDelta, int downDelta, Document review) {
+            this.added = added;
+            this.moved = moved;
+            this.upDelta = upDelta;
+            this.downDelta = downDelta;
+            this.review = review;
+        }
+    }
+
+    // Mirror a recorded vote change on the in-memory user shown by the UI
+    private static void votedLocally(Reviewer user, ObjectId reviewId, String field, boolean added) {
+        boolean up = field.equals("up_voted_reviews");
+        List<ObjectId> list = up ? user.getUpVotedReviews() : user.getDownVotedReviews();
+        if (list == null) {
+            list = new ArrayList<>();
+            if (up) {
+                user.setUpVotedReviews(list);
+            } else {
+                user.setDownVotedReviews(list);
+            }
+        }
+        if (added) {
+            if (!list.contains(reviewId)) {
+                list.add(reviewId);
+            }
+        } else {
+            list.remove(reviewId);
         }
     }
 
@@ -24,15 +24,15 @@ public class BookGraphDAO {
      * @param book
      */
     public boolean addBook(Book book) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                 "MERGE (b:Book {id: $id}) " + 
                 "ON CREATE SET b.title = $title, b.language = $language " +
                 "RETURN b", 
                 parameters("id", book.getId().toHexString(), 
                             "title", book.getTitle(), 
                             "language", book.getLanguage())
-            ).consume().counters().nodesCreated() > 0;
+            ).consume().counters().nodesCreated() > 0);
 
             // if (result.hasNext())
             //     return true;
@@ -46,11 +46,10 @@ public class BookGraphDAO {
     // READ
 
     public Book getBookById(ObjectId bookId) {
-        try (Session session = connector.getSession()) {
-
-            // Convert ObjectId to string
-            String idString = bookId.toHexString();
-            Result result = session.run(
+        // Convert ObjectId to string
+        String idString = bookId.toHexString();
+        return connector.read(tx -> {
+            Result result = tx.run(
                 "MATCH (b:Book {id: $id}) " +
                 "RETURN b", 
                 parameters("id", idString)
@@ -62,8 +61,8 @@ public class BookGraphDAO {
                 return new Book(bookNode);
             }
             return null;
-        }
-        
+        });
+
     }
 
     // UPDATE
@@ -72,17 +71,17 @@ public class BookGraphDAO {
      * @param book
      */
     public boolean updateBook(Book book) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String idString = book.getId().toHexString();
-            return session.run(
+            return connector.write(tx -> tx.run(
                 "MATCH (b:Book {id: $id}) " +
                 "SET b.title = $title, b.language = $language " +
                 "RETURN b", 
                 parameters("id", idString,
                             "title", book.getTitle(),
                             "language", book.getLanguage())
-            ).consume().counters().containsUpdates();
+            ).consume().counters().containsUpdates());
 
             // if (result.hasNext())
             //     return true;
@@ -101,14 +100,14 @@ public class BookGraphDAO {
      * @param book
      */
     public boolean deleteBook(Book book) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String idString = book.getId().toHexString();
-            return session.run(
-                "MATCH (b:Book {id: $id})" +
+            return connector.write(tx -> tx.run(
+                "MATCH (b:Book {id: $id}) " +
                 "DETACH DELETE b",
                 parameters("id", idString)
-            ).consume().counters().nodesDeleted() > 0;
+            ).consume().counters().nodesDeleted() > 0);
 
             // return result.hasNext();
         } catch(Neo4jException e) {
@@ -121,14 +120,14 @@ public class BookGraphDAO {
      * @param bookId
      */
     public boolean deleteBookById(ObjectId bookId) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String idString = bookId.toHexString();
-            return session.run(
-                "MATCH (b:Book {id: $id})" +
+            return connector.write(tx -> tx.run(
+                "MATCH (b:Book {id: $id}) " +
                 "DETACH DELETE b",
                 parameters("id", idString)
-            ).consume().counters().nodesDeleted() > 0;
+            ).consume().counters().nodesDeleted() > 0);
 
         } catch (Neo4jException e) {
             return false;
@@ -5,6 +5,11 @@ import static org.neo4j.driver.Values.parameters;
 import org.bson.types.ObjectId;
 import org.neo4j.driver.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import it.unipi.lsmsdb.bookadvisor.model.follow.Follow;
 import it.unipi.lsmsdb.bookadvisor.model.user.Reviewer;
 
@@ -22,17 +27,17 @@ public class FollowGraphDAO {
      * @param follow
      */
     public boolean addFollow(Follow follow) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String fwString = follow.getFollowerId().toHexString();
             String fdString = follow.getFollowedId().toHexString();
-            return session.run(
+            return connector.write(tx -> tx.run(
                 "MATCH (fwer:User {id: $follower}) " +
                 "MATCH (fwed:User {id: $followed}) " +
                 "MERGE (fwer)-[:FOLLOWS]->(fwed)", 
                 parameters("follower", fwString, 
                         "followed", fdString)
-            ).consume().counters().relationshipsCreated() > 0;
+            ).consume().counters().relationshipsCreated() > 0);
             
             // return result.hasNext();
         } catch (Exception e) {
@@ -47,18 +52,18 @@ public class FollowGraphDAO {
      * @param followed
      */
     public boolean addFollow(Reviewer follower, Reviewer followed) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String fwString = follower.getId().toHexString();
             String fdString = followed.getId().toHexString();
 
-            return session.run(
+            return connector.write(tx -> tx.run(
             "MATCH (fwer:User {id: $follower}) " +
             "MATCH (fwed:User {id: $followed}) " +
             "MERGE (fwer)-[:FOLLOWS]->(fwed)", 
             parameters("follower", fwString, 
                     "followed", fdString)
-            ).consume().counters().relationshipsCreated() > 0;
+            ).consume().counters().relationshipsCreated() > 0);
 
             // return result.hasNext();
         } catch (Exception e) {
@@ -73,17 +78,17 @@ public class FollowGraphDAO {
      * @param followedId
      */
     public boolean addFollowByIds(ObjectId followerId, ObjectId followedId) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String fwString = followerId.toHexString();
             String fdString = followedId.toHexString();
-            return session.run(
+            return connector.write(tx -> tx.run(
             "MATCH (fwer:User {id: $follower}) " +
             "MATCH (fwed:User {id: $followed}) " +
             "MERGE (fwer)-[:FOLLOWS]->(fwed)", 
             parameters("follower", fwString, 
                     "followed", fdString)
-            ).consume().counters().relationshipsCreated() > 0;
+            ).consume().counters().relationshipsCreated() > 0);
 
             // return result.hasNext();
         } catch (Exception e) {
@@ -92,34 +97,56 @@ public class FollowGraphDAO {
         }
     }
 
+    /**
+     * Add many follow relationships, sending them in chunks of the default batch size
+     * @param follows
+     * @return the number of relationships created
+     * @throws Neo4jConnector.ChunkWriteException if a chunk failed, with the number of rows committed before it
+     */
+    public int addFollows(List<Follow> follows) {
+        return addFollows(follows, connector.getBatchSize());
+    }
+
+    /**
+     * Add many follow relationships with one UNWIND statement per chunk
+     * @param follows
+     * @param chunkSize number of follows sent with each statement
+     * @return the number of relationships created
+     * @throws Neo4jConnector.ChunkWriteException if a chunk failed, with the number of rows committed before it
+     */
+    public int addFollows(List<Follow> follows, int chunkSize) {
+        return connector.writeInChunks(
+            "UNWIND $rows AS row " +
+            "MATCH (fwer:User {id: row.follower}) " +
+            "MATCH (fwed:User {id: row.followed}) " +
+            "MERGE (fwer)-[:FOLLOWS]->(fwed)",
+            toRows(follows), chunkSize, counters -> counters.relationshipsCreated());
+    }
+
     // READ 
 
     public boolean getFollow(Reviewer follower, Reviewer followed) {
-        try (Session session = connector.getSession()) {
-            // Convert ObjectId to string
-            String fwString = follower.getId().toHexString();
-            String fdString = followed.getId().toHexString();
-            return session.run(
-                "MATCH (fwr:User {id: $follower})-[f:FOLLOWS]->(fwd:User {id: $followed})" +
-                "RETURN f",
-                parameters("follower", fwString, 
-                            "followed", fdString)
-            ).hasNext();
-        }
+        // Convert ObjectId to string
+        String fwString = follower.getId().toHexString();
+        String fdString = followed.getId().toHexString();
+        return connector.read(tx -> tx.run(
+            "MATCH (fwr:User {id: $follower})-[f:FOLLOWS]->(fwd:User {id: $followed}) " +
+            "RETURN f",
+            parameters("follower", fwString, 
+                        "followed", fdString)
+        ).hasNext());
     }
     
     public boolean getFollowbyId(ObjectId followerId, ObjectId followedId) {
-        try (Session session = connector.getSession()) {
-            // Convert ObjectId to string
-            String fwString = followerId.toHexString();
-            String fdString = followedId.toHexString();
-            return session.run(
-                "MATCH (fwr:User {id: $follower})-[f:FOLLOWS]->(fwd:User {id: $followed})" +
-                "RETURN f",
-                parameters("follower", fwString, 
-                            "followed", fdString)
-            ).hasNext();
-        }
+        // Convert ObjectId to string
+        String fwString = followerId.toHexString();
+        String fdString = followedId.toHexString();
+        return connector.read(tx -> tx.run(
+            "MATCH (fwr:User {id: $follower})-[f:FOLLOWS]->(fwd:User {id: $followed}) " +
+            "RETURN f",
+            parameters("follower", fwString, 
+                        "followed", fdString)
+        ).hasNext());
     }
 
     // DELETE
@@ -130,37 +157,62 @@ public class FollowGraphDAO {
      * @param followed
      */
     public boolean deleteFollow(Reviewer follower, Reviewer followed) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String fwString = follower.getId().toHexString();
             String fdString = followed.getId().toHexString();
-            return session.run(
+            return connector.write(tx -> tx.run(
                 "MATCH (fwer:User {id: $follower})-[f:FOLLOWS]->(fwed:User {id: $followed})" +
                 "DELETE f",
                 parameters("follower", fwString, 
                             "followed", fdString)
-            ).consume().counters().relationshipsDeleted() > 0;
+            ).consume().counters().relationshipsDeleted() > 0);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
     }
 
+    /**
+     * Delete many follow relationships, sending them in chunks of the default batch size
+     * @param follows
+     * @return the number of relationships deleted
+     * @throws Neo4jConnector.ChunkWriteException if a chunk failed, with the number of rows committed before it
+     */
+    public int deleteFollows(List<Follow> follows) {
+        return deleteFollows(follows, connector.getBatchSize());
+    }
+
+    /**
+     * Delete many follow relationships with one UNWIND statement per chunk
+     * @param follows
+     * @param chunkSize number of follows sent with each statement
+     * @return the number of relationships deleted
+     * @throws Neo4jConnector.ChunkWriteException if a chunk failed, with the number of rows committed before it
+     */
+    public int deleteFollows(List<Follow> follows, int chunkSize) {
+        return connector.writeInChunks(
+            "UNWIND $rows AS row " +
+            "MATCH (fwer:User {id: row.follower})-[f:FOLLOWS]->(fwed:User {id: row.followed}) " +
+            "DELETE f",
+            toRows(follows), chunkSize, counters -> counters.relationshipsDeleted());
+    }
+
     /**
      * Delete a follow relationship between an user and another
      * @param follow
      */
     public boolean deleteFollow(Follow follow) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String fwString = follow.getFollowerId().toHexString();
             String fdString = follow.getFollowedId().toHexString();
-            return session.run(
+            return connector.write(tx -> tx.run(
                 "MATCH (fwer:User {id: $follower})-[f:FOLLOWS]->(fwed:User {id: $followed})" +
                 "DELETE f",
                 parameters("follower", fwString, 
                             "followed", fdString)
-            ).consume().counters().relationshipsDeleted() > 0;
+            ).consume().counters().relationshipsDeleted() > 0);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -173,19 +225,30 @@ public class FollowGraphDAO {
      * @param followedId
      */
     public boolean deleteFollow(ObjectId followerId, ObjectId followedId) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String fwString = followerId.toHexString();
             String fdString = followedId.toHexString();
-            return session.run(
+            return connector.write(tx -> tx.run(
                 "MATCH (fwer:User {id: $follower})-[f:FOLLOWS]->(fwed:User {id: $followed})" +
                 "DELETE f",
                 parameters("follower", fwString, 
                             "followed", fdString)
-            ).consume().counters().relationshipsDeleted() > 0;
+            ).consume().counters().relationshipsDeleted() > 0);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
     }
+
+    private static List<Map<String, Object>> toRows(List<Follow> follows) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Follow follow : follows) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("follower", follow.getFollowerId().toHexString());
+            row.put("followed", follow.getFollowedId().toHexString());
+            rows.add(row);
+        }
+        return rows;
+    }
 }
@@ -1,36 +1,195 @@
 package it.unipi.lsmsdb.bookadvisor.dao.graphDB;
 
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
 import org.neo4j.driver.*;
+import org.neo4j.driver.summary.SummaryCounters;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
 
 public class Neo4jConnector {
-    private static final String URI = "bolt://10.1.1.23:7687";
-    // private static final String URI = "bolt://localhost:7687";
-    private static final String USERNAME = "neo4j";
-    private static final String PASSWORD = "studenti";
+    private static Neo4jConnector instance;
 
-    private Driver driver;
+    private final Driver driver;
+    // Shared by every session, so that a read always sees the writes made before it by this application
+    private final BookmarkManager bookmarkManager;
+    private final String database;
+    private final long fetchSize;
+    private final int batchSize;
+    // Applied to every managed transaction; transient failures are retried by the driver up to neo4j.retry.maxTimeMillis
+    private final TransactionConfig transactionConfig;
+    // Applied to the long reads of the offline jobs, which export whole relationship types
+    private final TransactionConfig exportConfig;
 
-    public Neo4jConnector() {
+    // Private constructor to ensure singleton pattern: the driver owns the connection pool
+    private Neo4jConnector() {
         try {
-            driver = GraphDatabase.driver(URI, AuthTokens.basic(USERNAME, PASSWORD));
+            // See bookadvisor.properties
+            String uri = Config.get("neo4j.uri", "bolt://10.1.1.23:7687");
+            String username = Config.get("neo4j.username", "neo4j");
+            String password = Config.get("neo4j.password", "studenti");
+            database = Config.get("neo4j.database", null);
+            fetchSize = Config.getLong("neo4j.fetchSize", 1000);
+            batchSize = Config.getInt("neo4j.batchSize", 5000);
+
+            org.neo4j.driver.Config driverConfig = org.neo4j.driver.Config.builder()
+                    .withMaxConnectionPoolSize(Config.getInt("neo4j.pool.maxSize", 50))
+                    .withConnectionAcquisitionTimeout(Config.getLong("neo4j.pool.acquisitionTimeoutMillis", 5000), TimeUnit.MILLISECONDS)
+                    .withConnectionLivenessCheckTimeout(Config.getLong("neo4j.pool.livenessCheckMillis", 30000), TimeUnit.MILLISECONDS)
+                    .withMaxConnectionLifetime(Config.getLong("neo4j.pool.maxLifetimeMinutes", 60), TimeUnit.MINUTES)
+                    .withConnectionTimeout(Config.getLong("neo4j.connectionTimeoutMillis", 5000), TimeUnit.MILLISECONDS)
+                    .withFetchSize(fetchSize)
+                    .withMaxTransactionRetryTime(Config.getLong("neo4j.retry.maxTimeMillis", 15000), TimeUnit.MILLISECONDS)
+                    .build();
+            transactionConfig = TransactionConfig.builder()
+                    .withTimeout(Duration.ofMillis(Config.getLong("neo4j.tx.timeoutMillis", 30000)))
+                    .build();
+            long exportTimeoutMillis = Config.getLong("neo4j.export.timeoutMillis", 0);
+            exportConfig = exportTimeoutMillis > 0
+                    ? TransactionConfig.builder().withTimeout(Duration.ofMillis(exportTimeoutMillis)).build()
+                    : TransactionConfig.empty();
+            driver = GraphDatabase.driver(uri, AuthTokens.basic(username, password), driverConfig);
+            bookmarkManager = BookmarkManagers.defaultManager(BookmarkManagerConfig.builder().build());
         } catch (Exception e) {
             throw new RuntimeException("Error initializing Neo4j connection: " + e.getMessage(), e);
         }
     }
 
-    public static Neo4jConnector getInstance() {
-        return new Neo4jConnector();
+    public static synchronized Neo4jConnector getInstance() {
+        if (instance == null) {
+            instance = new Neo4jConnector();
+        }
+        return instance;
     }
 
     public Driver getDriver() {
         return driver;
     }
 
+    // Session for reads and writes, chained to the previous ones through the shared bookmarks
     public Session getSession() {
-        return driver.session();
+        return driver.session(sessionConfig(AccessMode.WRITE));
+    }
+
+    // Session that can be routed to a read replica, still causally consistent with the previous writes
+    public Session getReadSession() {
+        return driver.session(sessionConfig(AccessMode.READ));
+    }
+
+    /**
+     * Run a unit of read work in a managed transaction, routed to a reader and retried on transient failures.
+     * The work may be run more than once, so it must consume its results and have no side effects outside the transaction.
+     */
+    public <T> T read(TransactionCallback<T> work) {
+        try (Session session = getReadSession()) {
+            return session.executeRead(work, transactionConfig);
+        }
+    }
+
+    /**
+     * Run a long read of an offline job, such as the export of every RATES relationship, in a managed transaction.
+     * Unlike read, it is not bound by neo4j.tx.timeoutMillis but by neo4j.export.timeoutMillis (none by default).
+     * Retries run the work again from the start: the work must build its result from scratch every time.
+     */
+    public <T> T export(TransactionCallback<T> work) {
+        try (Session session = getReadSession()) {
+            return session.executeRead(work, exportConfig);
+        }
+    }
+
+    /**
+     * Run a unit of write work in a managed transaction on the leader, retried on transient failures.
+     */
+    public <T> T write(TransactionCallback<T> work) {
+        try (Session session = getSession()) {
+            return session.executeWrite(work, transactionConfig);
+        }
+    }
+
+    /**
+     * Send a parameter list to a statement that starts with UNWIND $rows AS row, one write transaction per chunk.
+     * @param cypher statement reading its input from $rows
+     * @param rows one map of parameters per element
+     * @param chunkSize number of rows sent with each statement
+     * @param counter extracts from the counters of a chunk the number of affected elements
+     * @return the total number of affected elements
+     * @throws ChunkWriteException if a chunk fails: the chunks before it are committed, the others are not sent
+     */
+    public int writeInChunks(String cypher, List<Map<String, Object>> rows, int chunkSize, ToIntFunction<SummaryCounters> counter) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        int total = 0;
+        for (int from = 0; from < rows.size(); from += chunkSize) {
+            List<Map<String, Object>> chunk = rows.subList(from, Math.min(from + chunkSize, rows.size()));
+            try {
+                total += write(tx -> counter.applyAsInt(tx.run(cypher, Values.parameters("rows", chunk)).consume().counters()));
+            } catch (RuntimeException e) {
+                throw new ChunkWriteException(from, total, e);
+            }
+        }
+        return total;
+    }
+
+    // Default number of rows per UNWIND statement (neo4j.batchSize)
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    private SessionConfig sessionConfig(AccessMode accessMode) {
+        SessionConfig.Builder builder = SessionConfig.builder()
+                .withDefaultAccessMode(accessMode)
+                .withBookmarkManager(bookmarkManager)
+                .withFetchSize(fetchSize);
+        if (database != null) {
+            builder.withDatabase(database);
+        }
+        return builder.build();
+    }
+
+    public static synchronized void closeInstance() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
     }
 
     public void close() {
         driver.close();
     }
+
+    /**
+     * Failure of a chunk of writeInChunks. The rows before getCommittedRows() are committed,
+     * so the write can be resumed from there.
+     */
+    public static class ChunkWriteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int committedRows;
+        private final int committedCount;
+
+        public ChunkWriteException(int committedRows, int committedCount, Throwable cause) {
+            super("Chunk starting at row " + committedRows + " failed: " + cause.getMessage(), cause);
+            this.committedRows = committedRows;
+            this.committedCount = committedCount;
+        }
+
+        /**
+         * Number of rows committed before the failure, which is also the offset of the failed chunk
+         */
+        public int getCommittedRows() {
+            return committedRows;
+        }
+
+        /**
+         * Number of elements affected by the committed chunks
+         */
+        public int getCommittedCount() {
+            return committedCount;
+        }
+    }
 }
@@ -9,6 +9,11 @@ import it.unipi.lsmsdb.bookadvisor.model.review.Review;
 
 import static org.neo4j.driver.Values.parameters;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class ReviewGraphDAO {
     private final Neo4jConnector connector;
 
@@ -26,14 +31,14 @@ public class ReviewGraphDAO {
      * @param rating
      */
     public boolean addReview(ObjectId userId, ObjectId bookId, int rating) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                     "MERGE (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book})" +
-                    "ON CREATE SET r.stars = $rating",
+                    "ON CREATE SET r.rating = $rating",
                     parameters("user", userId.toHexString(),
                             "book", bookId.toHexString(),
                             "rating", rating)
-            ).consume().counters().relationshipsCreated() > 0;
+            ).consume().counters().relationshipsCreated() > 0);
         } catch (Neo4jException e) {
             return false;
         }
@@ -45,19 +50,57 @@ public class ReviewGraphDAO {
      * @param review
      */
     public boolean addReview(Review review) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                     "MERGE (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book}) " +
-                    "ON CREATE SET r.stars = $rating",
+                    "ON CREATE SET r.rating = $rating",
                     parameters("user", review.getUserId().toHexString(),
                             "book", review.getBookId().toHexString(),
                             "rating", review.getStars())
-            ).consume().counters().relationshipsCreated() > 0;
+            ).consume().counters().relationshipsCreated() > 0);
         } catch (Neo4jException e) {
             return false;
         }
     }
 
+    /**
+     * Create many review relationships, sending the reviews in chunks of the default batch size
+     *
+     * @param reviews
+     * @return the number of relationships created
+     * @throws Neo4jConnector.ChunkWriteException if a chunk failed, with the number of rows committed before it
+     */
+    public int addReviews(List<Review> reviews) {
+        return addReviews(reviews, connector.getBatchSize());
+    }
+
+    /**
+     * Create many review relationships with one UNWIND statement per chunk.
+     * Both nodes must already exist; an existing relationship gets the new rating.
+     *
+     * @param reviews
+     * @param chunkSize number of reviews sent with each statement
+     * @return the number of relationships created
+     * @throws Neo4jConnector.ChunkWriteException if a chunk failed, with the number of rows committed before it
+     */
+    public int addReviews(List<Review> reviews, int chunkSize) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Review review : reviews) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("user", review.getUserId().toHexString());
+            row.put("book", review.getBookId().toHexString());
+            row.put("rating", review.getStars());
+            rows.add(row);
+        }
+        return connector.writeInChunks(
+                "UNWIND $rows AS row " +
+                "MATCH (usr:User {id: row.user}) " +
+                "MATCH (bk:Book {id: row.book}) " +
+                "MERGE (usr)-[r:RATES]->(bk) " +
+                "SET r.rating = row.rating",
+                rows, chunkSize, counters -> counters.relationshipsCreated());
+    }
+
     // READ
 
     /**
@@ -67,32 +110,30 @@ public class ReviewGraphDAO {
      * @param bookId
      */
     public Review getReview(ObjectId userId, ObjectId bookId) {
-        try (Session session = connector.getSession()) {
-            Result result = session.run(
+        return connector.read(tx -> {
+            Result result = tx.run(
                     "MATCH (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book}) " +
-                    "RETURN r.stars AS rating",
+                    "RETURN r.rating AS rating",
                     parameters("user", userId.toHexString(),
                             "book", bookId.toHexString())
             );
 
             if (result.hasNext()) {
-                Record record = result.next();
+                org.neo4j.driver.Record record = result.next();
                 Node node = record.get("rating").asNode();
                 return new Review(node);
             }
             return null;
-        }
+        });
     }
 
     public boolean checkReview(ObjectId userId, ObjectId bookId) {
-        try (Session session = connector.getSession()) {
-            return session.run(
-                    "MATCH (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book}) " +
-                    "RETURN r.stars AS rating",
-                    parameters("user", userId.toHexString(),
-                            "book", bookId.toHexString())
-            ).hasNext();
-        }
+        return connector.read(tx -> tx.run(
+                "MATCH (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book}) " +
+                "RETURN r.rating AS rating",
+                parameters("user", userId.toHexString(),
+                        "book", bookId.toHexString())
+        ).hasNext());
     }
 
     // UPDATE
@@ -105,14 +146,14 @@ public class ReviewGraphDAO {
      * @param rating
      */
     public boolean updateReview(ObjectId userId, ObjectId bookId, int rating) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                     "MATCH (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book}) " +
-                    "SET r.stars = $rating",
+                    "SET r.rating = $rating",
                     parameters("user", userId.toHexString(),
                             "book", bookId.toHexString(),
                             "rating", rating)
-            ).consume().counters().containsUpdates();
+            ).consume().counters().containsUpdates());
         } catch (Neo4jException e) {
             return false;
         }
@@ -124,14 +165,14 @@ public class ReviewGraphDAO {
      * @param review
      */
     public boolean updateReview(Review review) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                     "MATCH (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book}) " +
-                    "SET r.stars = $rating",
+                    "SET r.rating = $rating",
                     parameters("user", review.getUserId().toHexString(),
                             "book", review.getBookId().toHexString(),
                             "rating", review.getStars())
-            ).consume().counters().containsUpdates();
+            ).consume().counters().containsUpdates());
         } catch (Neo4jException e) {
             return false;
         }
@@ -146,31 +187,65 @@ public class ReviewGraphDAO {
      * @param bookId
      */
     public boolean deleteReview(ObjectId userId, ObjectId bookId) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                     "MATCH (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book}) " +
                     "DELETE r",
                     parameters("user", userId.toHexString(),
                             "book", bookId.toHexString())
-            ).consume().counters().relationshipsDeleted() > 0;
+            ).consume().counters().relationshipsDeleted() > 0);
         } catch (Neo4jException e) {
             return false;
         }
     }
 
+    /**
+     * Delete many review relationships, sending the reviews in chunks of the default batch size
+     *
+     * @param reviews
+     * @return the number of relationships deleted
+     * @throws Neo4jConnector.ChunkWriteException if a chunk failed, with the number of rows committed before it
+     */
+    public int deleteReviews(List<Review> reviews) {
+        return deleteReviews(reviews, connector.getBatchSize());
+    }
+
+    /**
+     * Delete many review relationships with one UNWIND statement per chunk
+     *
+     * @param reviews
+     * @param chunkSize number of reviews sent with each statement
+     * @return the number of relationships deleted
+     * @throws Neo4jConnector.ChunkWriteException if a chunk failed, with the number of rows committed before it
+     */
+    public int deleteReviews(List<Review> reviews, int chunkSize) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Review review : reviews) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("user", review.getUserId().toHexString());
+            row.put("book", review.getBookId().toHexString());
+            rows.add(row);
+        }
+        return connector.writeInChunks(
+                "UNWIND $rows AS row " +
+                "MATCH (usr:User {id: row.user})-[r:RATES]->(bk:Book {id: row.book}) " +
+                "DELETE r",
+                rows, chunkSize, counters -> counters.relationshipsDeleted());
+    }
+
     /**
      * Delete a review from the graph database
      *
      * @param review
      */
     public boolean deleteReview(Review review) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                     "MATCH (usr:User {id: $user})-[r:RATES]->(bk:Book {id: $book}) " +
                     "DELETE r",
                     parameters("user", review.getUserId().toHexString(),
                             "book", review.getBookId().toHexString())
-            ).consume().counters().relationshipsDeleted() > 0;
+            ).consume().counters().relationshipsDeleted() > 0);
         } catch (Neo4jException e) {
             return false;
         }
@@ -46,18 +46,18 @@ public class UserGraphDAO {
      * @param user 
      */
     public boolean addUser(ObjectId id, Reviewer user) {
-        try (Session session = connector.getSession()) {
+        try {
             // Convert ObjectId to string
             String idString = id.toHexString();
     
             // Create the node only if it hasn't been created
-            return session.run(
+            return connector.write(tx -> tx.run(
                 "MERGE (u:User {id: $id}) " + 
                 "ON CREATE SET u.fav_genres = $fav_genres, u.nickname = $nickname", 
                 parameters("id", idString, 
                             "fav_genres", user.getFavouriteGenresString(),
                             "nickname", user.getNickname())
-            ).consume().counters().nodesCreated() > 0;
+            ).consume().counters().nodesCreated() > 0);
         } catch (Exception e) {
             System.err.println("Error while inserting user: " + e.getMessage());
             return false;
@@ -86,8 +86,8 @@ public class UserGraphDAO {
     // READ OPERATIONS
 
     public List<Reviewer> getAllUsers() {
-        try (Session session = connector.getSession()) {
-            Result result = session.run(
+        return connector.read(tx -> {
+            Result result = tx.run(
                 "MATCH (u:User) " +
                 "RETURN u"
             );
@@ -107,12 +107,12 @@ public class UserGraphDAO {
             }
 
             return userList;
-        }
+        });
     }
 
     public Reviewer getUserById(ObjectId id) {
-        try (Session session = connector.getSession()) {
-            Result result = session.run(
+        return connector.read(tx -> {
+            Result result = tx.run(
                 "MATCH (u:User {id: $id}) " +
                 "RETURN u", 
                 parameters("id", id.toHexString())
@@ -132,19 +132,19 @@ public class UserGraphDAO {
             }
 
             return null;
-        }
+        });
     }
 
     // UPDATE OPERATIONS
 
     public boolean updateUser(Reviewer user) {
-        try(Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                 "MATCH (u:User {id: $id}) " +
                 "SET u.fav_genres = $fav_genres",
                 parameters("id", user.getId().toHexString(), 
                             "fav_genres", user.getFavouriteGenresString())
-            ).consume().counters().containsUpdates();
+            ).consume().counters().containsUpdates());
         } catch (Neo4jException e) {
             return false;
         }
@@ -173,12 +173,12 @@ public class UserGraphDAO {
      * @param user
      */
     public boolean deleteUser(Reviewer user) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                 "MATCH (u:User {id: $id}) " +
                 "DETACH DELETE u", 
                 parameters("id", user.getId().toHexString())
-            ).consume().counters().nodesDeleted() > 0;
+            ).consume().counters().nodesDeleted() > 0);
         } catch (Neo4jException e) {
             System.err.println("Error while deleting user: " + e.getMessage());
             return false;
@@ -190,12 +190,12 @@ public class UserGraphDAO {
      * @param userId
      */
     public boolean deleteUserById(ObjectId userId) {
-        try (Session session = connector.getSession()) {
-            return session.run(
+        try {
+            return connector.write(tx -> tx.run(
                 "MATCH (u:User {id: $id}) " +
                 "DETACH DELETE u", 
                 parameters("id", userId.toHexString())
-            ).consume().counters().nodesDeleted() > 0;
+            ).consume().counters().nodesDeleted() > 0);
         } catch (Neo4jException e) {
             System.err.println("Error while deleting user: " + e.getMessage());
             return false;
@@ -65,14 +65,13 @@ public class Book {
     private int year;
     private String imageUrl;
     private int numPages;
-    private List<ObjectId> reviewIds;
     private Map<String, RatingAggregate> ratingsAggByNat;
     private List<Review> most10UsefulReviews;
 
     // Constructor
     public Book(ObjectId id, int sumStars, int numRatings, String language,
                 String title, Author[] authors, String[] genre, int year,
-                String imageUrl, int numPages, List<ObjectId> reviewIds, Map<String, RatingAggregate> ratingsAggByNat, List<Review> most10UsefulReviews) {
+                String imageUrl, int numPages, Map<String, RatingAggregate> ratingsAggByNat, List<Review> most10UsefulReviews) {
         this.id = id;
         this.sumStars = sumStars;
         this.numRatings = numRatings;
@@ -88,7 +87,6 @@ public class Book {
         this.year = year;
         this.imageUrl = imageUrl;
         this.numPages = numPages;
-        this.reviewIds = new ArrayList<ObjectId>(reviewIds);
         this.ratingsAggByNat = ratingsAggByNat;
         this.most10UsefulReviews = most10UsefulReviews;
     }
@@ -109,7 +107,6 @@ public class Book {
         this.year = doc.getInteger("year");
         this.imageUrl = doc.getString("image_url");
         this.numPages = doc.getInteger("num_pages");
-        this.reviewIds = doc.getList("review_ids", ObjectId.class);
         this.ratingsAggByNat = (Map<String, RatingAggregate>) doc.get("ratings_agg_by_nat");
 
         List<Document> reviewsList = (List<Document>) doc.get("most_10_useful_reviews");
@@ -136,7 +133,6 @@ public class Book {
         this.year = 0;
         this.imageUrl = null;
         this.numPages = 0;
-        this.reviewIds = null;
         this.ratingsAggByNat = null;
         this.most10UsefulReviews = null;
     }
@@ -152,7 +148,6 @@ public class Book {
         this.year = 0;
         this.imageUrl = null;
         this.numPages = 0;
-        this.reviewIds = null;
         this.ratingsAggByNat = null;
         this.most10UsefulReviews = null;
     }
@@ -173,8 +168,8 @@ public class Book {
                 .append("sumStars", sumStars)
                 .append("numRatings", numRatings)
                 .append("image_url", imageUrl)
-                .append("review_ids", reviewIds)
-                .append("ratings_agg_by_nat", ratingsAggByNat)
+                // An empty object rather than null, so that the rating counters can be incremented
+                .append("ratings_agg_by_nat", ratingsAggByNat != null ? ratingsAggByNat : new Document())
                 .append("most_10_useful_reviews", most10UsefulReviews);
     }
     // Getters and setters
@@ -275,14 +270,6 @@ public class Book {
         this.most10UsefulReviews = most10UsefulReviews;
     }
 
-    public List<ObjectId> getReviewIds() {
-        return reviewIds;
-    }
-
-    public void setReviewIds(List<ObjectId> reviewIds) {
-        this.reviewIds = reviewIds;
-    }
-
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -304,7 +291,6 @@ public class Book {
                 .append(", year=").append(year)
                 .append(", imageUrl='").append(imageUrl).append('\'')
                 .append(", numPages=").append(numPages)
-                .append(", reviewIds=").append(reviewIds)
                 .append(", ratingsAggByNat=").append(ratingsAggByNat)
                 .append(", most10UsefulReviews=").append(most10UsefulReviews)
                 .append('}');
@@ -334,15 +320,6 @@ public class Book {
         }
     }
 
-    public void addReview(ObjectId reviewId) {
-        if (this.reviewIds == null) {
-            this.reviewIds = new ArrayList<>();
-        }
-        if (!this.reviewIds.contains(reviewId)) {
-            this.reviewIds.add(reviewId);
-        }
-    }
-
     public void insertReview(ObjectId id, ObjectId userId, ObjectId bookId, String nickname, String text, String nat,  int stars, int countUpVote, int countDownVote) {
         Review review = new Review(id, userId, bookId, nickname, text, nat, stars, countUpVote, countDownVote);
         most10UsefulReviews.add(review);
@@ -0,0 +1,90 @@
+package it.unipi.lsmsdb.bookadvisor.model.book;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+// Lightweight read model of a book for list screens: only what a list entry shows.
+// It is decoded from documents projected on title, authors, image_url, sumStars and numRatings
+public class BookSummary {
+    private ObjectId id;
+    private String title;
+    private Book.Author[] authors;
+    private String imageUrl;
+    private int sumStars;
+    private int numRatings;
+
+    // Constructor
+    public BookSummary(ObjectId id, String title, Book.Author[] authors, String imageUrl, int sumStars, int numRatings) {
+        this.id = id;
+        this.title = title;
+        this.authors = authors;
+        this.imageUrl = imageUrl;
+        this.sumStars = sumStars;
+        this.numRatings = numRatings;
+    }
+
+    // Constructor that accepts a (projected) Document object
+    public BookSummary(Document doc) {
+        this.id = doc.getObjectId("_id");
+        this.title = doc.getString("title");
+        this.imageUrl = doc.getString("image_url");
+        this.sumStars = doc.getInteger("sumStars", 0);
+        this.numRatings = doc.getInteger("numRatings", 0);
+
+        if (doc.containsKey("authors")) {
+            this.authors = doc.getList("authors", Document.class).stream()
+                    .map(authorDoc -> new Book.Author(authorDoc.getObjectId("id"), authorDoc.getString("name")))
+                    .toArray(Book.Author[]::new);
+        } else {
+            this.authors = new Book.Author[0];
+        }
+    }
+
+    // Getters and setters
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public Book.Author[] getAuthors() {
+        return authors;
+    }
+
+    public String getImageUrl() {
+        return imageUrl;
+    }
+
+    public int getSumStars() {
+        return sumStars;
+    }
+
+    public void setSumStars(int sumStars) {
+        this.sumStars = sumStars;
+    }
+
+    public int getNumRatings() {
+        return numRatings;
+    }
+
+    public void setNumRatings(int numRatings) {
+        this.numRatings = numRatings;
+    }
+
+    public double getAverageRating() {
+        return numRatings > 0 ? (double) sumStars / numRatings : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        return "BookSummary{" +
+                "id=" + id +
+                ", title='" + title + '\'' +
+                ", sumStars=" + sumStars +
+                ", numRatings=" + numRatings +
+                '}';
+    }
+}
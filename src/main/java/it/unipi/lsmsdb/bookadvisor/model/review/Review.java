@@ -63,7 +63,13 @@ public class Review {
                 .append("country", country)
                 .append("rating", stars)
                 .append("count_up_votes", countUpVote)
-                .append("count_down_votes", countDownVote);
+                .append("count_down_votes", countDownVote)
+                .append("usefulness", getUsefulness());
+    }
+
+    // Up votes minus down votes, stored with the review to rank the reviews of a user
+    public int getUsefulness() {
+        return countUpVote - countDownVote;
     }
 
     public ObjectId getId() {
@@ -2,6 +2,7 @@ package it.unipi.lsmsdb.bookadvisor.model.user;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.time.LocalDate;
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -69,8 +70,9 @@ public class Reviewer {
         this.nationality = doc.getString("nationality");
         this.favouriteGenres = doc.getList("favourite_genres", String.class);
         this.spokenLanguages = doc.getList("spoken_languages", String.class);
-        this.upVotedReviews = doc.getList("up_voted_reviews", ObjectId.class);
-        this.downVotedReviews = doc.getList("down_voted_reviews", ObjectId.class);
+        // Users stored without the vote lists get empty ones, so that saving them back never writes null lists
+        this.upVotedReviews = new ArrayList<>(doc.getList("up_voted_reviews", ObjectId.class, new ArrayList<>()));
+        this.downVotedReviews = new ArrayList<>(doc.getList("down_voted_reviews", ObjectId.class, new ArrayList<>()));
     }    
     
     // Constructor from Neo4j Node
@@ -113,6 +115,11 @@ public class Reviewer {
         this.nickname = nickname;
     }
 
+    // Normalised form of a nickname, stored in nickname_lower for exact case-insensitive lookups
+    public static String normalizeNickname(String nickname) {
+        return nickname == null ? null : nickname.trim().toLowerCase(Locale.ROOT);
+    }
+
     public String getPassword() {
         return password;
     }
@@ -241,6 +248,7 @@ public class Reviewer {
     public Document toDocument() {
         return new Document("name", name)
                 .append("nickname", nickname)
+                .append("nickname_lower", normalizeNickname(nickname))
                 .append("password", password)
                 .append("birth", birthdate.toString())
                 .append("gender", gender)
@@ -0,0 +1,94 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.BookNeighboursDao;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.MongoDBConnector;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Serves book recommendations from the neighbours precomputed by RecommendationEngine.
+// The books the user rated at least MIN_SEED_RATING are the seeds: every neighbour of a seed scores
+// similarity * rating, scores of the same book add up, books the user already rated are skipped.
+// Three indexed reads: the user's reviews, the neighbours of the seeds, the titles of the best candidates.
+public class BookRecommender {
+    private static final int MIN_SEED_RATING = 3;
+    // Candidates fetched for each requested book, to have enough left after the language filter
+    private static final int CANDIDATE_FACTOR = 5;
+
+    private final BookNeighboursDao neighboursDao;
+    private MongoCollection<Document> reviews;
+    private MongoCollection<Document> books;
+
+    public BookRecommender(MongoDBConnector connector) {
+        MongoDatabase database = connector.getDatabase();
+        this.neighboursDao = new BookNeighboursDao(connector);
+        reviews = database.getCollection("reviews");
+        books = database.getCollection("books");
+    }
+
+    // The best books for the user among those in the given languages, best first.
+    // Each result has bookId, title, language and score. Empty when the user rated no book with neighbours
+    public List<Document> recommend(ObjectId userId, List<String> languages, int limit) {
+        Set<ObjectId> rated = new HashSet<>();
+        Map<ObjectId, Integer> seeds = new HashMap<>();
+        for (Document review : reviews.find(Filters.eq("user_id", userId)).projection(Projections.include("book_id", "rating"))) {
+            ObjectId bookId = review.getObjectId("book_id");
+            Number rating = review.get("rating", Number.class);
+            if (bookId == null) {
+                continue;
+            }
+            rated.add(bookId);
+            if (rating != null && rating.intValue() >= MIN_SEED_RATING) {
+                seeds.put(bookId, rating.intValue());
+            }
+        }
+
+        Map<ObjectId, Double> scores = new HashMap<>();
+        for (Map.Entry<ObjectId, List<Document>> entry : neighboursDao.findNeighbours(seeds.keySet()).entrySet()) {
+            int rating = seeds.get(entry.getKey());
+            for (Document neighbour : entry.getValue()) {
+                ObjectId bookId = neighbour.getObjectId("bookId");
+                if (!rated.contains(bookId)) {
+                    scores.merge(bookId, neighbour.getDouble("score") * rating, Double::sum);
+                }
+            }
+        }
+        if (scores.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<Map.Entry<ObjectId, Double>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((e1, e2) -> Double.compare(e2.getValue(), e1.getValue()));
+        List<ObjectId> candidates = new ArrayList<>();
+        for (int i = 0; i < ranked.size() && candidates.size() < limit * CANDIDATE_FACTOR; i++) {
+            candidates.add(ranked.get(i).getKey());
+        }
+
+        Bson filter = Filters.in("_id", candidates);
+        if (languages != null && !languages.isEmpty()) {
+            filter = Filters.and(filter, Filters.in("language", languages));
+        }
+        List<Document> results = new ArrayList<>();
+        for (Document book : books.find(filter).projection(Projections.include("title", "language"))) {
+            results.add(new Document("bookId", book.getObjectId("_id"))
+                .append("title", book.getString("title"))
+                .append("language", book.getString("language"))
+                .append("score", scores.get(book.getObjectId("_id"))));
+        }
+        results.sort((b1, b2) -> Double.compare(b2.getDouble("score"), b1.getDouble("score")));
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+}
@@ -0,0 +1,228 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Item-item cosine similarity between the rating vectors of the books, keeping the top N neighbours of each book.
+// For a book i, the co-rated books are found by walking the users of i and their books, accumulating the dot
+// products in a dense per-thread workspace, so the cost is proportional to the co-ratings and not to books^2.
+// The similarity is shrunk towards 0 when few users rated both books: sim * n / (n + shrink).
+// Books are split in ranges processed in parallel on a fork-join pool; every book writes only its own row.
+public class ItemSimilarity {
+    // Books handled by a leaf task
+    private static final int LEAF_SIZE = 64;
+
+    private final RatingMatrix matrix;
+    private final int numNeighbours;
+    private final float shrink;
+    private final int minCoRaters;
+    private final float[] norms;
+
+    public ItemSimilarity(RatingMatrix matrix, int numNeighbours, float shrink, int minCoRaters) {
+        if (numNeighbours <= 0 || shrink < 0 || minCoRaters <= 0) {
+            throw new IllegalArgumentException("Invalid similarity parameters");
+        }
+        this.matrix = matrix;
+        this.numNeighbours = numNeighbours;
+        this.shrink = shrink;
+        this.minCoRaters = minCoRaters;
+        this.norms = new float[matrix.getNumBooks()];
+        for (int book = 0; book < norms.length; book++) {
+            double sum = 0;
+            for (int k = matrix.bookPtr[book]; k < matrix.bookPtr[book + 1]; k++) {
+                sum += matrix.bookRatings[k] * matrix.bookRatings[k];
+            }
+            norms[book] = (float) Math.sqrt(sum);
+        }
+    }
+
+    public Neighbours compute(ForkJoinPool pool) {
+        Neighbours neighbours = new Neighbours(matrix.getNumBooks());
+        ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(() -> new Workspace(matrix.getNumBooks(), numNeighbours));
+        pool.invoke(new RangeTask(0, matrix.getNumBooks(), neighbours, workspaces));
+        return neighbours;
+    }
+
+    private void computeBook(int book, Neighbours neighbours, Workspace workspace) {
+        float[] dot = workspace.dot;
+        int[] coRaters = workspace.coRaters;
+        int touchedCount = 0;
+
+        for (int k = matrix.bookPtr[book]; k < matrix.bookPtr[book + 1]; k++) {
+            int user = matrix.bookUsers[k];
+            float rating = matrix.bookRatings[k];
+            for (int l = matrix.userPtr[user]; l < matrix.userPtr[user + 1]; l++) {
+                int other = matrix.userBooks[l];
+                if (other == book) {
+                    continue;
+                }
+                if (coRaters[other] == 0) {
+                    workspace.touched[touchedCount++] = other;
+                }
+                coRaters[other]++;
+                dot[other] += rating * matrix.userRatings[l];
+            }
+        }
+
+        TopN top = workspace.top;
+        top.clear();
+        for (int t = 0; t < touchedCount; t++) {
+            int other = workspace.touched[t];
+            int count = coRaters[other];
+            if (count >= minCoRaters && norms[book] > 0 && norms[other] > 0) {
+                float similarity = dot[other] / (norms[book] * norms[other]) * count / (count + shrink);
+                top.offer(other, similarity);
+            }
+            // Reset only what was touched, the workspace is reused for the next book
+            dot[other] = 0;
+            coRaters[other] = 0;
+        }
+        top.drainInto(neighbours, book);
+    }
+
+    private class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final Neighbours neighbours;
+        private final ThreadLocal<Workspace> workspaces;
+
+        RangeTask(int from, int to, Neighbours neighbours, ThreadLocal<Workspace> workspaces) {
+            this.from = from;
+            this.to = to;
+            this.neighbours = neighbours;
+            this.workspaces = workspaces;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                Workspace workspace = workspaces.get();
+                for (int book = from; book < to; book++) {
+                    computeBook(book, neighbours, workspace);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, middle, neighbours, workspaces), new RangeTask(middle, to, neighbours, workspaces));
+        }
+    }
+
+    // Per-thread scratch arrays, sized once for the whole catalogue
+    private static class Workspace {
+        final float[] dot;
+        final int[] coRaters;
+        final int[] touched;
+        final TopN top;
+
+        Workspace(int numBooks, int numNeighbours) {
+            dot = new float[numBooks];
+            coRaters = new int[numBooks];
+            touched = new int[numBooks];
+            top = new TopN(numNeighbours);
+        }
+    }
+
+    // Bounded min-heap on the score: keeps the N highest scored items seen
+    static class TopN {
+        private final int capacity;
+        private final int[] items;
+        private final float[] scores;
+        private int size;
+
+        TopN(int capacity) {
+            this.capacity = capacity;
+            this.items = new int[capacity];
+            this.scores = new float[capacity];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void offer(int item, float score) {
+            if (size < capacity) {
+                items[size] = item;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (score > scores[0]) {
+                items[0] = item;
+                scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        // Store the items and their scores, by decreasing score, as the neighbours of the book.
+        // Pops the heap: the instance is empty afterwards
+        void drainInto(Neighbours neighbours, int book) {
+            int count = size;
+            // Heap sort in place: repeatedly move the minimum to the end, leaving the arrays in decreasing order
+            while (size > 1) {
+                swap(0, --size);
+                siftDown(0);
+            }
+            size = 0;
+            neighbours.books[book] = Arrays.copyOf(items, count);
+            neighbours.scores[book] = Arrays.copyOf(scores, count);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (scores[i] >= scores[parent]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int left = 2 * i + 1;
+                int smallest = i;
+                if (left < size && scores[left] < scores[smallest]) {
+                    smallest = left;
+                }
+                if (left + 1 < size && scores[left + 1] < scores[smallest]) {
+                    smallest = left + 1;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int item = items[i];
+            items[i] = items[j];
+            items[j] = item;
+            float score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+
+    // Top neighbours of every book, by book index, most similar first
+    public static class Neighbours {
+        final int[][] books;
+        final float[][] scores;
+
+        Neighbours(int numBooks) {
+            books = new int[numBooks][];
+            scores = new float[numBooks][];
+        }
+
+        public int[] getBooks(int book) {
+            return books[book];
+        }
+
+        public float[] getScores(int book) {
+            return scores[book];
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
+import java.util.Collection;
+import java.util.Random;
+
+// MinHash signatures of sets of book IDs, split in LSH bands.
+// Two sets agree on a signature value with probability equal to their Jaccard similarity, so two users
+// share at least one band key with probability 1 - (1 - J^rows)^bands. The hash functions are drawn from
+// a fixed seed: the keys stored by the offline job and those computed by the incremental refresh must agree.
+// They only agree for the same bands and rows: getConfigKey identifies the settings the keys were computed with.
+public class MinHash {
+    private static final long PRIME = 2147483647L;
+    private static final long SEED = 0x5EEDB00CL;
+
+    private final int bands;
+    private final int rows;
+    private final long[] a;
+    private final long[] b;
+
+    public MinHash(int bands, int rows) {
+        if (bands <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("Bands and rows must be positive");
+        }
+        this.bands = bands;
+        this.rows = rows;
+        Random random = new Random(SEED);
+        a = new long[bands * rows];
+        b = new long[bands * rows];
+        for (int k = 0; k < a.length; k++) {
+            a[k] = 1 + random.nextInt((int) PRIME - 1);
+            b[k] = random.nextInt((int) PRIME);
+        }
+    }
+
+    public static MinHash fromConfig() {
+        return new MinHash(Config.getInt("similarUsers.bands", 32), Config.getInt("similarUsers.rows", 2));
+    }
+
+    // The same for two instances exactly when they compute the same band keys
+    public String getConfigKey() {
+        return "bands=" + bands + ",rows=" + rows + ",seed=" + SEED;
+    }
+
+    // Hash of a book ID, the element of the sets
+    public static int elementHash(String bookId) {
+        return bookId.hashCode() & 0x7fffffff;
+    }
+
+    public int[] signature(Collection<String> bookIds) {
+        int[] hashes = new int[bookIds.size()];
+        int i = 0;
+        for (String bookId : bookIds) {
+            hashes[i++] = elementHash(bookId);
+        }
+        return signature(hashes, 0, hashes.length);
+    }
+
+    // Signature of the element hashes in elements[from .. to)
+    public int[] signature(int[] elements, int from, int to) {
+        int[] signature = new int[a.length];
+        for (int k = 0; k < a.length; k++) {
+            long min = PRIME;
+            for (int i = from; i < to; i++) {
+                long value = (a[k] * elements[i] + b[k]) % PRIME;
+                if (value < min) {
+                    min = value;
+                }
+            }
+            signature[k] = (int) min;
+        }
+        return signature;
+    }
+
+    // One key per band: the band number in the top byte, a hash of the band's rows in the rest
+    public long[] bandKeys(int[] signature) {
+        long[] keys = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            long hash = 1125899906842597L;
+            for (int row = 0; row < rows; row++) {
+                hash = 31 * hash + signature[band * rows + row];
+            }
+            keys[band] = ((long) band << 56) | (mix(hash) & 0x00FFFFFFFFFFFFFFL);
+        }
+        return keys;
+    }
+
+    // Finaliser of MurmurHash3, spreads the bits of the band hash
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
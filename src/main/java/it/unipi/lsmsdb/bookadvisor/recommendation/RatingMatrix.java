@@ -0,0 +1,142 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import it.unipi.lsmsdb.bookadvisor.dao.graphDB.Neo4jConnector;
+
+import org.neo4j.driver.Result;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Sparse user x book rating matrix with users and books mapped to dense int indexes.
+// The ratings are stored twice in compressed sparse row form, grouped by book and grouped by user,
+// as primitive arrays: the ratings of book b are bookUsers/bookRatings[bookPtr[b] .. bookPtr[b + 1]),
+// the ratings of user u are userBooks/userRatings[userPtr[u] .. userPtr[u + 1]), sorted by book index.
+public class RatingMatrix {
+    private final String[] userIds;
+    private final String[] bookIds;
+
+    final int[] bookPtr;
+    final int[] bookUsers;
+    final float[] bookRatings;
+
+    final int[] userPtr;
+    final int[] userBooks;
+    final float[] userRatings;
+
+    private RatingMatrix(String[] userIds, String[] bookIds, int[] users, int[] books, float[] ratings, int size) {
+        this.userIds = userIds;
+        this.bookIds = bookIds;
+
+        bookPtr = new int[bookIds.length + 1];
+        bookUsers = new int[size];
+        bookRatings = new float[size];
+        group(books, users, ratings, size, bookPtr, bookUsers, bookRatings);
+
+        // Grouping the by-book arrays again, in order, leaves the books of every user sorted by index
+        int[] sortedBooks = new int[size];
+        for (int book = 0; book < bookIds.length; book++) {
+            Arrays.fill(sortedBooks, bookPtr[book], bookPtr[book + 1], book);
+        }
+        userPtr = new int[userIds.length + 1];
+        userBooks = new int[size];
+        userRatings = new float[size];
+        group(bookUsers, sortedBooks, bookRatings, size, userPtr, userBooks, userRatings);
+    }
+
+    // Stable counting sort of the (row, column, value) triples by row
+    private static void group(int[] rows, int[] columns, float[] values, int size, int[] ptr, int[] outColumns, float[] outValues) {
+        for (int i = 0; i < size; i++) {
+            ptr[rows[i] + 1]++;
+        }
+        for (int row = 0; row < ptr.length - 1; row++) {
+            ptr[row + 1] += ptr[row];
+        }
+        int[] next = Arrays.copyOf(ptr, ptr.length - 1);
+        for (int i = 0; i < size; i++) {
+            int position = next[rows[i]]++;
+            outColumns[position] = columns[i];
+            outValues[position] = values[i];
+        }
+    }
+
+    // Load every RATES relationship of the graph. The builder is created inside the transaction work,
+    // so an attempt retried by the driver does not add its rows to those of the failed one
+    public static RatingMatrix loadFromGraph(Neo4jConnector connector) {
+        return connector.export(tx -> {
+            Builder builder = new Builder();
+            Result result = tx.run("MATCH (u:User)-[r:RATES]->(b:Book) RETURN u.id AS user, b.id AS book, r.rating AS rating");
+            while (result.hasNext()) {
+                org.neo4j.driver.Record record = result.next();
+                if (!record.get("rating").isNull()) {
+                    builder.add(record.get("user").asString(), record.get("book").asString(), record.get("rating").asInt());
+                }
+            }
+            return builder.build();
+        });
+    }
+
+    public int getNumUsers() {
+        return userIds.length;
+    }
+
+    public int getNumBooks() {
+        return bookIds.length;
+    }
+
+    public int getNumRatings() {
+        return bookUsers.length;
+    }
+
+    public String getUserId(int user) {
+        return userIds[user];
+    }
+
+    public String getBookId(int book) {
+        return bookIds[book];
+    }
+
+    // Collects the ratings in growable primitive arrays, assigning indexes in order of appearance
+    public static class Builder {
+        private final Map<String, Integer> users = new HashMap<>();
+        private final Map<String, Integer> books = new HashMap<>();
+        private int[] userColumn = new int[1024];
+        private int[] bookColumn = new int[1024];
+        private float[] ratingColumn = new float[1024];
+        private int size = 0;
+
+        public void add(String userId, String bookId, int rating) {
+            if (size == userColumn.length) {
+                int capacity = size * 2;
+                userColumn = Arrays.copyOf(userColumn, capacity);
+                bookColumn = Arrays.copyOf(bookColumn, capacity);
+                ratingColumn = Arrays.copyOf(ratingColumn, capacity);
+            }
+            userColumn[size] = index(users, userId);
+            bookColumn[size] = index(books, bookId);
+            ratingColumn[size] = rating;
+            size++;
+        }
+
+        public RatingMatrix build() {
+            return new RatingMatrix(ids(users), ids(books), userColumn, bookColumn, ratingColumn, size);
+        }
+
+        private static int index(Map<String, Integer> indexes, String id) {
+            Integer index = indexes.get(id);
+            if (index == null) {
+                index = indexes.size();
+                indexes.put(id, index);
+            }
+            return index;
+        }
+
+        private static String[] ids(Map<String, Integer> indexes) {
+            String[] ids = new String[indexes.size()];
+            for (Map.Entry<String, Integer> entry : indexes.entrySet()) {
+                ids[entry.getValue()] = entry.getKey();
+            }
+            return ids;
+        }
+    }
+}
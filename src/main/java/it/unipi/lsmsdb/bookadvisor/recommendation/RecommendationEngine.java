@@ -0,0 +1,103 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.BookNeighboursDao;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.MongoDBConnector;
+import it.unipi.lsmsdb.bookadvisor.dao.graphDB.Neo4jConnector;
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// Command line tool that recomputes the item-item neighbours served by BookRecommender.
+// Usage: RecommendationEngine [--threads N] [--neighbours N]
+//
+// Every RATES relationship is loaded from Neo4j into a RatingMatrix, the top N most similar books of
+// every book are computed on all the cores and the result replaces the book_neighbours collection.
+// The job only reads the graph, so it can run at any time; the neighbours are as fresh as the last run.
+public class RecommendationEngine {
+    private final Neo4jConnector graphConnector;
+    private final BookNeighboursDao neighboursDao;
+    private final int threads;
+    private final int numNeighbours;
+    private final float shrink;
+    private final int minCoRaters;
+
+    public RecommendationEngine(Neo4jConnector graphConnector, MongoDBConnector connector, int threads, int numNeighbours) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be positive");
+        }
+        this.graphConnector = graphConnector;
+        this.neighboursDao = new BookNeighboursDao(connector);
+        this.threads = threads;
+        this.numNeighbours = numNeighbours;
+        this.shrink = Config.getInt("recommendation.shrink", 10);
+        this.minCoRaters = Config.getInt("recommendation.minCoRaters", 2);
+    }
+
+    public static void main(String[] args) {
+        int threads = Config.getInt("recommendation.threads", Runtime.getRuntime().availableProcessors());
+        int numNeighbours = Config.getInt("recommendation.neighbours", 20);
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--neighbours":
+                    numNeighbours = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        MongoDBConnector connector = MongoDBConnector.getInstance();
+        try {
+            new RecommendationEngine(Neo4jConnector.getInstance(), connector, threads, numNeighbours).run();
+        } finally {
+            Neo4jConnector.closeInstance();
+            connector.close();
+        }
+    }
+
+    public void run() {
+        Date computedAt = new Date();
+        long start = System.currentTimeMillis();
+
+        RatingMatrix matrix = RatingMatrix.loadFromGraph(graphConnector);
+        long loaded = System.currentTimeMillis();
+        System.out.println("recommendation: " + matrix.getNumRatings() + " ratings of " + matrix.getNumUsers()
+            + " users on " + matrix.getNumBooks() + " books loaded in " + (loaded - start) + " ms");
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ItemSimilarity.Neighbours neighbours;
+        try {
+            neighbours = new ItemSimilarity(matrix, numNeighbours, shrink, minCoRaters).compute(pool);
+        } finally {
+            pool.shutdown();
+        }
+        long computed = System.currentTimeMillis();
+        System.out.println("recommendation: neighbours computed on " + threads + " threads in " + (computed - loaded) + " ms");
+
+        List<Document> books = new ArrayList<>(matrix.getNumBooks());
+        for (int book = 0; book < matrix.getNumBooks(); book++) {
+            int[] similarBooks = neighbours.getBooks(book);
+            float[] scores = neighbours.getScores(book);
+            List<Document> list = new ArrayList<>(similarBooks.length);
+            for (int k = 0; k < similarBooks.length; k++) {
+                list.add(new Document("bookId", new ObjectId(matrix.getBookId(similarBooks[k]))).append("score", (double) scores[k]));
+            }
+            books.add(new Document("_id", new ObjectId(matrix.getBookId(book))).append("neighbours", list));
+        }
+        neighboursDao.saveAll(books, computedAt);
+        long removed = neighboursDao.deleteComputedBefore(computedAt);
+        System.out.println("recommendation: done, " + books.size() + " books written, " + removed + " stale books removed in "
+            + (System.currentTimeMillis() - computed) + " ms");
+    }
+}
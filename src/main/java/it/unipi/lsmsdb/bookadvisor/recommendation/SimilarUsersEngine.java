@@ -0,0 +1,229 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.MongoDBConnector;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.SimilarUsersDao;
+import it.unipi.lsmsdb.bookadvisor.dao.graphDB.Neo4jConnector;
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Value;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+// Command line tool that recomputes the similar_users collection served by getUsersWithSimilarTastes.
+// Usage: SimilarUsersEngine [--threads N]
+//
+// Instead of expanding every co-rater of every book, the rated-book set of every user gets a MinHash
+// signature; users sharing an LSH band key become candidates, ranked by the number of shared keys.
+// The candidates are then verified with the rules of the graph query: a shared favourite genre and
+// the common books rated with a difference of less than SimilarUsersDao.MAX_RATING_DIFFERENCE stars.
+// Users who have much fewer books in common than books rated may be missed: their sets are not similar
+// enough to share a band. SimilarUsersDao keeps the result up to date as new ratings arrive.
+public class SimilarUsersEngine {
+    private final Neo4jConnector graphConnector;
+    private final SimilarUsersDao similarUsersDao;
+    private final MinHash minHash;
+    private final int threads;
+    private final int maxCandidates;
+
+    public SimilarUsersEngine(Neo4jConnector graphConnector, MongoDBConnector connector, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be positive");
+        }
+        this.graphConnector = graphConnector;
+        this.similarUsersDao = new SimilarUsersDao(connector);
+        this.minHash = MinHash.fromConfig();
+        this.threads = threads;
+        this.maxCandidates = Config.getInt("similarUsers.maxCandidates", 500);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Config.getInt("recommendation.threads", Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < args.length; i++) {
+            if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        MongoDBConnector connector = MongoDBConnector.getInstance();
+        try {
+            new SimilarUsersEngine(Neo4jConnector.getInstance(), connector, threads).run();
+        } finally {
+            Neo4jConnector.closeInstance();
+            connector.close();
+        }
+    }
+
+    public void run() throws InterruptedException, ExecutionException {
+        Date computedAt = new Date();
+        long start = System.currentTimeMillis();
+
+        RatingMatrix matrix = RatingMatrix.loadFromGraph(graphConnector);
+        Map<String, Profile> profiles = loadProfiles();
+        String[] titles = loadTitles(matrix);
+        long loaded = System.currentTimeMillis();
+        System.out.println("similar-users: " + matrix.getNumRatings() + " ratings of " + matrix.getNumUsers()
+            + " users loaded in " + (loaded - start) + " ms");
+
+        int[] bookHashes = new int[matrix.getNumBooks()];
+        for (int book = 0; book < bookHashes.length; book++) {
+            bookHashes[book] = MinHash.elementHash(matrix.getBookId(book));
+        }
+        int[] elements = new int[matrix.getNumRatings()];
+        for (int k = 0; k < elements.length; k++) {
+            elements[k] = bookHashes[matrix.userBooks[k]];
+        }
+
+        long[][] bands = new long[matrix.getNumUsers()][];
+        Document[] docs = new Document[matrix.getNumUsers()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, matrix.getNumUsers()).parallel().forEach(user ->
+                bands[user] = minHash.bandKeys(minHash.signature(elements, matrix.userPtr[user], matrix.userPtr[user + 1]))
+            )).get();
+
+            Map<Long, List<Integer>> buckets = new HashMap<>();
+            for (int user = 0; user < bands.length; user++) {
+                for (long key : bands[user]) {
+                    buckets.computeIfAbsent(key, k -> new ArrayList<>()).add(user);
+                }
+            }
+            long hashed = System.currentTimeMillis();
+            System.out.println("similar-users: " + buckets.size() + " buckets built in " + (hashed - loaded) + " ms");
+
+            pool.submit(() -> IntStream.range(0, matrix.getNumUsers()).parallel().forEach(user ->
+                docs[user] = similarUsers(user, matrix, bands, buckets, profiles, titles)
+            )).get();
+            System.out.println("similar-users: candidates verified in " + (System.currentTimeMillis() - hashed) + " ms");
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Document> results = new ArrayList<>(docs.length);
+        for (Document doc : docs) {
+            results.add(doc);
+        }
+        similarUsersDao.saveAll(results, computedAt);
+        long removed = similarUsersDao.deleteComputedBefore(computedAt);
+        similarUsersDao.saveConfig(minHash);
+        System.out.println("similar-users: done, " + results.size() + " users written, " + removed + " stale users removed in "
+            + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private Document similarUsers(int user, RatingMatrix matrix, long[][] bands, Map<Long, List<Integer>> buckets,
+                                  Map<String, Profile> profiles, String[] titles) {
+        // Candidates ranked by the number of band keys they share with the user
+        Map<Integer, Integer> hits = new HashMap<>();
+        for (long key : bands[user]) {
+            for (int other : buckets.get(key)) {
+                if (other != user) {
+                    hits.merge(other, 1, Integer::sum);
+                }
+            }
+        }
+        List<Map.Entry<Integer, Integer>> candidates = new ArrayList<>(hits.entrySet());
+        candidates.sort((c1, c2) -> Integer.compare(c2.getValue(), c1.getValue()));
+
+        Profile profile = profiles.get(matrix.getUserId(user));
+        List<Document> similar = new ArrayList<>();
+        for (int i = 0; i < candidates.size() && i < maxCandidates; i++) {
+            int other = candidates.get(i).getKey();
+            Profile otherProfile = profiles.get(matrix.getUserId(other));
+            if (profile == null || otherProfile == null || !SimilarUsersDao.sharesGenre(profile.genres, otherProfile.genres)) {
+                continue;
+            }
+            List<String> commonBooks = commonBooks(matrix, user, other, titles);
+            if (!commonBooks.isEmpty()) {
+                similar.add(new Document("userId", new ObjectId(matrix.getUserId(other)))
+                    .append("nickname", otherProfile.nickname)
+                    .append("commonBooks", commonBooks)
+                    .append("commonBookCount", commonBooks.size()));
+            }
+        }
+        similar.sort((u1, u2) -> Integer.compare(u2.getInteger("commonBookCount"), u1.getInteger("commonBookCount")));
+
+        List<Long> keys = new ArrayList<>(bands[user].length);
+        for (long key : bands[user]) {
+            keys.add(key);
+        }
+        return new Document("_id", new ObjectId(matrix.getUserId(user)))
+            .append("bands", keys)
+            .append("users", similar.size() > SimilarUsersDao.TOP_SIZE ? new ArrayList<>(similar.subList(0, SimilarUsersDao.TOP_SIZE)) : similar);
+    }
+
+    // Titles of the books rated by both users with a small difference: a merge of the two sorted rows
+    private static List<String> commonBooks(RatingMatrix matrix, int user, int other, String[] titles) {
+        List<String> common = new ArrayList<>();
+        int i = matrix.userPtr[user];
+        int j = matrix.userPtr[other];
+        while (i < matrix.userPtr[user + 1] && j < matrix.userPtr[other + 1]) {
+            int book = matrix.userBooks[i];
+            int otherBook = matrix.userBooks[j];
+            if (book < otherBook) {
+                i++;
+            } else if (book > otherBook) {
+                j++;
+            } else {
+                if (Math.abs(matrix.userRatings[i] - matrix.userRatings[j]) < SimilarUsersDao.MAX_RATING_DIFFERENCE) {
+                    common.add(titles[book]);
+                }
+                i++;
+                j++;
+            }
+        }
+        return common;
+    }
+
+    private Map<String, Profile> loadProfiles() {
+        return graphConnector.export(tx -> {
+            Map<String, Profile> profiles = new HashMap<>();
+            Result result = tx.run("MATCH (u:User) RETURN u.id AS id, u.nickname AS nickname, u.favouriteGenres AS genres");
+            while (result.hasNext()) {
+                org.neo4j.driver.Record record = result.next();
+                profiles.put(record.get("id").asString(), new Profile(
+                    record.get("nickname").isNull() ? null : record.get("nickname").asString(),
+                    record.get("genres").isNull() ? new ArrayList<>() : record.get("genres").asList(Value::asString)));
+            }
+            return profiles;
+        });
+    }
+
+    private String[] loadTitles(RatingMatrix matrix) {
+        Map<String, String> titlesById = graphConnector.export(tx -> {
+            Map<String, String> titles = new HashMap<>();
+            Result result = tx.run("MATCH (b:Book) RETURN b.id AS id, b.title AS title");
+            while (result.hasNext()) {
+                org.neo4j.driver.Record record = result.next();
+                titles.put(record.get("id").asString(), record.get("title").isNull() ? null : record.get("title").asString());
+            }
+            return titles;
+        });
+        String[] titles = new String[matrix.getNumBooks()];
+        for (int book = 0; book < titles.length; book++) {
+            titles[book] = titlesById.get(matrix.getBookId(book));
+        }
+        return titles;
+    }
+
+    private static class Profile {
+        final String nickname;
+        final List<String> genres;
+
+        Profile(String nickname, List<String> genres) {
+            this.nickname = nickname;
+            this.genres = genres;
+        }
+    }
+}
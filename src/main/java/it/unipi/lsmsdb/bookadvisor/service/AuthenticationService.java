@@ -1,20 +1,25 @@
 package it.unipi.lsmsdb.bookadvisor.service;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+
 import it.unipi.lsmsdb.bookadvisor.model.user.Author;
 import it.unipi.lsmsdb.bookadvisor.model.user.Reviewer;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.OutboxDao;
 import it.unipi.lsmsdb.bookadvisor.dao.documentDB.UserDao;
-import it.unipi.lsmsdb.bookadvisor.dao.graphDB.UserGraphDAO;
 import it.unipi.lsmsdb.bookadvisor.utils.*;
+import org.bson.Document;
+
 import java.time.LocalDate;
 import java.util.List;
 
 public class AuthenticationService {
     private UserDao userDao;
-    private UserGraphDAO userGraphDAO;
+    private OutboxDao outboxDao;
 
-    public AuthenticationService(UserDao userDao, UserGraphDAO userGraphDAO) {
+    public AuthenticationService(UserDao userDao, OutboxDao outboxDao) {
         this.userDao = userDao;
-        this.userGraphDAO = userGraphDAO;
+        this.outboxDao = outboxDao;
     }
 
     public boolean signUp(String username, String password, String name, String gender, LocalDate birthdate, String nationality, List<String> favouriteGenres, List<String> spokenLanguages, List<String> genres) {
@@ -25,10 +30,22 @@ public class AuthenticationService {
             return false;
         }
 
-        // Verifica se l'utente esiste già
-        if (userDao.findUserByUsername(username) != null) {
-            // L'utente esiste già
-            System.out.println("User already exists");
+        // Il nickname viene salvato senza spazi iniziali e finali, come viene controllato
+        String nickname = username == null ? null : username.trim();
+        if (nickname == null || nickname.isEmpty()) {
+            System.out.println("Invalid nickname");
+            return false;
+        }
+
+        // Verifica che il nickname non sia già in uso, ignorando maiuscole e minuscole.
+        // L'indice univoco su nickname_lower rifiuta poi le registrazioni concorrenti con lo stesso nickname
+        try {
+            if (userDao.nicknameExists(nickname)) {
+                System.out.println("User already exists");
+                return false;
+            }
+        } catch (MongoException e) {
+            System.out.println("Failed to check the nickname in document database: " + e.getMessage());
             return false;
         }
 
@@ -36,51 +53,35 @@ public class AuthenticationService {
         String hashedPassword = HashingUtility.hashPassword(password);
 
         // Creazione di un nuovo utente
+        Reviewer newUser;
         if (genres != null) {
-            Author newUser = new Author(name, username, hashedPassword, birthdate, gender, nationality, favouriteGenres, spokenLanguages, genres);
-            
-            // Aggiunta dell'utente al database
-            if (userDao.addUser(newUser)) {
-                // Insertion in document successful
-                if (userGraphDAO.addUser(userDao.findUserByUsername(username).getId(), newUser)) {
-                    // Insertion in graph successful
-                    return true;
-                } else {
-                    // Insertion in graph failed
-                    System.out.println("Failed to insert user in graph");
-                    userDao.deleteUser(newUser.getId());
-                    return false;
-                }
-            } else {
-                // Insertion in document failed
-                System.out.println("Failed to insert author in document database");
-                return false;
-            }
+            newUser = new Author(name, nickname, hashedPassword, birthdate, gender, nationality, favouriteGenres, spokenLanguages, genres);
         } else if (favouriteGenres != null) {
-            Reviewer newUser = new Reviewer(name, username, hashedPassword, birthdate, gender, nationality, favouriteGenres, spokenLanguages); 
-            
-            // Aggiunta dell'utente al database
-            if (userDao.addUser(newUser)) {
-                // Insertion in document successful
-                if (userGraphDAO.addUser(userDao.findUserByUsername(username).getId(), newUser)) {
-                    // Insertion in graph successful
-                    return true;
-                } else {
-                    // Insertion in graph failed
-                    System.out.println("Failed to insert reviewer in graph");
-                    userDao.deleteUser(newUser.getId());
-                    return false;
-                }
-            } else {
-                // Insertion in document failed
-                System.out.println("Failed to insert reviewer in document database");
-                return false;
-            }
+            newUser = new Reviewer(name, nickname, hashedPassword, birthdate, gender, nationality, favouriteGenres, spokenLanguages);
         } else {
             // Invalid user type
             System.out.println("Invalid user type");
             return false;
         }
+
+        // Aggiunta dell'utente al database insieme all'evento per il grafo, applicato poi dal GraphProjector
+        try {
+            outboxDao.inTransaction(session -> {
+                userDao.addUser(session, newUser);
+                outboxDao.append(session, OutboxDao.USER_ADDED, new Document("id", newUser.getId().toHexString())
+                        .append("nickname", newUser.getNickname())
+                        .append("favouriteGenres", newUser.getFavouriteGenres()));
+                return null;
+            });
+            return true;
+        } catch (MongoException e) {
+            if (ErrorCategory.fromErrorCode(e.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                System.out.println("User already exists");
+            } else {
+                System.out.println("Failed to insert user in document database: " + e.getMessage());
+            }
+            return false;
+        }
     }
 
     public Reviewer logIn(String username, String password) {
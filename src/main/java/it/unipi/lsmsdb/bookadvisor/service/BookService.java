@@ -1,26 +1,31 @@
 package it.unipi.lsmsdb.bookadvisor.service;
 
 import it.unipi.lsmsdb.bookadvisor.dao.documentDB.BookDao;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.OutboxDao;
 import it.unipi.lsmsdb.bookadvisor.dao.documentDB.UserDao;
 import it.unipi.lsmsdb.bookadvisor.dao.graphDB.BookGraphDAO;
 import it.unipi.lsmsdb.bookadvisor.model.book.Book;
+import it.unipi.lsmsdb.bookadvisor.model.book.BookSummary;
 import it.unipi.lsmsdb.bookadvisor.model.user.*;
+import it.unipi.lsmsdb.bookadvisor.utils.Page;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class BookService {
     private BookDao bookDao;
     private UserDao userDao;
     private BookGraphDAO bookGraphDAO;
+    private OutboxDao outboxDao;
 
-    public BookService(BookDao bookDao, UserDao userDao, BookGraphDAO bookGraphDAO) {
+    public BookService(BookDao bookDao, UserDao userDao, BookGraphDAO bookGraphDAO, OutboxDao outboxDao) {
         this.bookDao = bookDao;
         this.userDao = userDao;
         this.bookGraphDAO = bookGraphDAO;
+        this.outboxDao = outboxDao;
     }
 
     public Book findBookById(ObjectId id) {
@@ -31,27 +36,33 @@ public class BookService {
         return bookDao.findBooksByTitle(title);
     }
 
+    public Page<Book> findBooksByTitle(String title, int page, int pageSize) {
+        return bookDao.findBooksByTitle(title, page, pageSize);
+    }
+
+    public Page<BookSummary> findBookSummariesByTitle(String title, int page, int pageSize) {
+        return bookDao.findBookSummariesByTitle(title, page, pageSize);
+    }
+
     public boolean addBook(Book book, Reviewer user) {
         System.out.println("Adding book: " + book.toString());
         if (user instanceof Author) {
-            if(bookDao.addBook(book)){
-                // Successfully added the book in mongodb
-                if(bookGraphDAO.addBook(book)){
-                    // Successfully added the book in neo4j
-                    return true;
-                } else {
-                    // Failed to add the book in neo4j
-                    System.out.println("Failed to insert book in graph");
-                    List<ObjectId> authorIds = new ArrayList<>();
-                    for (Book.Author author : book.getAuthors()) {
-                        authorIds.add(author.getId());
-                    }
-                    bookDao.deleteBook(book.getId());
-                    return false;
-                }
+            try {
+                // The book and the event for the graph commit together, Neo4j is updated by the GraphProjector
+                outboxDao.inTransaction(session -> {
+                    bookDao.addBook(session, book);
+                    outboxDao.append(session, OutboxDao.BOOK_ADDED, new Document("id", book.getId().toHexString())
+                            .append("title", book.getTitle())
+                            .append("language", book.getLanguage()));
+                    return null;
+                });
+                bookDao.bookAdded(book);
+                return true;
+            } catch (Exception e) {
+                // Failed to add the book in mongodb
+                System.out.println("Failed to insert book: " + e.getMessage());
+                return false;
             }
-            // Failed to add the book in mongodb
-            return false;
 
         } else {
             System.out.println("Solo gli autori possono inserire libri.");
@@ -170,6 +181,10 @@ public class BookService {
         return bookDao.getAllBooks();
     }
 
+    public Page<Book> getAllBooks(int page, int pageSize) {
+        return bookDao.getAllBooks(page, pageSize);
+    }
+
     public Book getBookById(ObjectId id) {
         return bookDao.getBookById(id);
     }
@@ -182,10 +197,26 @@ public class BookService {
         return bookDao.getBooksByAuthor(authorId);
     }
 
+    public Page<Book> getBooksByAuthor(ObjectId authorId, int page, int pageSize) {
+        return bookDao.getBooksByAuthor(authorId, page, pageSize);
+    }
+
+    public Page<BookSummary> getBookSummariesByAuthor(ObjectId authorId, int page, int pageSize) {
+        return bookDao.getBookSummariesByAuthor(authorId, page, pageSize);
+    }
+
     public List<Book> getBooksByGenre(String genre) {
         return bookDao.getBooksByGenre(genre);
     }
 
+    public Page<Book> getBooksByGenre(String genre, int page, int pageSize) {
+        return bookDao.getBooksByGenre(genre, page, pageSize);
+    }
+
+    public Page<BookSummary> getBookSummariesByGenre(String genre, int page, int pageSize) {
+        return bookDao.getBookSummariesByGenre(genre, page, pageSize);
+    }
+
     public List<Book> getBooksByYear(int year) {
         return bookDao.getBooksByYear(year);
     }
@@ -194,10 +225,18 @@ public class BookService {
         return bookDao.getBooksByLanguage(language);
     }
 
+    public Page<Book> getBooksByLanguage(String language, int page, int pageSize) {
+        return bookDao.getBooksByLanguage(language, page, pageSize);
+    }
+
     public List<Book> getBooksByRating(double targetRating, boolean greaterOrEqual) {
         return bookDao.getBooksByRating(targetRating, greaterOrEqual);
     }
 
+    public Page<Book> getBooksByRating(double targetRating, boolean greaterOrEqual, int page, int pageSize) {
+        return bookDao.getBooksByRating(targetRating, greaterOrEqual, page, pageSize);
+    }
+
     public List<Book> getBooksByNumPages(int numPages, boolean greaterOrEqual) {
         return bookDao.getBooksByNumPages(numPages, greaterOrEqual);
     }
@@ -206,14 +245,18 @@ public class BookService {
         return bookDao.getBooksByGenres(genres, isAnd);
     }
 
+    public Page<Book> getBooksByGenres(List<String> genres, boolean isAnd, int page, int pageSize) {
+        return bookDao.getBooksByGenres(genres, isAnd, page, pageSize);
+    }
+
+    // Method to get the summaries of the given books, e.g. to show the titles of a list of reviews
+    public List<BookSummary> getBookSummariesByIds(Collection<ObjectId> ids) {
+        return bookDao.getBookSummariesByIds(ids);
+    }
+
     // Method to get top N popular books based on numRatings
-    public List<Book> getPopularBooks(int limit) {        
-        List<Book> allBooks = bookDao.getAllBooks();
-        
-        return allBooks.stream()                
-                .sorted((b1, b2) -> Integer.compare(b2.getNumRatings(), b1.getNumRatings()))
-                .limit(limit)                
-                .collect(Collectors.toList());
+    public List<BookSummary> getPopularBooks(int limit) {
+        return bookDao.getPopularBookSummaries(limit);
     }
 }
 
@@ -0,0 +1,197 @@
+package it.unipi.lsmsdb.bookadvisor.service;
+
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.OutboxDao;
+import it.unipi.lsmsdb.bookadvisor.dao.graphDB.Neo4jConnector;
+import it.unipi.lsmsdb.bookadvisor.utils.Config;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.neo4j.driver.TransactionContext;
+
+import static org.neo4j.driver.Values.parameters;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Background worker that applies the outbox events to Neo4j.
+// Events are applied in commit order, a batch per graph transaction. Every statement is an idempotent
+// MERGE/SET or MATCH/DELETE, so an event applied twice (e.g. after a crash before it was removed) is harmless.
+public class GraphProjector {
+    private final OutboxDao outboxDao;
+    private final Neo4jConnector graphConnector;
+    private final int batchSize;
+    private final long pollIntervalMillis;
+    private final long retryDelayMillis;
+    private final int maxAttempts;
+    private ScheduledExecutorService executor;
+    private ObjectId reportedParkedId;
+
+    public GraphProjector(OutboxDao outboxDao, Neo4jConnector graphConnector) {
+        this.outboxDao = outboxDao;
+        this.graphConnector = graphConnector;
+        this.batchSize = Config.getInt("outbox.batchSize", 200);
+        this.pollIntervalMillis = Config.getLong("outbox.pollIntervalMillis", 500);
+        this.retryDelayMillis = Config.getLong("outbox.retryDelayMillis", 5000);
+        this.maxAttempts = Config.getInt("outbox.maxAttempts", 10);
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "graph-projector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::drain, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Apply what is left in the outbox and stop
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        drain();
+    }
+
+    // Apply batches in commit order until the backlog is empty or its oldest event is not due.
+    // An event waiting for a retry, or parked after too many attempts, holds back every later event:
+    // applying a REVIEW_DELETED before the REVIEW_ADDED it follows would leave the edge in the graph
+    void drain() {
+        try {
+            List<OutboxDao.Event> events = outboxDao.findBacklog(batchSize);
+            while (!events.isEmpty()) {
+                List<OutboxDao.Event> due = duePrefix(events);
+                if (due.isEmpty()) {
+                    reportParked(events.get(0));
+                    return;
+                }
+                if (!applyBatch(due)) {
+                    // The failing event was rescheduled: later events wait for it
+                    return;
+                }
+                if (due.size() < events.size()) {
+                    // Stopped in front of an event that is not due yet
+                    return;
+                }
+                events = outboxDao.findBacklog(batchSize);
+            }
+        } catch (Exception e) {
+            System.err.println("Error while projecting outbox events: " + e.getMessage());
+        }
+    }
+
+    // The events that can be applied now, up to the first one that is not due
+    private static List<OutboxDao.Event> duePrefix(List<OutboxDao.Event> events) {
+        Date now = new Date();
+        List<OutboxDao.Event> due = new ArrayList<>();
+        for (OutboxDao.Event event : events) {
+            if (!event.isDue(now)) {
+                break;
+            }
+            due.add(event);
+        }
+        return due;
+    }
+
+    // Report a parked event once, not at every poll
+    private void reportParked(OutboxDao.Event head) {
+        if (head.isParked() && !head.getId().equals(reportedParkedId)) {
+            reportedParkedId = head.getId();
+            System.err.println("Outbox blocked by " + head + ": fix it and set its status back to pending to resume the projection");
+        }
+    }
+
+    private boolean applyBatch(List<OutboxDao.Event> events) {
+        try {
+            graphConnector.write(tx -> {
+                for (OutboxDao.Event event : events) {
+                    apply(tx, event);
+                }
+                return null;
+            });
+            outboxDao.markApplied(ids(events));
+            return true;
+        } catch (Exception batchError) {
+            // Find the event that breaks the batch: apply the events one by one until it fails
+            List<ObjectId> applied = new ArrayList<>();
+            for (OutboxDao.Event event : events) {
+                try {
+                    graphConnector.write(tx -> {
+                        apply(tx, event);
+                        return null;
+                    });
+                    applied.add(event.getId());
+                } catch (Exception e) {
+                    outboxDao.markApplied(applied);
+                    System.err.println("Error while applying " + event + " to the graph: " + e.getMessage());
+                    outboxDao.markFailed(event, e.getMessage(), retryDelayMillis, maxAttempts);
+                    return false;
+                }
+            }
+            outboxDao.markApplied(applied);
+            return true;
+        }
+    }
+
+    private static void apply(TransactionContext tx, OutboxDao.Event event) {
+        Document payload = event.getPayload();
+        switch (event.getType()) {
+            case OutboxDao.USER_ADDED:
+                tx.run("MERGE (u:User {id: $id}) " +
+                       "SET u.nickname = $nickname, u.favouriteGenres = $favouriteGenres",
+                       parameters("id", payload.getString("id"),
+                                  "nickname", payload.getString("nickname"),
+                                  "favouriteGenres", payload.getList("favouriteGenres", String.class)));
+                break;
+            case OutboxDao.BOOK_ADDED:
+                tx.run("MERGE (b:Book {id: $id}) " +
+                       "SET b.title = $title, b.language = $language",
+                       parameters("id", payload.getString("id"),
+                                  "title", payload.getString("title"),
+                                  "language", payload.getString("language")));
+                break;
+            case OutboxDao.REVIEW_ADDED:
+            case OutboxDao.REVIEW_UPDATED:
+                tx.run("MERGE (u:User {id: $user}) " +
+                       "MERGE (b:Book {id: $book}) " +
+                       "MERGE (u)-[r:RATES]->(b) " +
+                       "SET r.rating = $rating",
+                       parameters("user", payload.getString("user"),
+                                  "book", payload.getString("book"),
+                                  "rating", payload.getInteger("rating")));
+                break;
+            case OutboxDao.REVIEW_DELETED:
+                tx.run("MATCH (:User {id: $user})-[r:RATES]->(:Book {id: $book}) " +
+                       "DELETE r",
+                       parameters("user", payload.getString("user"),
+                                  "book", payload.getString("book")));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown outbox event type: " + event.getType());
+        }
+    }
+
+    private static List<ObjectId> ids(List<OutboxDao.Event> events) {
+        List<ObjectId> ids = new ArrayList<>();
+        for (OutboxDao.Event event : events) {
+            ids.add(event.getId());
+        }
+        return ids;
+    }
+}
@@ -1,29 +1,35 @@
 package it.unipi.lsmsdb.bookadvisor.service;
 
 import it.unipi.lsmsdb.bookadvisor.dao.documentDB.BookDao;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.OutboxDao;
 import it.unipi.lsmsdb.bookadvisor.dao.documentDB.ReviewDao;
 import it.unipi.lsmsdb.bookadvisor.dao.documentDB.UserDao;
-import it.unipi.lsmsdb.bookadvisor.dao.graphDB.ReviewGraphDAO;
+import it.unipi.lsmsdb.bookadvisor.model.book.BookSummary;
 import it.unipi.lsmsdb.bookadvisor.model.review.Review;
 import it.unipi.lsmsdb.bookadvisor.model.user.*;
+import it.unipi.lsmsdb.bookadvisor.utils.Page;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 
+import java.util.Collection;
 import java.util.List;
 
 public class ReviewService {
     private ReviewDao reviewDao;
-    private ReviewGraphDAO reviewGraphDao;
     private BookDao bookDao;
     private UserDao userDao;
+    private OutboxDao outboxDao;
 
-    public ReviewService(ReviewDao reviewDao, ReviewGraphDAO reviewGraphDAO, BookDao bookDao, UserDao userDao) {
+    public ReviewService(ReviewDao reviewDao, BookDao bookDao, UserDao userDao, OutboxDao outboxDao) {
         this.reviewDao = reviewDao;
         this.bookDao = bookDao;
-        this.reviewGraphDao = reviewGraphDAO;
         this.userDao = userDao;
+        this.outboxDao = outboxDao;
     }
 
-    // Aggiungi una nuova recensione al database
+    // Aggiungi una nuova recensione al database.
+    // La recensione, i contatori del libro e l'evento per il grafo vengono scritti in un'unica transazione:
+    // Neo4j viene aggiornato in seguito dal GraphProjector
     public boolean addReview(Review review) {
         // Validate the rating
         validateStars(review.getStars());
@@ -34,34 +40,21 @@ public class ReviewService {
             return false;
         }
 
-        if(reviewDao.addReview(review.getId(), review)){
-            if(bookDao.addReviewToBook(review.getBookId(), review.getId())){
-                if(bookDao.updateBookRating(review.getBookId(), review.getStars(), review.getCountry())){
-                    // Successfully added the review to mongodb
-                    if(reviewGraphDao.addReview(review)){
-                        // Successfully added the review to neo4j
-                        return true;
-                    } else {
-                        // Failed to add the review to neo4j
-                        System.out.println("Failed to add review to graph");
-                        reviewDao.deleteReview(review.getId());
-                        return false;
-                    }
-                } else {
-                    // Failed to add the review to mongodb
-                    System.out.println("Failed to add review to book");
-                    reviewDao.deleteReviewById(review.getId());
-                    bookDao.removeReviewFromBook(review.getBookId(), review.getId());
-                    return false;
-                }
-            } else {
-                // Failed to add the review to mongodb
-                System.out.println("Failed to add review to book");
-                reviewDao.deleteReviewById(review.getId());
-                return false;
-            }
+        try {
+            BookDao.RatingDelta delta = new BookDao.RatingDelta(review.getBookId(), review.getStars(), review.getCountry());
+            BookSummary book = outboxDao.inTransaction(session -> {
+                reviewDao.addReview(session, review);
+                BookSummary summary = bookDao.updateBookRating(session, delta);
+                outboxDao.append(session, OutboxDao.REVIEW_ADDED, ratingEvent(review));
+                return summary;
+            });
+            reviewDao.reviewCommitted(review.getId());
+            bookDao.ratingCommitted(book, delta);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Errore durante l'aggiunta della recensione: " + e.getMessage());
+            return false;
         }
-        return false;
     }
 
     // Aggiorna le informazioni di una recensione
@@ -70,7 +63,7 @@ public class ReviewService {
         validateStars(updatedReview.getStars());
 
         // Retrieve the existing review
-        Review existingReview = reviewDao.findReviewById(updatedReview.getId());
+        Review existingReview = reviewDao.findCurrentReviewById(updatedReview.getId());
 
         if (existingReview == null) {
             System.err.println("Recensione non trovata.");
@@ -79,19 +72,24 @@ public class ReviewService {
 
         // Check if the current user is the author of the review
         if (existingReview.getUserId().equals(currentUser.getId())) {
-            if(reviewDao.updateReview(updatedReview)){
-                // Successfully updated the review in mongodb
-                if(reviewGraphDao.updateReview(updatedReview)){
-                    // Successfully updated the review in neo4j
-                    return true;
-                } else {
-                    // Failed to update the review in neo4j
-                    System.out.println("Failed to update review in graph");
-                    reviewDao.updateReview(existingReview);
-                    return false;
-                }
+            try {
+                // Sottrai il valore vecchio e aggiungi il nuovo
+                BookDao.RatingDelta removed = new BookDao.RatingDelta(existingReview.getBookId(), -existingReview.getStars(), existingReview.getCountry());
+                BookDao.RatingDelta added = new BookDao.RatingDelta(updatedReview.getBookId(), updatedReview.getStars(), updatedReview.getCountry());
+                BookSummary book = outboxDao.inTransaction(session -> {
+                    reviewDao.updateReview(session, updatedReview);
+                    bookDao.updateBookRating(session, removed);
+                    BookSummary summary = bookDao.updateBookRating(session, added);
+                    outboxDao.append(session, OutboxDao.REVIEW_UPDATED, ratingEvent(updatedReview));
+                    return summary;
+                });
+                reviewDao.reviewCommitted(updatedReview.getId());
+                bookDao.ratingCommitted(book, removed, added);
+                return true;
+            } catch (Exception e) {
+                System.err.println("Errore durante l'aggiornamento della recensione: " + e.getMessage());
+                return false;
             }
-            return false;
         } else {
             System.err.println("L'utente non ha i permessi per modificare questa recensione.");
             return false;
@@ -100,7 +98,7 @@ public class ReviewService {
 
     // Elimina una recensione dal database
     public boolean deleteReview(ObjectId reviewId, Reviewer currentUser, ObjectId bookId) {
-        Review review = reviewDao.findReviewById(reviewId);
+        Review review = reviewDao.findCurrentReviewById(reviewId);
 
         if (review == null) {
             System.err.println("Recensione non trovata.");
@@ -109,32 +107,22 @@ public class ReviewService {
 
         // Check if the current user is the author of the review or an admin
         if (currentUser instanceof Admin || review.getUserId().equals(currentUser.getId())) {
-
-            if(reviewDao.deleteReview(reviewId)){
-                if(bookDao.removeReviewFromBook(bookId, reviewId)){
-                    // Successfully deleted the review from mongodb
-                    if(reviewGraphDao.deleteReview(review)){
-                        // Successfully deleted the review from neo4j
-                        return true;
-                    } else {
-                        // Failed to delete the review from neo4j
-                        System.out.println("Failed to delete review from graph");
-                        reviewDao.addReview(review.getId(), review);
-                        bookDao.addReviewToBook(bookId, reviewId);
-
-                        // Rollback the deletion from mongodb
-                        bookDao.updateBookRating(bookId, review.getStars(), review.getCountry());
-
-                        return false;
-                    }
-                } else {
-                    // Failed to delete the review from mongodb
-                    System.out.println("Failed to delete review from book");
-                    reviewDao.addReview(review.getId(), review);
-                    return false;
-                }
+            try {
+                BookDao.RatingDelta delta = new BookDao.RatingDelta(bookId, -review.getStars(), review.getCountry());
+                BookSummary book = outboxDao.inTransaction(session -> {
+                    reviewDao.deleteReview(session, reviewId);
+                    BookSummary summary = bookDao.updateBookRating(session, delta);
+                    outboxDao.append(session, OutboxDao.REVIEW_DELETED, new Document("user", review.getUserId().toHexString())
+                            .append("book", review.getBookId().toHexString()));
+                    return summary;
+                });
+                reviewDao.reviewDeleted(reviewId, review.getBookId(), review.getUserId());
+                bookDao.ratingCommitted(book, delta);
+                return true;
+            } catch (Exception e) {
+                System.err.println("Errore durante l'eliminazione della recensione: " + e.getMessage());
+                return false;
             }
-            return false;
         } else {
             System.err.println("L'utente non ha i permessi per eliminare questa recensione.");
             return false;
@@ -146,16 +134,31 @@ public class ReviewService {
         return reviewDao.findReviewById(id);
     }
 
+    // Trova recensioni per una lista di ID
+    public List<Review> findReviewsByIds(Collection<ObjectId> ids) {
+        return reviewDao.findReviewsByIds(ids);
+    }
+
     // Trova recensioni per ID libro
     public List<Review> findReviewsByBookId(ObjectId bookId) {
         return reviewDao.findReviewsByBookId(bookId);
     }
 
+    // Trova una pagina di recensioni per ID libro
+    public Page<Review> findReviewsByBookId(ObjectId bookId, int page, int pageSize) {
+        return reviewDao.findReviewsByBookId(bookId, page, pageSize);
+    }
+
     // Trova recensioni per ID utente
     public List<Review> findReviewsByUserId(ObjectId userId) {
         return reviewDao.findReviewsByUserId(userId);
     }
 
+    // Trova una pagina delle recensioni più utili di un utente
+    public Page<Review> findTopUsefulReviewsByUser(ObjectId userId, int page, int pageSize) {
+        return reviewDao.findTopUsefulReviewsByUser(userId, page, pageSize);
+    }
+
     // Trova recensione per ID utente e ID libro
     public Review findReviewByUserIdAndBookId(ObjectId userId, ObjectId bookId) {
         return reviewDao.findReviewByUserIdAndBookId(userId, bookId);
@@ -189,6 +192,13 @@ public class ReviewService {
         return reviewDao.findReviewsByStarsAndUsername(stars, username);
     }
 
+    // Evento per il grafo: arco RATES tra utente e libro
+    private static Document ratingEvent(Review review) {
+        return new Document("user", review.getUserId().toHexString())
+                .append("book", review.getBookId().toHexString())
+                .append("rating", review.getStars());
+    }
+
     // Metodo privato per la validazione del numero di stelle
     private void validateStars(int stars) {
         if (stars < 1 || stars > 5) {
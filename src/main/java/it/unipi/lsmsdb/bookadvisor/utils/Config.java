@@ -0,0 +1,91 @@
+package it.unipi.lsmsdb.bookadvisor.utils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+// Application settings. Values are read, from the lowest to the highest priority, from
+// bookadvisor.properties on the classpath, from the file named by the system property
+// bookadvisor.config and from system properties with the same key (e.g. -Dmongo.uri=...).
+public class Config {
+    private static final String DEFAULT_RESOURCE = "/bookadvisor.properties";
+    private static final String CONFIG_FILE_PROPERTY = "bookadvisor.config";
+    private static Properties properties;
+
+    private Config() {
+    }
+
+    private static synchronized Properties properties() {
+        if (properties == null) {
+            Properties loaded = new Properties();
+            try (InputStream in = Config.class.getResourceAsStream(DEFAULT_RESOURCE)) {
+                if (in != null) {
+                    loaded.load(in);
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading " + DEFAULT_RESOURCE + ": " + e.getMessage());
+            }
+            String file = System.getProperty(CONFIG_FILE_PROPERTY);
+            if (file != null) {
+                try (InputStream in = new FileInputStream(file)) {
+                    loaded.load(in);
+                } catch (IOException e) {
+                    System.err.println("Error reading configuration file " + file + ": " + e.getMessage());
+                }
+            }
+            properties = loaded;
+        }
+        return properties;
+    }
+
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(key, properties().getProperty(key));
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer for " + key + ": " + value, e);
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + value, e);
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    // Comma separated list, empty when the key is not set
+    public static List<String> getList(String key) {
+        List<String> values = new ArrayList<>();
+        String value = get(key, null);
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+}
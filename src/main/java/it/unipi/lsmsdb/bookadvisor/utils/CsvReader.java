@@ -0,0 +1,123 @@
+package it.unipi.lsmsdb.bookadvisor.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+// Streaming CSV reader for the dataset files: RFC 4180 quoting ("a ""b""", embedded separators and newlines).
+// It reads through its own buffer and reuses the same field array and builder for every record,
+// so the only allocations per record are the field strings themselves.
+public class CsvReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private final char separator;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private final StringBuilder field = new StringBuilder(64);
+    private String[] fields = new String[8];
+    private int fieldCount;
+    private long recordNumber;
+
+    public CsvReader(Reader reader) {
+        this(reader, ',');
+    }
+
+    public CsvReader(Reader reader, char separator) {
+        this.reader = reader;
+        this.separator = separator;
+    }
+
+    // Read the next record, false at the end of the input
+    public boolean next() throws IOException {
+        fieldCount = 0;
+        field.setLength(0);
+        boolean inQuotes = false;
+        boolean any = false;
+        while (true) {
+            if (position == limit && !fill()) {
+                if (!any) {
+                    return false;
+                }
+                addField();
+                recordNumber++;
+                return true;
+            }
+            char c = buffer[position++];
+            any = true;
+            if (inQuotes) {
+                if (c == '"') {
+                    if (position == limit && !fill()) {
+                        inQuotes = false;
+                        continue;
+                    }
+                    if (buffer[position] == '"') {
+                        field.append('"');
+                        position++;
+                    } else {
+                        inQuotes = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                inQuotes = true;
+            } else if (c == separator) {
+                addField();
+            } else if (c == '\n') {
+                addField();
+                recordNumber++;
+                return true;
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+    }
+
+    public int size() {
+        return fieldCount;
+    }
+
+    public String get(int index) {
+        if (index < 0 || index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + index + " not present in record " + recordNumber);
+        }
+        return fields[index];
+    }
+
+    // Copy of the fields of the current record
+    public String[] toArray() {
+        return Arrays.copyOf(fields, fieldCount);
+    }
+
+    // Number of records read so far, header included
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    private void addField() {
+        if (fieldCount == fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        fields[fieldCount++] = field.toString();
+        field.setLength(0);
+    }
+
+    private boolean fill() throws IOException {
+        int read = reader.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,403 @@
+package it.unipi.lsmsdb.bookadvisor.utils;
+
+import it.unipi.lsmsdb.bookadvisor.dao.IndexManager;
+import it.unipi.lsmsdb.bookadvisor.dao.graphDB.Neo4jConnector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Command line tool that loads dataset/graph.zip into Neo4j.
+// Usage: DatasetLoader [<zip>] [--workers N] [--batch N] [--checkpoint <file>] [--reset]
+//
+// The CSV files are streamed straight out of the archive. A reader thread parses them into batches and
+// hands them to a pool of workers through a bounded queue, so parsing blocks when Neo4j falls behind.
+// Every worker sends its batch with one UNWIND statement. Nodes are loaded before the relationships
+// that connect them. Every statement is an idempotent MERGE, so batches replayed after a restart are harmless.
+//
+// The checkpoint file records, per CSV file, how many rows are known to be loaded: an interrupted run
+// resumes from there. The archive only holds the graph (the neo4j-admin import files): the MongoDB
+// documents are not part of it.
+public class DatasetLoader {
+    private static final String DEFAULT_ZIP = "dataset/graph.zip";
+    private static final String DEFAULT_CHECKPOINT = "dataset/graph.zip.checkpoint";
+    private static final long PROGRESS_INTERVAL_MILLIS = 2000;
+
+    private static final List<Step> STEPS = Arrays.asList(
+        new Step("BookAdvisor.users.csv",
+            "UNWIND $rows AS row " +
+            "MERGE (u:User {id: row.id}) " +
+            "SET u.nickname = row.nickname, u.favouriteGenres = row.favouriteGenres"),
+        new Step("BookAdvisor.books.csv",
+            "UNWIND $rows AS row " +
+            "MERGE (b:Book {id: row.id}) " +
+            "SET b.title = row.title, b.language = row.language"),
+        new Step("BookAdvisor.reviews.csv",
+            "UNWIND $rows AS row " +
+            "MATCH (u:User {id: row.start}) " +
+            "MATCH (b:Book {id: row.end}) " +
+            "MERGE (u)-[r:RATES]->(b) " +
+            "SET r.rating = row.rating"),
+        new Step("BookAdvisor.follows.csv",
+            "UNWIND $rows AS row " +
+            "MATCH (fwer:User {id: row.start}) " +
+            "MATCH (fwed:User {id: row.end}) " +
+            "MERGE (fwer)-[:FOLLOWS]->(fwed)")
+    );
+
+    private final Neo4jConnector connector;
+    private final int workers;
+    private final int batchSize;
+    private final String checkpointPath;
+    private final Properties checkpoint = new Properties();
+
+    public DatasetLoader(Neo4jConnector connector, int workers, int batchSize, String checkpointPath) {
+        if (workers <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Workers and batch size must be positive");
+        }
+        this.connector = connector;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.checkpointPath = checkpointPath;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String zipPath = DEFAULT_ZIP;
+        int workers = Config.getInt("loader.workers", Runtime.getRuntime().availableProcessors());
+        int batchSize = Config.getInt("loader.batchSize", 5000);
+        String checkpointPath = DEFAULT_CHECKPOINT;
+        boolean reset = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--batch":
+                    batchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--checkpoint":
+                    checkpointPath = args[++i];
+                    break;
+                case "--reset":
+                    reset = true;
+                    break;
+                default:
+                    zipPath = args[i];
+            }
+        }
+
+        Neo4jConnector connector = Neo4jConnector.getInstance();
+        try {
+            DatasetLoader loader = new DatasetLoader(connector, workers, batchSize, checkpointPath);
+            if (reset) {
+                loader.resetCheckpoint();
+            }
+            loader.load(zipPath);
+        } finally {
+            Neo4jConnector.closeInstance();
+        }
+    }
+
+    public void load(String zipPath) throws IOException, InterruptedException {
+        readCheckpoint();
+        // The MERGEs look nodes up by id: the uniqueness constraints provide the index they need
+        IndexManager.ensureGraphConstraints(connector);
+        long start = System.currentTimeMillis();
+        try (ZipFile zip = new ZipFile(zipPath)) {
+            for (Step step : STEPS) {
+                ZipEntry entry = zip.getEntry(step.file);
+                if (entry == null) {
+                    System.err.println(step.file + " not found in " + zipPath + ", skipped");
+                    continue;
+                }
+                if (Boolean.parseBoolean(checkpoint.getProperty(step.file + ".done"))) {
+                    System.out.println(step.file + ": already loaded");
+                    continue;
+                }
+                try (InputStream in = zip.getInputStream(entry)) {
+                    loadFile(step, in);
+                }
+            }
+        }
+        System.out.println("Dataset loaded in " + (System.currentTimeMillis() - start) / 1000.0 + " s");
+    }
+
+    private void loadFile(Step step, InputStream in) throws IOException, InterruptedException {
+        long skip = Long.parseLong(checkpoint.getProperty(step.file, "0"));
+        if (skip > 0) {
+            System.out.println(step.file + ": resuming after " + skip + " rows");
+        }
+
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(workers * 2);
+        Progress progress = new Progress(step.file, skip);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            results.add(pool.submit(() -> {
+                while (true) {
+                    Batch batch = queue.take();
+                    if (batch.rows == null) {
+                        return null;
+                    }
+                    int created = connector.writeInChunks(step.cypher, batch.rows, batch.rows.size(),
+                        counters -> counters.nodesCreated() + counters.relationshipsCreated());
+                    progress.completed(batch, created);
+                }
+            }));
+        }
+
+        boolean readAll = false;
+        try (CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)))) {
+            if (!reader.next()) {
+                readAll = true;
+                return;
+            }
+            RowMapper mapper = new RowMapper(reader.toArray());
+            long row = 0;
+            long sequence = 0;
+            List<Map<String, Object>> rows = new ArrayList<>(batchSize);
+            while (reader.next()) {
+                if (row++ < skip) {
+                    continue;
+                }
+                rows.add(mapper.map(reader));
+                if (rows.size() == batchSize) {
+                    enqueue(queue, results, new Batch(sequence++, rows));
+                    rows = new ArrayList<>(batchSize);
+                }
+            }
+            if (!rows.isEmpty()) {
+                enqueue(queue, results, new Batch(sequence, rows));
+            }
+            readAll = true;
+        } finally {
+            if (!readAll) {
+                // A worker died or the file could not be read: drop the queued batches, the checkpoint
+                // only counts finished ones, so they are loaded again by the next run
+                pool.shutdownNow();
+                queue.clear();
+            }
+            stopWorkers(queue, results);
+            pool.shutdown();
+        }
+
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (Exception e) {
+                saveCheckpoint(step.file, progress.loadedRows(), false);
+                throw new IOException(step.file + ": load failed after " + progress.loadedRows() + " rows: " + e.getMessage(), e);
+            }
+        }
+        saveCheckpoint(step.file, progress.loadedRows(), true);
+        progress.print(true);
+    }
+
+    // Block while the workers are busy, but give up if one of them died
+    private void enqueue(BlockingQueue<Batch> queue, List<Future<?>> workers, Batch batch) throws InterruptedException {
+        while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+            for (Future<?> worker : workers) {
+                if (worker.isDone()) {
+                    try {
+                        worker.get();
+                        throw new IllegalStateException("A loader worker stopped");
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException("A loader worker failed: " + e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+        }
+    }
+
+    // One END marker per worker. Workers that died do not consume: stop offering once none is running
+    private void stopWorkers(BlockingQueue<Batch> queue, List<Future<?>> workers) throws InterruptedException {
+        for (int i = 0; i < this.workers; i++) {
+            while (!queue.offer(Batch.END, 1, TimeUnit.SECONDS)) {
+                if (allDone(workers)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean allDone(List<Future<?>> workers) {
+        for (Future<?> worker : workers) {
+            if (!worker.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readCheckpoint() throws IOException {
+        File file = new File(checkpointPath);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                checkpoint.load(in);
+            }
+        }
+    }
+
+    private void resetCheckpoint() {
+        File file = new File(checkpointPath);
+        if (file.exists() && !file.delete()) {
+            System.err.println("Could not delete the checkpoint " + checkpointPath);
+        }
+    }
+
+    private synchronized void saveCheckpoint(String fileName, long rows, boolean done) {
+        checkpoint.setProperty(fileName, Long.toString(rows));
+        checkpoint.setProperty(fileName + ".done", Boolean.toString(done));
+        try (OutputStream out = new FileOutputStream(checkpointPath)) {
+            checkpoint.store(out, "DatasetLoader checkpoint");
+        } catch (IOException e) {
+            System.err.println("Could not write the checkpoint " + checkpointPath + ": " + e.getMessage());
+        }
+    }
+
+    // One CSV file of the archive and the statement that loads its rows
+    static class Step {
+        final String file;
+        final String cypher;
+
+        Step(String file, String cypher) {
+            this.file = file;
+            this.cypher = cypher;
+        }
+    }
+
+    static class Batch {
+        static final Batch END = new Batch(-1, null);
+
+        final long sequence;
+        final List<Map<String, Object>> rows;
+
+        Batch(long sequence, List<Map<String, Object>> rows) {
+            this.sequence = sequence;
+            this.rows = rows;
+        }
+    }
+
+    // Turns a record into statement parameters according to the neo4j-admin import header:
+    // "name:type" columns, ":ID"/":START_ID"/":END_ID" ids, string[] values separated by ';'
+    static class RowMapper {
+        private final String[] names;
+        private final String[] types;
+
+        RowMapper(String[] header) {
+            names = new String[header.length];
+            types = new String[header.length];
+            for (int i = 0; i < header.length; i++) {
+                String column = header[i];
+                int colon = column.indexOf(':');
+                String name = colon >= 0 ? column.substring(0, colon) : column;
+                String type = colon >= 0 ? column.substring(colon + 1) : "string";
+                if (type.equals("START_ID") || name.equals("START_ID")) {
+                    name = "start";
+                    type = "string";
+                } else if (type.equals("END_ID") || name.equals("END_ID")) {
+                    name = "end";
+                    type = "string";
+                } else if (type.equals("ID")) {
+                    type = "string";
+                } else if (name.isEmpty()) {
+                    // :LABEL and :TYPE are fixed by the statement
+                    type = null;
+                }
+                names[i] = name;
+                types[i] = type;
+            }
+        }
+
+        Map<String, Object> map(CsvReader record) {
+            Map<String, Object> row = new HashMap<>();
+            for (int i = 0; i < names.length && i < record.size(); i++) {
+                if (types[i] == null) {
+                    continue;
+                }
+                String value = record.get(i);
+                switch (types[i]) {
+                    case "int":
+                    case "long":
+                        row.put(names[i], Long.parseLong(value));
+                        break;
+                    case "string[]":
+                        row.put(names[i], value.isEmpty() ? new ArrayList<String>() : Arrays.asList(value.split(";")));
+                        break;
+                    default:
+                        row.put(names[i], value);
+                }
+            }
+            return row;
+        }
+    }
+
+    // Tracks finished batches. Batches finish out of order, so only the rows before the first
+    // unfinished batch count as loaded for the checkpoint
+    class Progress {
+        private final String file;
+        private final long skipped;
+        private final TreeSet<Long> finished = new TreeSet<>();
+        private final AtomicLong rows = new AtomicLong();
+        private long nextSequence;
+        private long contiguousRows;
+        // Nodes and relationships created, as opposed to merged into existing ones
+        private long created;
+        private long lastPrint = System.currentTimeMillis();
+        private final long start = System.currentTimeMillis();
+
+        Progress(String file, long skipped) {
+            this.file = file;
+            this.skipped = skipped;
+        }
+
+        synchronized void completed(Batch batch, int createdEntities) {
+            rows.addAndGet(batch.rows.size());
+            created += createdEntities;
+            finished.add(batch.sequence);
+            while (finished.remove(nextSequence)) {
+                nextSequence++;
+                contiguousRows += batchSize;
+            }
+            if (System.currentTimeMillis() - lastPrint >= PROGRESS_INTERVAL_MILLIS) {
+                saveCheckpoint(file, loadedRows(), false);
+                print(false);
+            }
+        }
+
+        // Rows that can be skipped on resume; the last batch may be short, so the total is capped by the rows done
+        synchronized long loadedRows() {
+            return skipped + Math.min(contiguousRows, rows.get());
+        }
+
+        synchronized void print(boolean done) {
+            lastPrint = System.currentTimeMillis();
+            double seconds = Math.max(1, lastPrint - start) / 1000.0;
+            System.out.printf("%s: %d rows, %d created%s (%.0f rows/s)%n", file, skipped + rows.get(), created, done ? ", done" : "", rows.get() / seconds);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package it.unipi.lsmsdb.bookadvisor.utils;
+
+import java.util.List;
+
+// One page of a paged query: the items of the page and whether a next page exists
+public class Page<T> {
+    private final List<T> items;
+    private final int pageNumber;
+    private final int pageSize;
+    private final boolean hasNext;
+
+    public Page(List<T> items, int pageNumber, int pageSize, boolean hasNext) {
+        this.items = items;
+        this.pageNumber = pageNumber;
+        this.pageSize = pageSize;
+        this.hasNext = hasNext;
+    }
+
+    // Build a page from a result fetched with limit pageSize + 1, dropping the look-ahead element
+    public static <T> Page<T> fromLookAhead(List<T> fetched, int pageNumber, int pageSize) {
+        boolean hasNext = fetched.size() > pageSize;
+        List<T> items = hasNext ? fetched.subList(0, pageSize) : fetched;
+        return new Page<>(items, pageNumber, pageSize, hasNext);
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean hasNext() {
+        return hasNext;
+    }
+
+    public boolean hasPrevious() {
+        return pageNumber > 0;
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+}
@@ -0,0 +1,248 @@
+package it.unipi.lsmsdb.bookadvisor.utils;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.AuthorStatsDao;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.FamousBooksDao;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.MongoDBConnector;
+import it.unipi.lsmsdb.bookadvisor.dao.documentDB.MostUsefulReviewsDao;
+import it.unipi.lsmsdb.bookadvisor.dao.graphDB.Neo4jConnector;
+import it.unipi.lsmsdb.bookadvisor.model.user.Reviewer;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.summary.ResultSummary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Command line tool that brings an existing database to the current document layout.
+// Usage: SchemaMigrations <step> [<step> ...]
+// Every step is idempotent and can be run again after a failure.
+public class SchemaMigrations {
+    private static final int BATCH_SIZE = 500;
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: SchemaMigrations <step> [<step> ...]");
+            System.out.println("Steps:");
+            System.out.println("  review-ids      move books.review_ids into reviews.book_id and drop the arrays");
+            System.out.println("  nickname-lower  fill users.nickname_lower, used by login and by the unique nickname index");
+            System.out.println("  most-useful-reviews  rebuild books.most_10_useful_reviews from the reviews, in parallel");
+            System.out.println("  author-stats    rebuild the author_stats view from the books, in parallel");
+            System.out.println("  famous-books    rebuild the famous_books index from the books, one genre per thread");
+            System.out.println("  review-usefulness  fill reviews.usefulness (up votes minus down votes)");
+            System.out.println("  rates-rating    move the rating of Neo4j RATES relationships from r.stars to r.rating");
+            return;
+        }
+
+        MongoDBConnector connector = MongoDBConnector.getInstance();
+        try {
+            MongoDatabase database = connector.getDatabase();
+            for (String step : args) {
+                switch (step) {
+                    case "review-ids":
+                        migrateReviewIds(database);
+                        break;
+                    case "nickname-lower":
+                        migrateNicknameLower(database);
+                        break;
+                    case "most-useful-reviews":
+                        rebuildMostUsefulReviews(connector);
+                        break;
+                    case "author-stats":
+                        rebuildAuthorStats(connector);
+                        break;
+                    case "famous-books":
+                        rebuildFamousBooks(connector);
+                        break;
+                    case "review-usefulness":
+                        migrateReviewUsefulness(database);
+                        break;
+                    case "rates-rating":
+                        migrateRatesRating(Neo4jConnector.getInstance());
+                        break;
+                    default:
+                        System.err.println("Unknown migration step: " + step);
+                }
+            }
+        } finally {
+            connector.close();
+            Neo4jConnector.closeInstance();
+        }
+    }
+
+    // The review IDs of a book are derived from the reviews' book_id field: make sure every review
+    // listed in a book carries its book_id, then drop the unbounded review_ids array from the book
+    static void migrateReviewIds(MongoDatabase database) {
+        MongoCollection<Document> books = database.getCollection("books");
+        MongoCollection<Document> reviews = database.getCollection("reviews");
+
+        List<WriteModel<Document>> reviewUpdates = new ArrayList<>();
+        List<WriteModel<Document>> bookUpdates = new ArrayList<>();
+        long migrated = 0;
+
+        try (MongoCursor<Document> cursor = books.find(Filters.exists("review_ids"))
+                .projection(Projections.include("review_ids"))
+                .batchSize(BATCH_SIZE)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document book = cursor.next();
+                ObjectId bookId = book.getObjectId("_id");
+                List<ObjectId> reviewIds = book.getList("review_ids", ObjectId.class);
+
+                if (reviewIds != null && !reviewIds.isEmpty()) {
+                    reviewUpdates.add(new UpdateManyModel<>(
+                        Filters.and(Filters.in("_id", reviewIds), Filters.exists("book_id", false)),
+                        Updates.set("book_id", bookId)
+                    ));
+                }
+                bookUpdates.add(new UpdateOneModel<>(Filters.eq("_id", bookId), Updates.unset("review_ids")));
+
+                if (bookUpdates.size() >= BATCH_SIZE) {
+                    migrated += flush(reviews, reviewUpdates, books, bookUpdates);
+                    System.out.println("review-ids: " + migrated + " books migrated");
+                }
+            }
+        }
+        migrated += flush(reviews, reviewUpdates, books, bookUpdates);
+        System.out.println("review-ids: done, " + migrated + " books migrated");
+    }
+
+    // Store the normalised nickname of every user. Nicknames that collide once lowercased are reported:
+    // they must be renamed by hand before the unique index on nickname_lower can be built
+    static void migrateNicknameLower(MongoDatabase database) {
+        MongoCollection<Document> users = database.getCollection("users");
+
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        Map<String, ObjectId> seen = new HashMap<>();
+        long migrated = 0;
+
+        try (MongoCursor<Document> cursor = users.find()
+                .projection(Projections.include("nickname", "nickname_lower"))
+                .batchSize(BATCH_SIZE)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document user = cursor.next();
+                ObjectId userId = user.getObjectId("_id");
+                String nicknameLower = Reviewer.normalizeNickname(user.getString("nickname"));
+                if (nicknameLower == null) {
+                    continue;
+                }
+
+                ObjectId other = seen.putIfAbsent(nicknameLower, userId);
+                if (other != null) {
+                    System.err.println("nickname-lower: users " + other + " and " + userId + " share the nickname " + nicknameLower);
+                    continue;
+                }
+                if (!nicknameLower.equals(user.getString("nickname_lower"))) {
+                    updates.add(new UpdateOneModel<>(Filters.eq("_id", userId), Updates.set("nickname_lower", nicknameLower)));
+                }
+
+                if (updates.size() >= BATCH_SIZE) {
+                    users.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+                    migrated += updates.size();
+                    updates.clear();
+                    System.out.println("nickname-lower: " + migrated + " users migrated");
+                }
+            }
+        }
+        if (!updates.isEmpty()) {
+            users.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            migrated += updates.size();
+        }
+        System.out.println("nickname-lower: done, " + migrated + " users migrated");
+    }
+
+    // The arrays are kept up to date by every vote: this full rebuild repairs them, or fills them the first time
+    static void rebuildMostUsefulReviews(MongoDBConnector connector) {
+        int threads = Config.getInt("migrations.threads", Runtime.getRuntime().availableProcessors());
+        try {
+            long rebuilt = new MostUsefulReviewsDao(connector).rebuildAll(threads);
+            System.out.println("most-useful-reviews: done, " + rebuilt + " books rebuilt");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("most-useful-reviews: interrupted");
+        }
+    }
+
+    static void rebuildAuthorStats(MongoDBConnector connector) {
+        int threads = Config.getInt("migrations.threads", Runtime.getRuntime().availableProcessors());
+        try {
+            long rebuilt = new AuthorStatsDao(connector).rebuildAll(threads);
+            System.out.println("author-stats: done, " + rebuilt + " authors rebuilt");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("author-stats: interrupted");
+        }
+    }
+
+    // Store up votes minus down votes in every review whose usefulness is missing or out of date.
+    // A single server-side pipeline update: no document travels to the client.
+    // Also run by IndexManager before it builds the (user_id, usefulness, _id) index
+    public static void migrateReviewUsefulness(MongoDatabase database) {
+        Document usefulness = new Document("$subtract", Arrays.asList(
+            new Document("$ifNull", Arrays.asList("$count_up_votes", 0)),
+            new Document("$ifNull", Arrays.asList("$count_down_votes", 0))
+        ));
+        UpdateResult result = database.getCollection("reviews").updateMany(
+            new Document("$expr", new Document("$ne", Arrays.asList("$usefulness", usefulness))),
+            Arrays.asList(new Document("$set", new Document("usefulness", usefulness)))
+        );
+        System.out.println("review-usefulness: done, " + result.getModifiedCount() + " reviews migrated");
+    }
+
+    // The application used to write the rating of a RATES relationship to r.stars, while the dataset import,
+    // Procedures and the recommendation jobs use r.rating. An app write always came after the import, so
+    // r.stars wins when both are set. Runs in batches of its own transactions, hence the auto-commit session
+    static void migrateRatesRating(Neo4jConnector graphConnector) {
+        try (Session session = graphConnector.getSession()) {
+            ResultSummary summary = session.run(
+                    "MATCH ()-[r:RATES]->() WHERE r.stars IS NOT NULL " +
+                    "CALL { WITH r SET r.rating = r.stars REMOVE r.stars } IN TRANSACTIONS OF 10000 ROWS").consume();
+            System.out.println("rates-rating: done, " + summary.counters().propertiesSet() + " properties set");
+        } catch (Exception e) {
+            System.err.println("rates-rating: " + e.getMessage());
+        }
+    }
+
+    static void rebuildFamousBooks(MongoDBConnector connector) {
+        int threads = Config.getInt("migrations.threads", Runtime.getRuntime().availableProcessors());
+        try {
+            long rebuilt = new FamousBooksDao(connector).rebuildAll(threads);
+            System.out.println("famous-books: done, " + rebuilt + " genres rebuilt");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("famous-books: interrupted");
+        }
+    }
+
+    // The reviews are written before the books, so an interrupted run never loses the link
+    private static int flush(MongoCollection<Document> reviews, List<WriteModel<Document>> reviewUpdates,
+                             MongoCollection<Document> books, List<WriteModel<Document>> bookUpdates) {
+        int count = bookUpdates.size();
+        if (!reviewUpdates.isEmpty()) {
+            reviews.bulkWrite(reviewUpdates, new BulkWriteOptions().ordered(false));
+            reviewUpdates.clear();
+        }
+        if (!bookUpdates.isEmpty()) {
+            books.bulkWrite(bookUpdates, new BulkWriteOptions().ordered(false));
+            bookUpdates.clear();
+        }
+        return count;
+    }
+}
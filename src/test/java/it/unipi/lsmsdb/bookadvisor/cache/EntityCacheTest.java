@@ -0,0 +1,89 @@
+package it.unipi.lsmsdb.bookadvisor.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class EntityCacheTest {
+
+    @Test
+    public void hitDoesNotCallTheLoader() {
+        EntityCache<String, String> cache = new EntityCache<>("test", 10, 60000);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals("a1", cache.get("a", key -> key + loads.incrementAndGet()));
+        assertEquals("a1", cache.get("a", key -> key + loads.incrementAndGet()));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getStats().getHits());
+        assertEquals(1, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry() {
+        EntityCache<String, String> cache = new EntityCache<>("test", 2, 60000);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        // Reading a makes b the least recently used entry
+        cache.get("a", key -> "reloaded");
+        cache.put("c", "C");
+
+        assertEquals("A", cache.getIfPresent("a"));
+        assertNull(cache.getIfPresent("b"));
+        assertEquals("C", cache.getIfPresent("c"));
+        assertEquals(2, cache.getStats().getSize());
+        assertEquals(1, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void expiredEntryIsLoadedAgain() throws InterruptedException {
+        EntityCache<String, String> cache = new EntityCache<>("test", 10, 50);
+        cache.put("a", "old");
+        Thread.sleep(100);
+
+        assertNull(cache.getIfPresent("a"));
+        assertEquals("new", cache.get("a", key -> "new"));
+        assertEquals(0, cache.getStats().getHits());
+    }
+
+    @Test
+    public void valueLoadedDuringAnInvalidationIsNotStored() {
+        EntityCache<String, String> cache = new EntityCache<>("test", 10, 60000);
+        // The entity changes while the loader is reading it: what the loader returns may be stale
+        String value = cache.get("a", key -> {
+            cache.invalidate(key);
+            return "stale";
+        });
+
+        assertEquals("stale", value);
+        assertNull(cache.getIfPresent("a"));
+        assertEquals("fresh", cache.get("a", key -> "fresh"));
+        assertEquals("fresh", cache.getIfPresent("a"));
+    }
+
+    @Test
+    public void missingEntityIsNotCached() {
+        EntityCache<String, String> cache = new EntityCache<>("test", 10, 60000);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertNull(cache.get("a", key -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        assertNull(cache.get("a", key -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.getStats().getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANonPositiveSize() {
+        new EntityCache<String, String>("test", 0, 60000);
+    }
+}
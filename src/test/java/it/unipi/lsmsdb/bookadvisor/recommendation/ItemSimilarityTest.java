@@ -0,0 +1,116 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ItemSimilarityTest {
+    private static final float DELTA = 1e-5f;
+
+    private static ForkJoinPool pool;
+
+    // Rating vectors over (u1, u2, u3): A = (5, 4, 0), B = (3, 2, 5), C = (0, 1, 4)
+    private static RatingMatrix matrix() {
+        RatingMatrix.Builder builder = new RatingMatrix.Builder();
+        builder.add("u1", "A", 5);
+        builder.add("u1", "B", 3);
+        builder.add("u2", "A", 4);
+        builder.add("u2", "B", 2);
+        builder.add("u2", "C", 1);
+        builder.add("u3", "B", 5);
+        builder.add("u3", "C", 4);
+        return builder.build();
+    }
+
+    @BeforeClass
+    public static void createPool() {
+        pool = new ForkJoinPool(2);
+    }
+
+    @AfterClass
+    public static void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void cosineWithoutShrink() {
+        RatingMatrix matrix = matrix();
+        ItemSimilarity.Neighbours neighbours = new ItemSimilarity(matrix, 10, 0, 1).compute(pool);
+
+        int a = index(matrix, "A");
+        int b = index(matrix, "B");
+        int c = index(matrix, "C");
+        // Once normalised, B.C = 22 beats A.B = 23: C comes first
+        assertArrayEquals(new int[] {c, a}, neighbours.getBooks(b));
+        assertArrayEquals(new float[] {
+            (float) (22 / Math.sqrt(38 * 17)),
+            (float) (23 / Math.sqrt(41 * 38))
+        }, neighbours.getScores(b), DELTA);
+        assertArrayEquals(new int[] {b, c}, neighbours.getBooks(a));
+        assertEquals(4 / Math.sqrt(41 * 17), neighbours.getScores(a)[1], DELTA);
+    }
+
+    @Test
+    public void shrinkDampsTheBooksWithFewCoRaters() {
+        RatingMatrix matrix = matrix();
+        ItemSimilarity.Neighbours neighbours = new ItemSimilarity(matrix, 10, 2, 1).compute(pool);
+
+        int a = index(matrix, "A");
+        // A and B have two co-raters (x 2/4), A and C only one (x 1/3)
+        assertArrayEquals(new float[] {
+            (float) (23 / Math.sqrt(41 * 38) * 2 / 4),
+            (float) (4 / Math.sqrt(41 * 17) * 1 / 3)
+        }, neighbours.getScores(a), DELTA);
+    }
+
+    @Test
+    public void keepsOnlyTheBestNeighboursWithEnoughCoRaters() {
+        RatingMatrix matrix = matrix();
+        ItemSimilarity.Neighbours top1 = new ItemSimilarity(matrix, 1, 0, 1).compute(pool);
+        assertArrayEquals(new int[] {index(matrix, "C")}, top1.getBooks(index(matrix, "B")));
+
+        // A and C share a single user: below minCoRaters they are not neighbours
+        ItemSimilarity.Neighbours minTwo = new ItemSimilarity(matrix, 10, 0, 2).compute(pool);
+        assertArrayEquals(new int[] {index(matrix, "B")}, minTwo.getBooks(index(matrix, "A")));
+        assertArrayEquals(new int[] {index(matrix, "B")}, minTwo.getBooks(index(matrix, "C")));
+    }
+
+    @Test
+    public void topNReturnsTheHighestScoresInDecreasingOrder() {
+        ItemSimilarity.TopN top = new ItemSimilarity.TopN(3);
+        top.offer(1, 0.2f);
+        top.offer(2, 0.9f);
+        top.offer(3, 0.1f);
+        top.offer(4, 0.5f);
+        top.offer(5, 0.7f);
+        ItemSimilarity.Neighbours neighbours = new ItemSimilarity.Neighbours(2);
+        top.drainInto(neighbours, 0);
+
+        assertArrayEquals(new int[] {2, 5, 4}, neighbours.getBooks(0));
+        assertArrayEquals(new float[] {0.9f, 0.7f, 0.5f}, neighbours.getScores(0), 0);
+
+        // Drained: the instance is reused for the next book
+        top.offer(6, 0.3f);
+        top.drainInto(neighbours, 1);
+        assertArrayEquals(new int[] {6}, neighbours.getBooks(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANegativeShrink() {
+        new ItemSimilarity(matrix(), 10, -1, 1);
+    }
+
+    private static int index(RatingMatrix matrix, String bookId) {
+        for (int book = 0; book < matrix.getNumBooks(); book++) {
+            if (matrix.getBookId(book).equals(bookId)) {
+                return book;
+            }
+        }
+        throw new IllegalArgumentException(bookId);
+    }
+}
@@ -0,0 +1,79 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MinHashTest {
+    private static final List<String> BOOKS = Arrays.asList(
+        "65a1f0c2e4b0a1b2c3d4e5f1", "65a1f0c2e4b0a1b2c3d4e5f2", "65a1f0c2e4b0a1b2c3d4e5f3", "65a1f0c2e4b0a1b2c3d4e5f4");
+
+    @Test
+    public void equalSetsGiveEqualKeys() {
+        MinHash minHash = new MinHash(32, 2);
+        List<String> shuffled = Arrays.asList(BOOKS.get(2), BOOKS.get(0), BOOKS.get(3), BOOKS.get(1));
+
+        assertArrayEquals(minHash.bandKeys(minHash.signature(BOOKS)), minHash.bandKeys(minHash.signature(shuffled)));
+    }
+
+    @Test
+    public void instancesWithTheSameSettingsAgree() {
+        // The offline job and the incremental refresh each build their own instance
+        MinHash engine = new MinHash(32, 2);
+        MinHash refresh = new MinHash(32, 2);
+
+        assertEquals(engine.getConfigKey(), refresh.getConfigKey());
+        assertArrayEquals(engine.bandKeys(engine.signature(BOOKS)), refresh.bandKeys(refresh.signature(BOOKS)));
+    }
+
+    @Test
+    public void changedSettingsAreDetected() {
+        MinHash before = new MinHash(32, 2);
+        MinHash after = new MinHash(16, 4);
+
+        assertNotEquals(before.getConfigKey(), after.getConfigKey());
+        assertNotEquals(before.getConfigKey(), new MinHash(32, 3).getConfigKey());
+        // The keys of the same set no longer match, which is why a refresh must not mix them
+        long[] keysBefore = before.bandKeys(before.signature(BOOKS));
+        long[] keysAfter = after.bandKeys(after.signature(BOOKS));
+        assertEquals(32, keysBefore.length);
+        assertEquals(16, keysAfter.length);
+        for (long key : keysAfter) {
+            for (long other : keysBefore) {
+                assertNotEquals(other, key);
+            }
+        }
+    }
+
+    @Test
+    public void signatureOfASliceMatchesTheSignatureOfTheSet() {
+        MinHash minHash = new MinHash(8, 2);
+        int[] elements = new int[BOOKS.size() + 2];
+        elements[0] = 42;
+        for (int i = 0; i < BOOKS.size(); i++) {
+            elements[i + 1] = MinHash.elementHash(BOOKS.get(i));
+        }
+        elements[elements.length - 1] = 7;
+
+        assertArrayEquals(minHash.signature(BOOKS), minHash.signature(elements, 1, 1 + BOOKS.size()));
+    }
+
+    @Test
+    public void keysCarryTheBandNumber() {
+        MinHash minHash = new MinHash(4, 3);
+        long[] keys = minHash.bandKeys(minHash.signature(BOOKS));
+        for (int band = 0; band < keys.length; band++) {
+            assertEquals(band, keys[band] >>> 56);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroBands() {
+        new MinHash(0, 2);
+    }
+}
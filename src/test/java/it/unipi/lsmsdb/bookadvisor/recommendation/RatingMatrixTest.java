@@ -0,0 +1,53 @@
+package it.unipi.lsmsdb.bookadvisor.recommendation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RatingMatrixTest {
+
+    @Test
+    public void groupsTheRatingsByBookAndByUser() {
+        RatingMatrix.Builder builder = new RatingMatrix.Builder();
+        builder.add("u1", "A", 1);
+        // u2 rates B before A: its row must still come out sorted by book index
+        builder.add("u2", "B", 2);
+        builder.add("u2", "A", 3);
+        RatingMatrix matrix = builder.build();
+
+        assertEquals(2, matrix.getNumUsers());
+        assertEquals(2, matrix.getNumBooks());
+        assertEquals(3, matrix.getNumRatings());
+        // Indexes are assigned in order of appearance
+        assertEquals("u1", matrix.getUserId(0));
+        assertEquals("A", matrix.getBookId(0));
+
+        assertArrayEquals(new int[] {0, 2, 3}, matrix.bookPtr);
+        assertArrayEquals(new int[] {0, 1, 1}, matrix.bookUsers);
+        assertArrayEquals(new float[] {1, 3, 2}, matrix.bookRatings, 0);
+
+        assertArrayEquals(new int[] {0, 1, 3}, matrix.userPtr);
+        assertArrayEquals(new int[] {0, 0, 1}, matrix.userBooks);
+        assertArrayEquals(new float[] {1, 3, 2}, matrix.userRatings, 0);
+    }
+
+    @Test
+    public void growsPastTheInitialCapacity() {
+        RatingMatrix.Builder builder = new RatingMatrix.Builder();
+        for (int i = 0; i < 3000; i++) {
+            builder.add("u" + (i % 7), "b" + i, 1 + i % 5);
+        }
+        RatingMatrix matrix = builder.build();
+
+        assertEquals(7, matrix.getNumUsers());
+        assertEquals(3000, matrix.getNumBooks());
+        assertEquals(3000, matrix.getNumRatings());
+        for (int user = 0; user < matrix.getNumUsers(); user++) {
+            for (int k = matrix.userPtr[user] + 1; k < matrix.userPtr[user + 1]; k++) {
+                assertTrue(matrix.userBooks[k - 1] < matrix.userBooks[k]);
+            }
+        }
+    }
+}
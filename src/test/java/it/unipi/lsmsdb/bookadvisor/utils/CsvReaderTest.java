@@ -0,0 +1,103 @@
+package it.unipi.lsmsdb.bookadvisor.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CsvReaderTest {
+
+    @Test
+    public void quotedFieldsKeepSeparatorsAndNewlines() throws IOException {
+        List<String[]> records = readAll("id,title\n1,\"Dune, Part One\"\n2,\"Line one\nline two\"\n");
+
+        assertEquals(3, records.size());
+        assertArrayEquals(new String[] {"1", "Dune, Part One"}, records.get(1));
+        assertArrayEquals(new String[] {"2", "Line one\nline two"}, records.get(2));
+    }
+
+    @Test
+    public void doubledQuotesAreUnescaped() throws IOException {
+        List<String[]> records = readAll("\"The \"\"Hobbit\"\"\",\"\"\"\"\n");
+
+        assertArrayEquals(new String[] {"The \"Hobbit\"", "\""}, records.get(0));
+    }
+
+    @Test
+    public void crlfLineEndingsAreStripped() throws IOException {
+        List<String[]> records = readAll("a,b\r\nc,\"d\"\r\n");
+
+        assertEquals(2, records.size());
+        assertArrayEquals(new String[] {"a", "b"}, records.get(0));
+        assertArrayEquals(new String[] {"c", "d"}, records.get(1));
+    }
+
+    @Test
+    public void trailingEmptyFieldIsKept() throws IOException {
+        List<String[]> records = readAll("a,b,\n,,\nlast,");
+
+        assertArrayEquals(new String[] {"a", "b", ""}, records.get(0));
+        assertArrayEquals(new String[] {"", "", ""}, records.get(1));
+        // The last record has no newline
+        assertArrayEquals(new String[] {"last", ""}, records.get(2));
+    }
+
+    @Test
+    public void quotesSplitAcrossReadsAreUnescaped() throws IOException {
+        // A reader that returns one character per call refills the buffer between the two quotes of ""
+        Reader slow = new StringReader("\"say \"\"hi\"\"\",x\r\n\"end\"") {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 1));
+            }
+        };
+        List<String[]> records = readAll(new CsvReader(slow));
+
+        assertArrayEquals(new String[] {"say \"hi\"", "x"}, records.get(0));
+        assertArrayEquals(new String[] {"end"}, records.get(1));
+    }
+
+    @Test
+    public void readsWithACustomSeparator() throws IOException {
+        try (CsvReader reader = new CsvReader(new StringReader("a;b\nc;d\n"), ';')) {
+            assertTrue(reader.next());
+            assertEquals(2, reader.size());
+            assertEquals("b", reader.get(1));
+            assertTrue(reader.next());
+            assertEquals(2, reader.getRecordNumber());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsAMissingField() throws IOException {
+        try (CsvReader reader = new CsvReader(new StringReader("a,b\n"))) {
+            reader.next();
+            reader.get(2);
+        }
+    }
+
+    private static List<String[]> readAll(String input) throws IOException {
+        return readAll(new CsvReader(new StringReader(input)));
+    }
+
+    private static List<String[]> readAll(CsvReader reader) throws IOException {
+        List<String[]> records = new ArrayList<>();
+        try {
+            while (reader.next()) {
+                records.add(reader.toArray());
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+}